@@ -0,0 +1,538 @@
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Test Tube
+ * Author: Peter Mitchell (2021)
+ *
+ * Benchmark class:
+ * Measures the time taken by the hot paths of the game engine. Each benchmark is
+ * warmed up and then measured over several timed iterations, and the results are
+ * written as JSON in the same layout as JMH results so they can be compared with
+ * the usual tools. The benchmarks use fixed seeds so every run measures the same puzzles.
+ *
+ * Usage: java Benchmark [--filter text] [--time milliseconds] [--output file]
+ */
+public class Benchmark {
+    /**
+     * A single operation to be timed.
+     */
+    private interface Operation {
+        /**
+         * Runs the operation once.
+         *
+         * @return Any value from the operation so the work can not be optimised away.
+         */
+        long run();
+    }
+
+    /**
+     * The number of untimed iterations to run before measuring.
+     */
+    private static final int WARMUP_ITERATIONS = 3;
+    /**
+     * The number of timed iterations to average over.
+     */
+    private static final int MEASUREMENT_ITERATIONS = 5;
+    /**
+     * The tube counts used by benchmarks that do not cover every slider configuration.
+     */
+    private static final int[] TUBE_COUNTS = {10, 20};
+    /**
+     * The parallelism levels to measure the ParallelSolver with.
+     */
+    private static final int[] PARALLELISM_LEVELS = {1, 2, 4, 8, 16};
+    /**
+     * The number of different puzzles the solver benchmarks cycle through.
+     */
+    private static final int SOLVER_PUZZLE_COUNT = 16;
+
+    /**
+     * Values returned by operations are added here so they are never unused.
+     */
+    private static volatile long sink;
+
+    /**
+     * Only benchmarks with a name containing this text are run.
+     */
+    private final String filter;
+    /**
+     * The time in milliseconds for each warmup and measurement iteration.
+     */
+    private final long iterationMillis;
+    /**
+     * The JSON object for each benchmark that has been run.
+     */
+    private final List<String> results = new ArrayList<>();
+
+    /**
+     * Runs the benchmarks and writes the results.
+     *
+     * @param args Optional --filter, --time, and --output settings.
+     * @throws IOException If the output file could not be written.
+     */
+    public static void main(String[] args) throws IOException {
+        String filter = "";
+        long iterationMillis = 100;
+        String output = null;
+        for(int i = 0; i + 1 < args.length; i += 2) {
+            switch(args[i]) {
+                case "--filter": filter = args[i+1]; break;
+                case "--time": iterationMillis = Long.parseLong(args[i+1]); break;
+                case "--output": output = args[i+1]; break;
+                default: throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        Benchmark benchmark = new Benchmark(filter, iterationMillis);
+        benchmark.runAll();
+        String json = benchmark.toJson();
+        if(output == null) {
+            System.out.println(json);
+        } else {
+            Files.write(Paths.get(output), json.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * @param filter Only benchmarks with a name containing this text are run.
+     * @param iterationMillis The time in milliseconds for each warmup and measurement iteration.
+     */
+    public Benchmark(String filter, long iterationMillis) {
+        this.filter = filter;
+        this.iterationMillis = iterationMillis;
+    }
+
+    /**
+     * Runs every benchmark that matches the filter.
+     */
+    public void runAll() {
+        benchmarkNewPuzzle();
+        for(int tubeCount : TUBE_COUNTS) {
+            benchmarkPour(tubeCount);
+            benchmarkCommand(tubeCount);
+            benchmarkStateHash(tubeCount);
+            benchmarkMoveGenerator(tubeCount);
+            benchmarkGameWon(tubeCount);
+            benchmarkReset(tubeCount);
+            benchmarkGetTestTubeAt(tubeCount);
+        }
+        benchmarkGetTestTubeAt(DifficultyDialog.LARGE_BOARD_MAX_TUBES);
+        benchmarkStateHash(DifficultyDialog.LARGE_BOARD_MAX_TUBES);
+        benchmarkMoveGenerator(DifficultyDialog.LARGE_BOARD_MAX_TUBES);
+        benchmarkPaint(TUBE_COUNTS[TUBE_COUNTS.length-1]);
+        benchmarkPaint(DifficultyDialog.LARGE_BOARD_MAX_TUBES);
+        benchmarkSolver();
+        benchmarkBidirectionalSolver();
+        benchmarkDifficultyRating();
+        benchmarkParallelSolver();
+    }
+
+    /**
+     * Generates puzzles for every combination the DifficultyDialog sliders allow.
+     */
+    private void benchmarkNewPuzzle() {
+        for(int tubeCount = 2; tubeCount <= 20; tubeCount++) {
+            for(int emptyCount = 1; emptyCount <= tubeCount/2; emptyCount++) {
+                for(int emptyAtEndCount = 0; emptyAtEndCount <= emptyCount; emptyAtEndCount++) {
+                    for(int colourCount = 1; colourCount <= PuzzleGenerator.PALETTE_SIZE; colourCount++) {
+                        Puzzle puzzle = new Puzzle(tubeCount, emptyCount, emptyAtEndCount, colourCount);
+                        long[] seed = {0};
+                        run("newPuzzle", params(tubeCount, emptyCount, emptyAtEndCount, colourCount), () -> {
+                            puzzle.newPuzzle(seed[0]++);
+                            return puzzle.getState().getTube(0);
+                        });
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Pours between the first pair of test tubes that allow it and undoes the pour,
+     * then tries a pour that is not allowed.
+     *
+     * @param tubeCount The number of test tubes in the puzzle.
+     */
+    private void benchmarkPour(int tubeCount) {
+        Puzzle puzzle = createPuzzle(tubeCount);
+        int[] pair = findPour(puzzle.getState());
+        run("pourTubeUndo", params(tubeCount, 4, 2, 8), () -> {
+            puzzle.pour(pair[0], pair[1]);
+            puzzle.undo();
+            return puzzle.getState().getTube(pair[0]);
+        });
+        int[] rejected = findRejectedPour(puzzle.getState());
+        run("pourTubeRejected", params(tubeCount, 4, 2, 8), () -> puzzle.pour(rejected[0], rejected[1]) ? 1 : 0);
+    }
+
+    /**
+     * Executes and reverses the same command directly on the state.
+     *
+     * @param tubeCount The number of test tubes in the puzzle.
+     */
+    private void benchmarkCommand(int tubeCount) {
+        PuzzleState state = PuzzleGenerator.generate(1, tubeCount, 4, 2, 8);
+        int[] pair = findPour(state);
+        int command = Command.encode(pair[0], pair[1], state.pourCount(pair[0], pair[1]));
+        run("commandExecuteReverse", params(tubeCount, 4, 2, 8), () -> {
+            Command.execute(state, command);
+            Command.reverse(state, command);
+            return state.getTube(pair[1]);
+        });
+    }
+
+    /**
+     * Makes a pour and gets the hash code of the new state as a transposition table would,
+     * then puts the state into its canonical form.
+     *
+     * @param tubeCount The number of test tubes in the puzzle.
+     */
+    private void benchmarkStateHash(int tubeCount) {
+        PuzzleState state = PuzzleGenerator.generate(1, tubeCount, 4, 2, 8);
+        int[] pair = findPour(state);
+        int command = Command.encode(pair[0], pair[1], state.pourCount(pair[0], pair[1]));
+        run("pourHashCode", params(tubeCount, 4, 2, 8), () -> {
+            Command.execute(state, command);
+            int hash = state.hashCode();
+            Command.reverse(state, command);
+            return hash;
+        });
+        PuzzleState canonical = new PuzzleState(state);
+        run("canonicalize", params(tubeCount, 4, 2, 8), () -> {
+            canonical.copyFrom(state);
+            canonical.canonicalize();
+            return canonical.getTube(0);
+        });
+    }
+
+    /**
+     * Makes a pour, lists every allowed pour with a MoveGenerator that follows the state,
+     * and undoes the pour.
+     *
+     * @param tubeCount The number of test tubes in the puzzle.
+     */
+    private void benchmarkMoveGenerator(int tubeCount) {
+        PuzzleState state = PuzzleGenerator.generate(1, tubeCount, 4, 2, 8);
+        int[] pair = findPour(state);
+        int command = Command.encode(pair[0], pair[1], state.pourCount(pair[0], pair[1]));
+        MoveGenerator generator = new MoveGenerator(state);
+        int[] moves = new int[tubeCount * tubeCount];
+        run("generateMoves", params(tubeCount, 4, 2, 8), () -> {
+            Command.execute(state, command);
+            int moveCount = generator.generate(moves);
+            Command.reverse(state, command);
+            return moveCount;
+        });
+        generator.detach();
+    }
+
+    /**
+     * Checks for a win on a puzzle that has not been won, and checks if any pour is left.
+     *
+     * @param tubeCount The number of test tubes in the puzzle.
+     */
+    private void benchmarkGameWon(int tubeCount) {
+        Puzzle puzzle = createPuzzle(tubeCount);
+        run("gameWon", params(tubeCount, 4, 2, 8), () -> puzzle.gameWon() ? 1 : 0);
+        run("hasLegalPour", params(tubeCount, 4, 2, 8), () -> puzzle.hasLegalPour() ? 1 : 0);
+    }
+
+    /**
+     * Resets a puzzle after a pour has been made.
+     *
+     * @param tubeCount The number of test tubes in the puzzle.
+     */
+    private void benchmarkReset(int tubeCount) {
+        Puzzle puzzle = createPuzzle(tubeCount);
+        int[] pair = findPour(puzzle.getState());
+        run("reset", params(tubeCount, 4, 2, 8), () -> {
+            puzzle.pour(pair[0], pair[1]);
+            puzzle.reset();
+            return puzzle.getState().getTube(pair[0]);
+        });
+    }
+
+    /**
+     * Finds the test tube under positions spread across the whole puzzle layout.
+     *
+     * @param tubeCount The number of test tubes in the puzzle.
+     */
+    private void benchmarkGetTestTubeAt(int tubeCount) {
+        Puzzle puzzle = createPuzzle(tubeCount);
+        Position[] positions = new Position[256];
+        for(int i = 0; i < positions.length; i++) {
+            positions[i] = new Position((i * 37) % puzzle.getLayoutWidth(), (i * 7919) % puzzle.getLayoutHeight());
+        }
+        int[] next = {0};
+        run("getTestTubeAt", params(tubeCount, 4, 2, 8), () -> {
+            TestTube testTube = puzzle.getTestTubeAt(positions[next[0]++ & (positions.length-1)]);
+            return testTube == null ? -1 : testTube.getIndex();
+        });
+    }
+
+    /**
+     * Draws every test tube in a panel sized view, then makes a pour and undoes it and
+     * draws only the test tubes that changed, as the GamePanel does after a move.
+     *
+     * @param tubeCount The number of test tubes in the puzzle.
+     */
+    private void benchmarkPaint(int tubeCount) {
+        if(!"paintView".contains(filter) && !"paintChangedTubes".contains(filter)) return;
+        Puzzle puzzle = createPuzzle(tubeCount);
+        int[] pair = findPour(puzzle.getState());
+        BufferedImage image = new BufferedImage(GamePanel.PANEL_WIDTH, GamePanel.PANEL_HEIGHT, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        Rectangle view = new Rectangle(0, 0, GamePanel.PANEL_WIDTH, GamePanel.PANEL_HEIGHT);
+        run("paintView", params(tubeCount, 4, 2, 8), () -> {
+            puzzle.paint(g, view);
+            return image.getRGB(0, 0);
+        });
+        run("paintChangedTubes", params(tubeCount, 4, 2, 8), () -> {
+            puzzle.pour(pair[0], pair[1]);
+            puzzle.undo();
+            puzzle.takeChangedTubes(testTube -> puzzle.paint(g, new Rectangle(testTube.getPosition(),
+                                                                testTube.getWidth(), testTube.getHeight())));
+            return image.getRGB(0, 0);
+        });
+        g.dispose();
+    }
+
+    /**
+     * Solves the largest puzzles the DifficultyDialog allows with the optimal Solver.
+     */
+    private void benchmarkSolver() {
+        PuzzleState[] states = createSolverPuzzles();
+        int[] next = {0};
+        run("solver", params(20, 4, 2, 8), () -> {
+            List<Move> solution = new Solver().solve(states[next[0]++ % states.length]);
+            return solution == null ? -1 : solution.size();
+        });
+    }
+
+    /**
+     * Solves puzzles small enough for a breadth first search with the BidirectionalSolver.
+     */
+    private void benchmarkBidirectionalSolver() {
+        PuzzleState[] states = new PuzzleState[SOLVER_PUZZLE_COUNT];
+        for(int i = 0; i < states.length; i++) {
+            states[i] = PuzzleGenerator.generate(i, 8, 2, 1, 6);
+        }
+        int[] next = {0};
+        run("bidirectionalSolver", params(8, 2, 1, 6), () -> {
+            List<Move> solution = new BidirectionalSolver().solve(states[next[0]++ % states.length]);
+            return solution == null ? -1 : solution.size();
+        });
+    }
+
+    /**
+     * Rates puzzles with the default DifficultyDialog settings, which is done for every
+     * candidate when looking for a puzzle in a difficulty band.
+     */
+    private void benchmarkDifficultyRating() {
+        PuzzleState[] states = new PuzzleState[64];
+        for(int i = 0; i < states.length; i++) {
+            states[i] = PuzzleGenerator.generate(i, 10, 4, 2, 4);
+        }
+        int[] next = {0};
+        run("rateDifficulty", params(10, 4, 2, 4), () -> {
+            DifficultyRating rating = DifficultyRating.rate(states[next[0]++ % states.length]);
+            return rating == null ? -1 : rating.getBand();
+        });
+    }
+
+    /**
+     * Solves the largest puzzles the DifficultyDialog allows with the ParallelSolver at each
+     * parallelism level, then reports the speedup of each level over a single thread.
+     */
+    private void benchmarkParallelSolver() {
+        if(!"parallelSolver".contains(filter) && !"parallelSolverSpeedup".contains(filter)) return;
+        PuzzleState[] states = createSolverPuzzles();
+        double singleThreaded = 0;
+        for(int parallelism : PARALLELISM_LEVELS) {
+            int[] next = {0};
+            String params = params(20, 4, 2, 8).replace("}", ", \"parallelism\": \"" + parallelism + "\"}");
+            // The speedup is calculated from these, so they are measured when only it is wanted
+            double score = runUnfiltered("parallelSolver", params, () -> {
+                List<Move> solution = new ParallelSolver(parallelism).solve(states[next[0]++ % states.length]);
+                return solution == null ? -1 : solution.size();
+            });
+            if(parallelism == 1) singleThreaded = score;
+            record("parallelSolverSpeedup", params, new double[]{singleThreaded / score}, "x");
+        }
+    }
+
+    /**
+     * Creates the puzzles used by the solver benchmarks.
+     *
+     * @return The starting states of the puzzles.
+     */
+    private static PuzzleState[] createSolverPuzzles() {
+        PuzzleState[] states = new PuzzleState[SOLVER_PUZZLE_COUNT];
+        for(int i = 0; i < states.length; i++) {
+            states[i] = PuzzleGenerator.generate(i, 20, 4, 2, 8);
+        }
+        return states;
+    }
+
+    /**
+     * Creates a puzzle with a fixed seed.
+     *
+     * @param tubeCount The number of test tubes in the puzzle.
+     * @return The new puzzle.
+     */
+    private static Puzzle createPuzzle(int tubeCount) {
+        Puzzle puzzle = new Puzzle(tubeCount, 4, 2, 8);
+        puzzle.newPuzzle(1);
+        return puzzle;
+    }
+
+    /**
+     * Finds the first pair of test tubes that can be poured between.
+     *
+     * @param state The state to search.
+     * @return The index of the test tube to pour from and to.
+     */
+    private static int[] findPour(PuzzleState state) {
+        for(int from = 0; from < state.getTubeCount(); from++) {
+            for(int to = 0; to < state.getTubeCount(); to++) {
+                if(state.canPour(from, to)) return new int[]{from, to};
+            }
+        }
+        throw new IllegalStateException("No pour available in " + state);
+    }
+
+    /**
+     * Finds the first pair of non-empty test tubes that can not be poured between.
+     *
+     * @param state The state to search.
+     * @return The index of the test tube to pour from and to.
+     */
+    private static int[] findRejectedPour(PuzzleState state) {
+        for(int from = 0; from < state.getTubeCount(); from++) {
+            for(int to = 0; to < state.getTubeCount(); to++) {
+                if(from != to && state.count(to) > 0 && !state.canPour(from, to)) return new int[]{from, to};
+            }
+        }
+        throw new IllegalStateException("Every pour is available in " + state);
+    }
+
+    /**
+     * Creates the JSON parameters for a puzzle configuration.
+     *
+     * @param tubeCount The total number of test tubes.
+     * @param emptyCount The number of test tubes that will be empty at the end of the solution.
+     * @param emptyAtEndCount The number that begin empty at the end.
+     * @param colourCount The number of different colours.
+     * @return The parameters as a JSON object.
+     */
+    private static String params(int tubeCount, int emptyCount, int emptyAtEndCount, int colourCount) {
+        return String.format("{\"tubeCount\": \"%d\", \"emptyCount\": \"%d\", \"emptyAtEndCount\": \"%d\", \"colourCount\": \"%d\"}",
+                                tubeCount, emptyCount, emptyAtEndCount, colourCount);
+    }
+
+    /**
+     * Warms up and measures a single benchmark if it matches the filter.
+     *
+     * @param name The name of the benchmark.
+     * @param params The JSON object describing the parameters.
+     * @param operation The operation to time.
+     * @return The average time in nanoseconds for one run of the operation, or 0 if it was not run.
+     */
+    private double run(String name, String params, Operation operation) {
+        if(!name.contains(filter)) return 0;
+        return runUnfiltered(name, params, operation);
+    }
+
+    /**
+     * Warms up and measures a single benchmark even if it does not match the filter, for
+     * benchmarks that other results are calculated from.
+     *
+     * @param name The name of the benchmark.
+     * @param params The JSON object describing the parameters.
+     * @param operation The operation to time.
+     * @return The average time in nanoseconds for one run of the operation.
+     */
+    private double runUnfiltered(String name, String params, Operation operation) {
+        for(int i = 0; i < WARMUP_ITERATIONS; i++) {
+            measure(operation);
+        }
+        double[] scores = new double[MEASUREMENT_ITERATIONS];
+        for(int i = 0; i < MEASUREMENT_ITERATIONS; i++) {
+            scores[i] = measure(operation);
+        }
+        return record(name, params, scores, "ns/op");
+    }
+
+    /**
+     * Runs the operation repeatedly for one iteration.
+     *
+     * @param operation The operation to time.
+     * @return The average time in nanoseconds for one run of the operation.
+     */
+    private double measure(Operation operation) {
+        long result = 0;
+        long count = 0;
+        int batch = 1;
+        long start = System.nanoTime();
+        long end = start + iterationMillis * 1_000_000L;
+        long now = start;
+        // Run in growing batches so reading the clock does not dominate short operations
+        do {
+            long batchStart = now;
+            for(int i = 0; i < batch; i++) {
+                result += operation.run();
+            }
+            count += batch;
+            now = System.nanoTime();
+            if(batch < 1024 && now - batchStart < 10_000) batch *= 2;
+        } while(now < end);
+        sink += result;
+        return (double)(now - start) / count;
+    }
+
+    /**
+     * Adds the result of a benchmark to the JSON output and reports it on the error stream.
+     *
+     * @param name The name of the benchmark.
+     * @param params The JSON object describing the parameters.
+     * @param scores The score from each measurement iteration.
+     * @param unit The unit of the scores.
+     * @return The average of the scores.
+     */
+    private double record(String name, String params, double[] scores, String unit) {
+        double mean = 0;
+        for(double score : scores) mean += score;
+        mean /= scores.length;
+        double variance = 0;
+        for(double score : scores) variance += (score - mean) * (score - mean);
+        double error = scores.length > 1 ? Math.sqrt(variance / (scores.length - 1)) : 0;
+
+        StringBuilder rawData = new StringBuilder();
+        for(double score : scores) {
+            if(rawData.length() > 0) rawData.append(", ");
+            rawData.append(String.format(Locale.ROOT, "%.3f", score));
+        }
+        results.add(String.format(Locale.ROOT, "  {\"benchmark\": \"%s\", \"mode\": \"avgt\", \"params\": %s, "
+                        + "\"primaryMetric\": {\"score\": %.3f, \"scoreError\": %.3f, \"scoreUnit\": \"%s\", \"rawData\": [[%s]]}}",
+                        name, params, mean, error, unit, rawData));
+        System.err.printf(Locale.ROOT, "%-24s %s %12.3f %s%n", name, params, mean, unit);
+        return mean;
+    }
+
+    /**
+     * Creates the JSON array of all results.
+     *
+     * @return The results as JSON.
+     */
+    public String toJson() {
+        return "[\n" + String.join(",\n", results) + "\n]";
+    }
+}
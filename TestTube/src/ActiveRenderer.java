@@ -0,0 +1,189 @@
+import java.awt.*;
+import java.awt.image.BufferStrategy;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Test Tube
+ * Author: Peter Mitchell (2021)
+ *
+ * ActiveRenderer class:
+ * Draws the GamePanel into a Canvas with a BufferStrategy at a fixed rate instead of
+ * waiting for repaint() calls, so pours and selections can be animated smoothly.
+ * A loop thread keeps time and asks the Swing event thread to draw each frame, so the
+ * game is only ever changed or drawn on one thread. The animation moves forward in
+ * fixed steps however long each frame takes. If the event thread is still busy with
+ * input or the last frame when the next one is due, that frame is dropped instead of
+ * queueing up behind the input.
+ */
+public class ActiveRenderer extends Canvas implements Runnable {
+    /**
+     * Canvas is Serializable, but the renderer is never written out.
+     */
+    private static final long serialVersionUID = 1L;
+    /**
+     * The number of frames to draw every second.
+     */
+    public static final int FRAMES_PER_SECOND = 60;
+    /**
+     * The time between frames, and the size of each animation step, in nanoseconds.
+     */
+    private static final long STEP_NANOS = 1_000_000_000L / FRAMES_PER_SECOND;
+    /**
+     * The most animation steps to catch up on in one frame. Time beyond this is skipped.
+     */
+    private static final int MAX_STEPS_PER_FRAME = 5;
+
+    /**
+     * The game panel that handles input and draws the game.
+     */
+    private final GamePanel gamePanel;
+    /**
+     * True while a frame has been passed to the event thread and not yet drawn.
+     */
+    private final AtomicBoolean framePending = new AtomicBoolean();
+    /**
+     * The number of frames drawn.
+     */
+    private final LongAdder framesDrawn = new LongAdder();
+    /**
+     * The number of frames dropped because the previous one had not been drawn in time.
+     */
+    private final LongAdder framesDropped = new LongAdder();
+    /**
+     * True while the loop thread should keep running.
+     */
+    private volatile boolean running;
+    /**
+     * The time of the last animation update. Only used on the event thread.
+     */
+    private long lastUpdateTime;
+    /**
+     * Time that has passed but not yet been used by an animation step. Only used on the event thread.
+     */
+    private long unusedNanos;
+
+    /**
+     * Creates the canvas and passes all mouse input to the game panel.
+     *
+     * @param gamePanel The game panel that handles input and draws the game.
+     */
+    public ActiveRenderer(GamePanel gamePanel) {
+        this.gamePanel = gamePanel;
+        setPreferredSize(new Dimension(GamePanel.PANEL_WIDTH, GamePanel.PANEL_HEIGHT));
+        setBackground(Color.BLACK);
+        // Keys go to the frame, and drawing only happens in the loop
+        setFocusable(false);
+        setIgnoreRepaint(true);
+        addMouseListener(gamePanel);
+        addMouseWheelListener(gamePanel);
+    }
+
+    /**
+     * Creates the buffers and starts the loop. The canvas must already be showing.
+     */
+    public void start() {
+        createBufferStrategy(2);
+        lastUpdateTime = System.nanoTime();
+        running = true;
+        Thread thread = new Thread(this, "Render loop");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the loop after the current frame.
+     */
+    public void stop() {
+        running = false;
+    }
+
+    /**
+     * Waits until each frame is due and passes it to the event thread, or drops it if
+     * the previous frame has not been drawn yet.
+     */
+    @Override
+    public void run() {
+        long nextFrameTime = System.nanoTime();
+        while(running) {
+            nextFrameTime += STEP_NANOS;
+            long waitNanos = nextFrameTime - System.nanoTime();
+            if(waitNanos > 0) {
+                LockSupport.parkNanos(waitNanos);
+            } else if(-waitNanos > STEP_NANOS * MAX_STEPS_PER_FRAME) {
+                // Far behind, so start counting from now instead of rushing to catch up
+                nextFrameTime = System.nanoTime();
+            }
+            if(framePending.compareAndSet(false, true)) {
+                EventQueue.invokeLater(this::drawFrame);
+            } else {
+                framesDropped.increment();
+            }
+        }
+    }
+
+    /**
+     * Gets the number of frames that have been drawn.
+     *
+     * @return The number of frames drawn.
+     */
+    public long getFramesDrawn() {
+        return framesDrawn.sum();
+    }
+
+    /**
+     * Gets the number of frames dropped because the previous frame had not been drawn in time.
+     *
+     * @return The number of frames dropped.
+     */
+    public long getFramesDropped() {
+        return framesDropped.sum();
+    }
+
+    /**
+     * Moves the animation forward in fixed steps for the time that has passed, then
+     * draws a frame. Called on the event thread.
+     */
+    private void drawFrame() {
+        try {
+            long now = System.nanoTime();
+            unusedNanos += now - lastUpdateTime;
+            lastUpdateTime = now;
+            int steps = 0;
+            while(unusedNanos >= STEP_NANOS && steps < MAX_STEPS_PER_FRAME) {
+                gamePanel.update(STEP_NANOS / 1e9);
+                unusedNanos -= STEP_NANOS;
+                steps++;
+            }
+            if(steps == MAX_STEPS_PER_FRAME) {
+                unusedNanos = 0;
+            }
+            render();
+            framesDrawn.increment();
+        } finally {
+            framePending.set(false);
+        }
+    }
+
+    /**
+     * Draws the game into the back buffer and shows it, drawing again if the
+     * buffer contents were lost.
+     */
+    private void render() {
+        BufferStrategy bufferStrategy = getBufferStrategy();
+        if(bufferStrategy == null) return;
+        do {
+            do {
+                Graphics g = bufferStrategy.getDrawGraphics();
+                try {
+                    gamePanel.render(g);
+                } finally {
+                    g.dispose();
+                }
+            } while(bufferStrategy.contentsRestored());
+            bufferStrategy.show();
+        } while(bufferStrategy.contentsLost());
+        Toolkit.getDefaultToolkit().sync();
+    }
+}
@@ -0,0 +1,392 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Test Tube
+ * Author: Peter Mitchell (2021)
+ *
+ * BidirectionalSolver class:
+ * Finds the shortest sequence of pours that solves a PuzzleState by searching forward from
+ * the start and backward from the solved state at the same time, until the two searches meet.
+ * Once the test tubes are sorted every solved state of a puzzle is the same, with each colour
+ * in its own full test tubes and the rest empty, so the backward search has a single state to
+ * start from. The forward search makes the same pours as clicking does, and the backward
+ * search undoes them with Command.reverse(), only using commands that such a pour could have
+ * made. Each search is a breadth first search with its own table of the states it has reached,
+ * keyed on their sorted contents, and a state generated by one search that is in the other's
+ * table joins a path from the start to the solved state. A whole layer of the side with fewer
+ * states waiting is expanded at a time, and the shortest join found in a layer is the shortest
+ * solution. No pour can ever put a colour on top of a different one, so backward states with
+ * any such places the start does not have can never be reached and are not searched.
+ *
+ * This is not used by the game. The Solver's A* search expands far fewer states on the
+ * puzzles the game makes, so this is kept for comparison and for puzzles where no good estimate
+ * of the pours remaining is known.
+ */
+public class BidirectionalSolver {
+    /**
+     * The default maximum number of states to reach from both sides before giving up.
+     */
+    public static final int DEFAULT_NODE_LIMIT = 4_000_000;
+
+    /**
+     * A single state reached by one of the searches with the path used to reach it.
+     */
+    private static class Node {
+        /**
+         * The contents of the test tubes at this node in sorted order.
+         */
+        private final PuzzleState state;
+        /**
+         * The node this was reached from, or null for the start or the solved state.
+         */
+        private final Node parent;
+        /**
+         * The number of pours from the start or to the solved state.
+         */
+        private final int cost;
+
+        /**
+         * @param state The contents of the test tubes at this node in sorted order.
+         * @param parent The node this was reached from, or null for the start or the solved state.
+         * @param cost The number of pours from the start or to the solved state.
+         */
+        private Node(PuzzleState state, Node parent, int cost) {
+            this.state = state;
+            this.parent = parent;
+            this.cost = cost;
+        }
+    }
+
+    /**
+     * The maximum number of states to reach from both sides before giving up.
+     */
+    private final int nodeLimit;
+    /**
+     * The number of states expanded by the most recent solve().
+     */
+    private int expandedCount;
+    /**
+     * True if the most recent solve() stopped because it reached the node limit.
+     */
+    private boolean limitReached;
+
+    /**
+     * Creates a solver that uses the default node limit.
+     */
+    public BidirectionalSolver() {
+        this(DEFAULT_NODE_LIMIT);
+    }
+
+    /**
+     * @param nodeLimit The maximum number of states to reach from both sides before giving up.
+     */
+    public BidirectionalSolver(int nodeLimit) {
+        this.nodeLimit = nodeLimit;
+    }
+
+    /**
+     * Searches for the shortest sequence of pours from the start state to a solved state.
+     * The start state is not modified.
+     *
+     * @param start The state to solve.
+     * @return The list of moves to apply in order, an empty list if already solved,
+     *         or null if there is no solution, the node limit was reached, or the
+     *         thread was interrupted.
+     */
+    public List<Move> solve(PuzzleState start) {
+        expandedCount = 0;
+        limitReached = false;
+        if(!Solver.hasCompleteColourCounts(start)) return null;
+
+        PuzzleState initial = new PuzzleState(start);
+        initial.sortTubes();
+        PuzzleState solved = createSolvedState(start);
+        if(initial.equals(solved)) return new ArrayList<>();
+
+        int[] startBoundaries = countBoundaries(start);
+        int[] boundaries = new int[startBoundaries.length];
+        long[] startPrefixes = findStartPrefixes(start);
+        Map<PuzzleState, Node> forward = new HashMap<>();
+        Map<PuzzleState, Node> backward = new HashMap<>();
+        List<Node> forwardLayer = new ArrayList<>();
+        List<Node> backwardLayer = new ArrayList<>();
+        Node startNode = new Node(initial, null, 0);
+        Node solvedNode = new Node(solved, null, 0);
+        forward.put(initial, startNode);
+        backward.put(solved, solvedNode);
+        forwardLayer.add(startNode);
+        backwardLayer.add(solvedNode);
+        MoveGenerator generator = new MoveGenerator(initial);
+        int[] moves = new int[0];
+
+        // Either side running out of states proves there is no solution
+        while(!forwardLayer.isEmpty() && !backwardLayer.isEmpty()) {
+            boolean isForward = forwardLayer.size() <= backwardLayer.size();
+            Map<PuzzleState, Node> reached = isForward ? forward : backward;
+            Map<PuzzleState, Node> other = isForward ? backward : forward;
+            List<Node> nextLayer = new ArrayList<>();
+            // The shortest solution found so far through a state reached by both searches
+            int bestCost = Integer.MAX_VALUE;
+            Node bestForward = null, bestBackward = null;
+            for(Node node : isForward ? forwardLayer : backwardLayer) {
+                if(forward.size() + backward.size() >= nodeLimit
+                        || ((expandedCount & 1023) == 0 && Thread.currentThread().isInterrupted())) {
+                    limitReached = true;
+                    return null;
+                }
+                expandedCount++;
+
+                int moveCount;
+                if(isForward) {
+                    generator.setState(node.state);
+                    moves = Solver.ensureCapacity(moves, generator.countLegalPours());
+                    moveCount = generator.generateDistinct(moves);
+                } else {
+                    moves = Solver.ensureCapacity(moves, countReversePours(node.state));
+                    moveCount = generateReversePours(node.state, startBoundaries, boundaries, startPrefixes, moves);
+                }
+                for(int i = 0; i < moveCount; i++) {
+                    PuzzleState next = new PuzzleState(node.state);
+                    if(isForward) {
+                        Command.execute(next, moves[i]);
+                    } else {
+                        Command.reverse(next, moves[i]);
+                    }
+                    next.sortTubes();
+                    // A breadth first search always reaches a state with the fewest pours first
+                    if(reached.containsKey(next)) continue;
+                    Node nextNode = new Node(next, node, node.cost + 1);
+                    reached.put(next, nextNode);
+                    nextLayer.add(nextNode);
+                    Node meeting = other.get(next);
+                    if(meeting != null && nextNode.cost + meeting.cost < bestCost) {
+                        bestCost = nextNode.cost + meeting.cost;
+                        bestForward = isForward ? nextNode : meeting;
+                        bestBackward = isForward ? meeting : nextNode;
+                    }
+                }
+            }
+            // Any shorter solution would have joined in an earlier layer, and every state in this
+            // layer has the same number of pours, so the shortest join in the layer is the answer
+            if(bestForward != null) return buildPath(start, bestForward, bestBackward);
+            if(isForward) {
+                forwardLayer = nextLayer;
+            } else {
+                backwardLayer = nextLayer;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets the number of states expanded from both sides by the most recent solve().
+     *
+     * @return The number of expanded states.
+     */
+    public int getExpandedCount() {
+        return expandedCount;
+    }
+
+    /**
+     * Checks if the most recent solve() gave up because it reached the node limit or was
+     * interrupted, rather than proving there was no solution.
+     *
+     * @return True if the node limit was reached.
+     */
+    public boolean isLimitReached() {
+        return limitReached;
+    }
+
+    /**
+     * Creates the solved state with the test tubes sorted. Every colour fills as many test tubes
+     * as it has segments for in the start state, and the rest of the test tubes are empty.
+     * Assumes Solver.hasCompleteColourCounts() has already been checked.
+     *
+     * @param start The state to find the solved state for.
+     * @return The sorted solved state.
+     */
+    static PuzzleState createSolvedState(PuzzleState start) {
+        int capacity = start.getCapacity();
+        int[] colourCounts = new int[PuzzleState.MAX_COLOUR + 1];
+        for(int tube = 0; tube < start.getTubeCount(); tube++) {
+            for(int i = 0; i < start.count(tube); i++) {
+                colourCounts[start.getSegment(tube, i)]++;
+            }
+        }
+        PuzzleState solved = new PuzzleState(start.getTubeCount(), capacity);
+        int tube = 0;
+        for(int colour = 1; colour < colourCounts.length; colour++) {
+            for(int i = 0; i < colourCounts[colour] / capacity; i++) {
+                solved.add(tube++, capacity, colour);
+            }
+        }
+        solved.sortTubes();
+        return solved;
+    }
+
+    /**
+     * Counts the places in a state where one colour sits directly on top of a different colour.
+     * A pour never puts a colour on top of a different one, so these can only ever be removed.
+     *
+     * @param state The state to count in.
+     * @return The number of each colour on top of each other colour, indexed by
+     *         below * (PuzzleState.MAX_COLOUR + 1) + above.
+     */
+    static int[] countBoundaries(PuzzleState state) {
+        int[] boundaries = new int[(PuzzleState.MAX_COLOUR + 1) * (PuzzleState.MAX_COLOUR + 1)];
+        addBoundaries(state, boundaries);
+        return boundaries;
+    }
+
+    /**
+     * Adds the places in a state where one colour sits directly on top of a different colour.
+     *
+     * @param state The state to count in.
+     * @param boundaries The count of each colour on top of each other colour is added to this,
+     *                   indexed as in countBoundaries().
+     */
+    private static void addBoundaries(PuzzleState state, int[] boundaries) {
+        for(int tube = 0; tube < state.getTubeCount(); tube++) {
+            int below = state.getSegment(tube, 0);
+            for(int i = 1; i < state.count(tube); i++) {
+                int above = state.getSegment(tube, i);
+                if(above != below) {
+                    boundaries[below * (PuzzleState.MAX_COLOUR + 1) + above]++;
+                }
+                below = above;
+            }
+        }
+    }
+
+    /**
+     * Finds the bottom of each test tube in a state up to and including the first segment of
+     * each run of colour above the bottom run. As a pour never puts a colour on top of a different
+     * one, the only test tubes a state reached from this one can have with more than one colour
+     * are these with the top run made longer or shorter.
+     *
+     * @param state The state to look in.
+     * @return The packed segments of every such bottom part, sorted so they can be binary searched.
+     */
+    static long[] findStartPrefixes(PuzzleState state) {
+        List<Long> prefixes = new ArrayList<>();
+        for(int tube = 0; tube < state.getTubeCount(); tube++) {
+            for(int i = 1; i < state.count(tube); i++) {
+                if(state.getSegment(tube, i) != state.getSegment(tube, i-1)) {
+                    prefixes.add(state.getTube(tube) & (-1L >>> (Long.SIZE - (i+1) * PuzzleState.SEGMENT_BITS)));
+                }
+            }
+        }
+        long[] result = new long[prefixes.size()];
+        for(int i = 0; i < result.length; i++) {
+            result[i] = prefixes.get(i);
+        }
+        Arrays.sort(result);
+        return result;
+    }
+
+    /**
+     * Counts the most commands generateReversePours() could give, for sizing its array.
+     *
+     * @param state The sorted state to undo pours from.
+     * @return An upper bound on the number of commands.
+     */
+    private static int countReversePours(PuzzleState state) {
+        int tubeCount = state.getTubeCount();
+        return tubeCount * tubeCount * state.getCapacity();
+    }
+
+    /**
+     * Finds every command that a pour made by clicking could have made to reach the state,
+     * so that Command.reverse() gives each state one pour before it. Undoing the command moves
+     * count segments of the top colour of the "to" test tube back onto the "from" test tube.
+     * For that pour to have been allowed, and to have poured as many segments as it could,
+     * the "to" test tube must be left either empty or with the same top colour, and the "from"
+     * test tube must not already have that colour on top unless the "to" test tube is full.
+     * The test tubes are sorted, so test tubes with the same contents are next to each other
+     * and only the first of them is used. Undoing a pour of a whole test tube into an empty
+     * one only swaps the two around, so those are left out.
+     * Undoing a pour can put the colour on top of a different one, but a state can only be
+     * reached from the start if it has no more of each colour on top of each other colour
+     * than the start does, and only if every test tube with more than one colour matches the
+     * bottom of a test tube in the start, so any that do not are left out as well.
+     *
+     * @param state The sorted state to undo pours from.
+     * @param startBoundaries The boundaries of the start state from countBoundaries().
+     * @param boundaries Used to count the boundaries of the state. Must be the same size as
+     *                   startBoundaries.
+     * @param startPrefixes The bottoms of the test tubes in the start state from findStartPrefixes().
+     * @param commands Filled with the encoded command for each pour. Must have room for
+     *                 at least countReversePours() commands.
+     * @return The number of commands that were written.
+     */
+    private static int generateReversePours(PuzzleState state, int[] startBoundaries, int[] boundaries,
+                                            long[] startPrefixes, int[] commands) {
+        Arrays.fill(boundaries, 0);
+        addBoundaries(state, boundaries);
+        int count = 0;
+        int tubeCount = state.getTubeCount();
+        for(int to = 0; to < tubeCount; to++) {
+            long toTube = state.getTube(to);
+            if(toTube == 0 || (to > 0 && toTube == state.getTube(to-1))) continue;
+            int colour = state.topColour(to);
+            int topCount = state.countTopColour(to);
+            int toCount = state.count(to);
+            boolean isToFull = state.countRoom(to) == 0;
+            for(int from = 0; from < tubeCount; from++) {
+                if(from == to) continue;
+                long fromTube = state.getTube(from);
+                if(from > 0 && from-1 != to && fromTube == state.getTube(from-1)) continue;
+                int room = state.countRoom(from);
+                int fromColour = state.topColour(from);
+                if(room == 0 || (fromColour == colour && !isToFull)) continue;
+                if(fromColour != PuzzleState.EMPTY && fromColour != colour) {
+                    int boundary = fromColour * (PuzzleState.MAX_COLOUR + 1) + colour;
+                    long prefix = fromTube | ((long)colour << (state.count(from) * PuzzleState.SEGMENT_BITS));
+                    if(boundaries[boundary] >= startBoundaries[boundary]
+                            || Arrays.binarySearch(startPrefixes, prefix) < 0) continue;
+                }
+                int maxCount = Math.min(topCount, room);
+                for(int removeCount = 1; removeCount <= maxCount; removeCount++) {
+                    // Leaving a different colour on top of the "to" test tube was not allowed
+                    if(removeCount == topCount && topCount != toCount) continue;
+                    if(fromTube == 0 && removeCount == toCount) continue;
+                    commands[count++] = Command.encode(from, to, removeCount);
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Joins the path from the start to the meeting state with the path from there to the
+     * solved state, then replays it on the unsorted start state to find the real test tube
+     * indices for each move.
+     *
+     * @param start The state the search started from, with the test tubes in their real order.
+     * @param forwardNode The meeting state as reached by the forward search.
+     * @param backwardNode The meeting state as reached by the backward search.
+     * @return The moves in the order they need to be applied.
+     */
+    private static List<Move> buildPath(PuzzleState start, Node forwardNode, Node backwardNode) {
+        List<PuzzleState> sortedStates = new ArrayList<>();
+        for(Node current = forwardNode; current.parent != null; current = current.parent) {
+            sortedStates.add(current.state);
+        }
+        Collections.reverse(sortedStates);
+        for(Node current = backwardNode.parent; current != null; current = current.parent) {
+            sortedStates.add(current.state);
+        }
+
+        List<Move> path = new ArrayList<>();
+        PuzzleState current = new PuzzleState(start);
+        for(PuzzleState target : sortedStates) {
+            path.add(Solver.findMoveTo(current, target));
+        }
+        return path;
+    }
+}
@@ -1,60 +1,113 @@
-import java.awt.*;
-
 /**
  * Test Tube
  * Author: Peter Mitchell (2021)
  *
  * Command class:
- * A class to represent a single action that has been applied to the
- * test tubes. It has methods to both execute() the original command,
+ * A command represents a single action that has been applied to the test tubes.
+ * Commands are encoded into a single int so a history of them can be kept without
+ * creating any objects. There are methods to both execute() the original command,
  * and if the undo is applied the reverse() will undo that same command.
+ *
+ * The colour is not stored, because it is always the top colour of the test tube
+ * the segments are taken from when the command is executed or reversed.
  */
 public class Command {
     /**
-     * The colour that is to be applied.
+     * The number of bits used for each test tube index.
      */
-    private Color colour;
+    private static final int TUBE_BITS = 14;
     /**
-     * The test tube the colour is going to.
+     * The number of bits used for the count of segments transferred.
      */
-    private TestTube to;
+    private static final int COUNT_BITS = 4;
     /**
-     * The test tube the colour is coming from.
+     * The largest number of test tubes that can be referred to by a command.
      */
-    private TestTube from;
+    public static final int MAX_TUBES = 1 << TUBE_BITS;
     /**
-     * The count of colours that are being transferred.
+     * Mask to extract a test tube index.
      */
-    private int removeCount;
+    private static final int TUBE_MASK = MAX_TUBES - 1;
+    /**
+     * Mask to extract the count.
+     */
+    private static final int COUNT_MASK = (1 << COUNT_BITS) - 1;
 
     /**
-     * @param from The test tube the colour is coming from.
-     * @param to The test tube the colour is going to.
-     * @param colour The colour that is to be applied.
+     * Encodes a command.
+     *
+     * @param from Index of the test tube the colour is coming from.
+     * @param to Index of the test tube the colour is going to.
      * @param removeCount The count of colours that are being transferred.
+     * @return The encoded command.
+     */
+    public static int encode(int from, int to, int removeCount) {
+        return (from << (TUBE_BITS + COUNT_BITS)) | (to << COUNT_BITS) | removeCount;
+    }
+
+    /**
+     * Gets the test tube the colour is coming from.
+     *
+     * @param command The encoded command.
+     * @return Index of the test tube the colour is coming from.
+     */
+    public static int getFrom(int command) {
+        return (command >>> (TUBE_BITS + COUNT_BITS)) & TUBE_MASK;
+    }
+
+    /**
+     * Gets the test tube the colour is going to.
+     *
+     * @param command The encoded command.
+     * @return Index of the test tube the colour is going to.
+     */
+    public static int getTo(int command) {
+        return (command >>> COUNT_BITS) & TUBE_MASK;
+    }
+
+    /**
+     * Gets the count of colours that are being transferred.
+     *
+     * @param command The encoded command.
+     * @return The count of colours that are being transferred.
      */
-    public Command(TestTube from, TestTube to, Color colour, int removeCount) {
-        this.from = from;
-        this.to = to;
-        this.colour = colour;
-        this.removeCount = removeCount;
+    public static int getCount(int command) {
+        return command & COUNT_MASK;
     }
 
     /**
      * Executes the command by removing the specified number from the
      * "from" and transferring that same number of the colour to the "to".
+     *
+     * @param state The state to apply the command to.
+     * @param command The encoded command.
      */
-    public void execute() {
-        from.remove(removeCount);
-        to.add(removeCount, colour);
+    public static void execute(PuzzleState state, int command) {
+        transfer(state, getFrom(command), getTo(command), getCount(command));
     }
 
     /**
-     * Performs the reverse of command() by removing the specified number from the
+     * Performs the reverse of execute() by removing the specified number from the
      * "to" and transferring that same number of the colour to the "from".
+     *
+     * @param state The state to apply the command to.
+     * @param command The encoded command.
+     */
+    public static void reverse(PuzzleState state, int command) {
+        transfer(state, getTo(command), getFrom(command), getCount(command));
+    }
+
+    /**
+     * Moves segments of the top colour from one test tube to another without checking the pour rules.
+     *
+     * @param state The state to change.
+     * @param from Index of the test tube to take the segments from.
+     * @param to Index of the test tube to put the segments in.
+     * @param count The number of segments to move.
      */
-    public void reverse() {
-        to.remove(removeCount);
-        from.add(removeCount, colour);
+    private static void transfer(PuzzleState state, int from, int to, int count) {
+        int colour = state.topColour(from);
+        state.remove(from, count);
+        state.add(to, count, colour);
     }
 }
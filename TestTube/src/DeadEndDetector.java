@@ -0,0 +1,127 @@
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Test Tube
+ * Author: Peter Mitchell (2021)
+ *
+ * DeadEndDetector class:
+ * Tells when a puzzle has reached a state it can not be solved from. A state with no
+ * pours left is found straight away with a single pass over the test tubes. Otherwise
+ * a search for any solution is run on a background thread for up to CHECK_TIME_LIMIT,
+ * and is cancelled if the state changes first. Call update() whenever the state changes
+ * and getResult() to see what is known about it.
+ */
+public class DeadEndDetector {
+    /**
+     * The result while the state is still being checked, or when the check ran out of time.
+     */
+    public static final int UNKNOWN = 0;
+    /**
+     * The result when the state can still be solved.
+     */
+    public static final int SOLVABLE = 1;
+    /**
+     * The result when no pour is allowed from the state.
+     */
+    public static final int NO_POURS = 2;
+    /**
+     * The result when pours are allowed but none of them can lead to a solution.
+     */
+    public static final int UNSOLVABLE = 3;
+    /**
+     * The maximum time in milliseconds to search for a solution from each state.
+     */
+    public static final long CHECK_TIME_LIMIT = 2000;
+
+    /**
+     * Runs the checks one at a time.
+     */
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Dead end check");
+        thread.setDaemon(true);
+        return thread;
+    });
+    /**
+     * Called on the checking thread when a check finds a result.
+     */
+    private final Runnable onResult;
+    /**
+     * A copy of the state most recently passed to update(), or null before the first.
+     * Used by both threads.
+     */
+    private PuzzleState checkedState;
+    /**
+     * The result for checkedState. Used by both threads.
+     */
+    private int result = UNKNOWN;
+    /**
+     * The check that is running or waiting to run, or null if there is none.
+     */
+    private Future<?> check;
+
+    /**
+     * @param onResult Called on the checking thread each time a check finds a result.
+     */
+    public DeadEndDetector(Runnable onResult) {
+        this.onResult = onResult;
+    }
+
+    /**
+     * Starts checking a state unless it is the state already checked. Any check of a
+     * different state is cancelled. Should always be called from the same thread.
+     *
+     * @param state The current state of the puzzle.
+     */
+    public synchronized void update(PuzzleState state) {
+        if(checkedState != null && checkedState.equals(state)) return;
+        if(check != null) {
+            check.cancel(true);
+            check = null;
+        }
+        PuzzleState copy = new PuzzleState(state);
+        checkedState = copy;
+        if(state.isSolved()) {
+            result = SOLVABLE;
+        } else if(!state.hasLegalPour()) {
+            result = NO_POURS;
+        } else if(state.getTubeCount() > Puzzle.MAX_CHECKED_TUBES) {
+            // Large puzzles are too big to search in time
+            result = UNKNOWN;
+        } else {
+            result = UNKNOWN;
+            check = executor.submit(() -> checkSolvable(copy));
+        }
+    }
+
+    /**
+     * Gets what is known about whether a state can still be solved.
+     *
+     * @param state The state to get the result for.
+     * @return UNKNOWN, SOLVABLE, NO_POURS, or UNSOLVABLE. Always UNKNOWN if the state
+     *         is not the one last passed to update().
+     */
+    public synchronized int getResult(PuzzleState state) {
+        return checkedState != null && checkedState.equals(state) ? result : UNKNOWN;
+    }
+
+    /**
+     * Searches for any solution from a state and stores the result if the search finishes
+     * without being cancelled. Runs on the checking thread.
+     *
+     * @param state The state to check. It is not changed.
+     */
+    private void checkSolvable(PuzzleState state) {
+        Solver solver = new Solver();
+        boolean isSolvable = solver.isSolvable(state, CHECK_TIME_LIMIT);
+        // A cancelled check belongs to an old state, so its result is not kept
+        if(Thread.currentThread().isInterrupted() || (!isSolvable && solver.isLimitReached())) return;
+        // Only keep the result if the state has not changed since the check started
+        synchronized(this) {
+            if(checkedState != state) return;
+            result = isSolvable ? SOLVABLE : UNSOLVABLE;
+        }
+        onResult.run();
+    }
+}
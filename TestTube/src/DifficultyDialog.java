@@ -13,9 +13,20 @@ import java.awt.event.ActionListener;
  * Acts as a separate JFrame that can be made visible with show().
  * Allows access to changing the four different properties for
  * generating puzzles. The Start button can be pushed to begin a new
- * game with the specified difficulty settings.
+ * game with the specified difficulty settings. Ticking Large Board
+ * allows far more test tubes to be chosen. The Rating can ask for only
+ * puzzles that the DifficultyRating puts in one band.
  */
 public class DifficultyDialog implements ChangeListener, ActionListener {
+    /**
+     * The most test tubes that can be chosen normally.
+     */
+    public static final int MAX_TUBES = 20;
+    /**
+     * The most test tubes that can be chosen with Large Board ticked.
+     */
+    public static final int LARGE_BOARD_MAX_TUBES = 2000;
+
     /**
      * Reference to the Game Panel to create the name game.
      */
@@ -26,7 +37,7 @@ public class DifficultyDialog implements ChangeListener, ActionListener {
     private JFrame frame;
     /**
      * Slider to set the number of test tubes.
-     * Values 2 to 20, default 10.
+     * Values 2 to 20, or 2 to 2000 for a large board, default 10.
      */
     private JSlider tubesSlider;
     /**
@@ -44,6 +55,19 @@ public class DifficultyDialog implements ChangeListener, ActionListener {
      * Values 1 to maximum total colours. Default 4.
      */
     private JSlider coloursSlider;
+    /**
+     * Slider to set the number of segments that fit in each test tube.
+     * Values PuzzleState.MIN_CAPACITY to PuzzleState.MAX_CAPACITY. Default 4.
+     */
+    private JSlider capacitySlider;
+    /**
+     * Check box to allow a large board with many more test tubes.
+     */
+    private JCheckBox largeBoardCheckBox;
+    /**
+     * Drop down to choose the DifficultyRating band, with Any first and then each of the bands.
+     */
+    private JComboBox<String> ratingComboBox;
     /**
      * Label to show the number of tubes.
      */
@@ -60,6 +84,10 @@ public class DifficultyDialog implements ChangeListener, ActionListener {
      * Label to show the number of colours.
      */
     private JLabel coloursLabel;
+    /**
+     * Label to show the capacity of each tube.
+     */
+    private JLabel capacityLabel;
     /**
      * Button to start a new game with the specified settings.
      */
@@ -91,19 +119,24 @@ public class DifficultyDialog implements ChangeListener, ActionListener {
         loaded = false;
         JPanel panel = new JPanel();
         panel.setBackground(Color.BLACK);
-        panel.setPreferredSize(new Dimension(250, 210));
-        tubesSlider = createSlider(2,20, 10);
+        panel.setPreferredSize(new Dimension(250, 325));
+        tubesSlider = createSlider(2,MAX_TUBES, 10);
         emptySlider = createSlider(1,tubesSlider.getValue()/2, 4);
         emptyAtEndSlider = createSlider(0,emptySlider.getValue(), 2);
         coloursSlider = createSlider(1,Puzzle.possibleColours.length, 4);
+        capacitySlider = createSlider(PuzzleState.MIN_CAPACITY,PuzzleState.MAX_CAPACITY, PuzzleState.DEFAULT_CAPACITY);
         tubesLabel = createLabel("");
         emptyLabel = createLabel("");
         emptyAtEndLabel = createLabel("");
         coloursLabel =createLabel("");
+        capacityLabel = createLabel("");
         startButton = createButton("Start");
+        largeBoardCheckBox = createCheckBox("Large Board");
+        ratingComboBox = createRatingComboBox();
         loaded = true;
         updateText();
 
+        panel.add(largeBoardCheckBox);
         panel.add(tubesLabel);
         panel.add(tubesSlider);
         panel.add(emptyLabel);
@@ -112,6 +145,10 @@ public class DifficultyDialog implements ChangeListener, ActionListener {
         panel.add(emptyAtEndSlider);
         panel.add(coloursLabel);
         panel.add(coloursSlider);
+        panel.add(capacityLabel);
+        panel.add(capacitySlider);
+        panel.add(createLabel("Rating:"));
+        panel.add(ratingComboBox);
         panel.add(startButton);
 
         return panel;
@@ -160,6 +197,36 @@ public class DifficultyDialog implements ChangeListener, ActionListener {
         return button;
     }
 
+    /**
+     * Creates a check box with modified colours and listener attached.
+     *
+     * @param text The text to display next to the check box.
+     * @return The check box with everything configured.
+     */
+    private JCheckBox createCheckBox(String text) {
+        JCheckBox checkBox = new JCheckBox(text);
+        checkBox.setBackground(Color.BLACK);
+        checkBox.setForeground(new Color(255, 196, 0));
+        checkBox.addActionListener(this);
+        return checkBox;
+    }
+
+    /**
+     * Creates the drop down for choosing a DifficultyRating band with modified colours.
+     *
+     * @return The drop down with everything configured.
+     */
+    private JComboBox<String> createRatingComboBox() {
+        JComboBox<String> comboBox = new JComboBox<>();
+        comboBox.addItem("Any");
+        for(String bandName : DifficultyRating.BAND_NAMES) {
+            comboBox.addItem(bandName);
+        }
+        comboBox.setBackground(Color.BLACK);
+        comboBox.setForeground(new Color(255, 196, 0));
+        return comboBox;
+    }
+
     /**
      * Does nothing if not fully loaded yet.
      * Updates the maximum values for the empty sliders,
@@ -191,19 +258,28 @@ public class DifficultyDialog implements ChangeListener, ActionListener {
         emptyLabel.setText("Empty: " + emptySlider.getValue());
         emptyAtEndLabel.setText("Empty At End: " + emptyAtEndSlider.getValue());
         coloursLabel.setText("Colours: " + coloursSlider.getValue());
+        capacityLabel.setText("Tube Size: " + capacitySlider.getValue());
     }
 
     /**
-     * Triggered when the Start button is pressed.
-     * Applies the difficulty to the game panel to start a new game, and
-     * then hides this dialog.
+     * Triggered when the Start button is pressed or Large Board is changed.
+     * Changing Large Board changes the maximum number of test tubes.
+     * The Start button applies the difficulty to the game panel to start
+     * a new game, and then hides this dialog.
      *
      * @param e Information about the event.
      */
     @Override
     public void actionPerformed(ActionEvent e) {
+        if(e.getSource() == largeBoardCheckBox) {
+            tubesSlider.setMaximum(largeBoardCheckBox.isSelected() ? LARGE_BOARD_MAX_TUBES : MAX_TUBES);
+            return;
+        }
+        // Any is first, so the other choices line up with the bands after ANY_BAND
+        int band = DifficultyRating.ANY_BAND + ratingComboBox.getSelectedIndex();
         gamePanel.applyDifficulty(tubesSlider.getValue(),emptySlider.getValue(),
-                                    emptyAtEndSlider.getValue(),coloursSlider.getValue());
+                                    emptyAtEndSlider.getValue(),coloursSlider.getValue(),
+                                    capacitySlider.getValue(),band);
 
         frame.setVisible(false);
     }
@@ -0,0 +1,242 @@
+import java.util.List;
+import java.util.OptionalLong;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Test Tube
+ * Author: Peter Mitchell (2021)
+ *
+ * DifficultyRating class:
+ * Measures how hard a puzzle is from how the Solver had to work to solve it, rather than
+ * from the settings used to generate it. The score grows with the number of pours in the
+ * shortest solution, with how many choices there were at each step, and with how often
+ * choices led nowhere new, and is shared between the colours to sort. Scores are split
+ * into bands so puzzles of a consistent difficulty can be asked for. findSeedInBand()
+ * generates puzzles on several threads at once until one lands in the band asked for.
+ */
+public class DifficultyRating {
+    /**
+     * Passed instead of a band to accept a puzzle of any difficulty.
+     */
+    public static final int ANY_BAND = -1;
+    /**
+     * The names of the bands from easiest to hardest.
+     */
+    public static final String[] BAND_NAMES = {"Easy", "Medium", "Hard"};
+    /**
+     * The lowest score of each band after the first. With the default settings about a
+     * quarter to a half of random puzzles fall in each band.
+     */
+    private static final double[] BAND_MINIMUMS = {7, 9};
+    /**
+     * The most states the Solver may expand while rating a puzzle.
+     */
+    public static final int NODE_LIMIT = 200_000;
+
+    /**
+     * The number of pours in the shortest solution.
+     */
+    private final int optimalMoves;
+    /**
+     * The average number of distinct pours from each state the Solver expanded.
+     */
+    private final double averageBranchingFactor;
+    /**
+     * The number of expanded states that led to no new states.
+     */
+    private final int deadEndCount;
+    /**
+     * The number of states the Solver expanded.
+     */
+    private final int expandedCount;
+    /**
+     * The number of test tubes that are full when the puzzle is solved.
+     */
+    private final int groupCount;
+    /**
+     * The combined difficulty score.
+     */
+    private final double score;
+
+    /**
+     * @param optimalMoves The number of pours in the shortest solution.
+     * @param averageBranchingFactor The average number of distinct pours from each expanded state.
+     * @param deadEndCount The number of expanded states that led to no new states.
+     * @param expandedCount The number of states the Solver expanded.
+     * @param groupCount The number of test tubes that are full when the puzzle is solved.
+     */
+    public DifficultyRating(int optimalMoves, double averageBranchingFactor, int deadEndCount,
+                            int expandedCount, int groupCount) {
+        this.optimalMoves = optimalMoves;
+        this.averageBranchingFactor = averageBranchingFactor;
+        this.deadEndCount = deadEndCount;
+        this.expandedCount = expandedCount;
+        this.groupCount = groupCount;
+        // Each pour is a choice between the branches, and dead ends make the wrong choices costly.
+        // Sharing it between the colour groups keeps the bands meaningful for any number of test tubes.
+        double deadEndFraction = expandedCount == 0 ? 0 : deadEndCount / (double)expandedCount;
+        double choiceBits = optimalMoves * Math.log(1 + averageBranchingFactor) / Math.log(2);
+        score = choiceBits * (1 + deadEndFraction) / Math.max(groupCount, 1);
+    }
+
+    /**
+     * Solves a puzzle and rates how hard it was.
+     *
+     * @param state The starting state of the puzzle. It is not changed.
+     * @return The rating, or null if no solution was found within NODE_LIMIT.
+     */
+    public static DifficultyRating rate(PuzzleState state) {
+        Solver solver = new Solver(NODE_LIMIT);
+        List<Move> solution = solver.solve(state);
+        if(solution == null) return null;
+        int segmentCount = 0;
+        for(int tube = 0; tube < state.getTubeCount(); tube++) {
+            segmentCount += state.count(tube);
+        }
+        return new DifficultyRating(solution.size(), solver.getAverageBranchingFactor(), solver.getDeadEndCount(),
+                                    solver.getExpandedCount(), segmentCount / state.getCapacity());
+    }
+
+    /**
+     * Generates puzzles from random seeds on several threads until one is found that is
+     * solvable and rated in a band. The puzzle can be created again with Puzzle.newPuzzle(seed).
+     *
+     * @param band The index of the band in BAND_NAMES, or ANY_BAND.
+     * @param tubeCount The total number of test tubes to include.
+     * @param emptyCount The number of test tubes that will be empty at the end of the solution.
+     * @param emptyAtEndCount The number that begin empty at the end.
+     * @param colourCount The number of different colours that can be randomly placed.
+     * @param capacity The number of segments that fit in each test tube.
+     * @param timeBudgetMillis The maximum time to search for in milliseconds.
+     * @param threadCount The number of threads to search with.
+     * @return The seed of a puzzle in the band, or empty if none was found in time.
+     */
+    public static OptionalLong findSeedInBand(int band, int tubeCount, int emptyCount, int emptyAtEndCount,
+                                              int colourCount, int capacity, long timeBudgetMillis,
+                                              int threadCount) {
+        long deadline = System.nanoTime() + timeBudgetMillis * 1_000_000L;
+        AtomicLong nextSeed = new AtomicLong(System.nanoTime());
+        AtomicReference<Long> found = new AtomicReference<>();
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount, runnable -> {
+            Thread thread = new Thread(runnable, "Difficulty search");
+            thread.setDaemon(true);
+            return thread;
+        });
+        for(int i = 0; i < threadCount; i++) {
+            executor.execute(() -> {
+                while(found.get() == null && System.nanoTime() < deadline && !Thread.currentThread().isInterrupted()) {
+                    long seed = nextSeed.getAndIncrement();
+                    PuzzleState state = PuzzleGenerator.generate(seed, tubeCount, emptyCount, emptyAtEndCount,
+                                                                 colourCount, capacity);
+                    DifficultyRating rating = rate(state);
+                    if(rating != null && (band == ANY_BAND || rating.getBand() == band)) {
+                        found.compareAndSet(null, seed);
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        try {
+            // Ratings already started when time runs out are abandoned rather than waited for
+            executor.awaitTermination(timeBudgetMillis, TimeUnit.MILLISECONDS);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        executor.shutdownNow();
+        Long seed = found.get();
+        return seed == null ? OptionalLong.empty() : OptionalLong.of(seed);
+    }
+
+    /**
+     * Finds the band a score falls in.
+     *
+     * @param score A difficulty score.
+     * @return The index of the band in BAND_NAMES.
+     */
+    public static int bandOf(double score) {
+        int band = 0;
+        while(band < BAND_MINIMUMS.length && score >= BAND_MINIMUMS[band]) {
+            band++;
+        }
+        return band;
+    }
+
+    /**
+     * Gets the band this rating falls in.
+     *
+     * @return The index of the band in BAND_NAMES.
+     */
+    public int getBand() {
+        return bandOf(score);
+    }
+
+    /**
+     * Gets the number of pours in the shortest solution.
+     *
+     * @return The optimal number of moves.
+     */
+    public int getOptimalMoves() {
+        return optimalMoves;
+    }
+
+    /**
+     * Gets the average number of distinct pours from each state the Solver expanded.
+     *
+     * @return The average branching factor.
+     */
+    public double getAverageBranchingFactor() {
+        return averageBranchingFactor;
+    }
+
+    /**
+     * Gets the number of expanded states that led to no new states.
+     *
+     * @return The number of dead ends.
+     */
+    public int getDeadEndCount() {
+        return deadEndCount;
+    }
+
+    /**
+     * Gets the number of states the Solver expanded.
+     *
+     * @return The number of expanded states.
+     */
+    public int getExpandedCount() {
+        return expandedCount;
+    }
+
+    /**
+     * Gets the number of test tubes that are full when the puzzle is solved.
+     *
+     * @return The number of colour groups.
+     */
+    public int getGroupCount() {
+        return groupCount;
+    }
+
+    /**
+     * Gets the combined difficulty score.
+     *
+     * @return The score for each colour group, where higher is harder.
+     */
+    public double getScore() {
+        return score;
+    }
+
+    /**
+     * Gets a summary of the rating.
+     *
+     * @return A string with the band, score, and statistics.
+     */
+    @Override
+    public String toString() {
+        return String.format("%s (%.1f): %d moves, %.2f branching, %d dead ends of %d states",
+                             BAND_NAMES[getBand()], score, optimalMoves, averageBranchingFactor,
+                             deadEndCount, expandedCount);
+    }
+}
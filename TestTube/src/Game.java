@@ -1,6 +1,12 @@
 import javax.swing.*;
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 
 /**
  * Test Tube
@@ -8,16 +14,101 @@ import java.awt.event.KeyListener;
  *
  * Game class:
  * Defines the entry point for the game by creating the frame,
- * and populating it with a GamePanel.
+ * and populating it with a GamePanel. The game is saved when the
+ * window is closed and continued the next time the game starts.
  */
 public class Game implements KeyListener {
     /**
      * Entry point for the application to create an instance of the Game class.
+     * Passing --active draws the game with an ActiveRenderer and animates moves.
+     * Passing --journal with a file records every move in a MoveJournal.
+     * The game is saved to SavedGame.getDefaultPath(), or the file after --save, and
+     * continued from there unless --new is passed. Passing --metrics-port with a port turns on
+     * Metrics and serves them on that port.
      *
-     * @param args Not used.
+     * @param args Optionally --active, --journal followed by a file, --save followed by a file, --new,
+     *             and --metrics-port followed by a port.
      */
     public static void main(String[] args) {
-        Game game = new Game();
+        boolean activeRendering = false;
+        String journalFile = null;
+        Path saveFile = SavedGame.getDefaultPath();
+        boolean resume = true;
+        for(int i = 0; i < args.length; i++) {
+            switch(args[i]) {
+                case "--active": activeRendering = true; break;
+                case "--journal": journalFile = args[++i]; break;
+                case "--save": saveFile = Paths.get(args[++i]); break;
+                case "--new": resume = false; break;
+                case "--metrics-port": startMetrics(Integer.parseInt(args[++i])); break;
+                default: throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        MoveJournal journal = openJournal(journalFile);
+        boolean active = activeRendering;
+        Path save = saveFile;
+        boolean resumeSave = resume;
+        SwingUtilities.invokeLater(() -> {
+            Game game = new Game(active, save, resumeSave);
+            if(journal != null) {
+                game.gamePanel.setJournal(journal);
+            }
+        });
+    }
+
+    /**
+     * Turns on Metrics and serves them on a port. This must happen before anything records a
+     * metric, because whether metrics are recorded is fixed when Metrics is first used.
+     *
+     * @param port The port to serve /metrics on.
+     */
+    private static void startMetrics(int port) {
+        System.setProperty("testtube.metrics", "true");
+        try {
+            Metrics.startServer(port);
+        } catch(IOException e) {
+            System.err.println("Could not serve metrics: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Loads the game saved in a file if there is one.
+     *
+     * @param saveFile The file the game was saved to, or null.
+     * @return The saved game, or null if there is none or it could not be loaded.
+     */
+    private static Puzzle loadSavedGame(Path saveFile) {
+        if(saveFile == null || !Files.exists(saveFile)) return null;
+        try {
+            return SavedGame.load(saveFile, GamePanel.PANEL_WIDTH);
+        } catch(IOException e) {
+            System.err.println("Could not continue the saved game: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Opens a journal that is written on a schedule and closed when the game exits.
+     *
+     * @param journalFile The file to open, or null for no journal.
+     * @return The journal, or null if there is none or it could not be opened.
+     */
+    private static MoveJournal openJournal(String journalFile) {
+        if(journalFile == null) return null;
+        try {
+            MoveJournal journal = new MoveJournal(Paths.get(journalFile), true);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    journal.close();
+                } catch(IOException e) {
+                    System.err.println("Could not close the move journal: " + e.getMessage());
+                }
+            }));
+            return journal;
+        } catch(IOException e) {
+            System.err.println("Could not open the move journal: " + e.getMessage());
+            return null;
+        }
     }
 
     /**
@@ -30,17 +121,48 @@ public class Game implements KeyListener {
      * and makes everything visible.
      */
     public Game() {
+        this(false, null, false);
+    }
+
+    /**
+     * Creates the JFrame with a GamePanel, attaches a key listener, and makes everything visible.
+     * With active rendering the GamePanel is drawn by an ActiveRenderer every frame with
+     * animations, otherwise the GamePanel is added to the frame and only drawn when it changes.
+     *
+     * The game is saved to the save file when the window is closed.
+     *
+     * @param activeRendering True to draw with an ActiveRenderer.
+     * @param saveFile The file to save the game to, or null to not save.
+     * @param resume True to continue the game in the save file if there is one.
+     */
+    public Game(boolean activeRendering, Path saveFile, boolean resume) {
         JFrame frame = new JFrame("Test Tube");
         frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         frame.setResizable(false);
 
-        gamePanel = new GamePanel();
-        frame.getContentPane().add(gamePanel);
-
+        gamePanel = new GamePanel(resume ? loadSavedGame(saveFile) : null);
+        gamePanel.setSaveFile(saveFile);
+        frame.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                gamePanel.saveGame();
+            }
+        });
+        ActiveRenderer activeRenderer = null;
+        if(activeRendering) {
+            gamePanel.enableAnimation();
+            activeRenderer = new ActiveRenderer(gamePanel);
+            frame.getContentPane().add(activeRenderer);
+        } else {
+            frame.getContentPane().add(gamePanel);
+        }
 
         frame.addKeyListener(this);
         frame.pack();
         frame.setVisible(true);
+        if(activeRenderer != null) {
+            activeRenderer.start();
+        }
     }
 
     /**
@@ -0,0 +1,97 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Test Tube
+ * Author: Peter Mitchell (2021)
+ *
+ * GameEvents class:
+ * The JDK Flight Recorder events for the engine and the interface. Each event is created,
+ * begun and committed around the work it times. When no recording has them enabled the
+ * JIT compiler removes the event objects, so they cost close to nothing.
+ * Record with java -XX:StartFlightRecording:filename=game.jfr and look for the Test Tube category.
+ */
+public class GameEvents {
+    /**
+     * Generating a single puzzle with Puzzle.newPuzzle().
+     */
+    @Name("testtube.NewPuzzle")
+    @Label("New Puzzle")
+    @Category("Test Tube")
+    @Description("Generating a single puzzle")
+    public static class NewPuzzleEvent extends Event {
+        /**
+         * The number of test tubes.
+         */
+        @Label("Tubes")
+        public int tubeCount;
+        /**
+         * The number of different colours that can be placed.
+         */
+        @Label("Colours")
+        public int colourCount;
+    }
+
+    /**
+     * Generating puzzles with Puzzle.newSolvablePuzzle() until one is solvable.
+     */
+    @Name("testtube.SolvablePuzzle")
+    @Label("Solvable Puzzle")
+    @Category("Test Tube")
+    @Description("Generating puzzles until one can be solved")
+    public static class SolvablePuzzleEvent extends Event {
+        /**
+         * The number of puzzles generated.
+         */
+        @Label("Attempts")
+        public int attempts;
+        /**
+         * True if the puzzle that was kept is known to be solvable.
+         */
+        @Label("Solvable")
+        public boolean solvable;
+    }
+
+    /**
+     * A pour, whether it was allowed or not.
+     */
+    @Name("testtube.Pour")
+    @Label("Pour")
+    @Category("Test Tube")
+    @Description("Pouring from one test tube into another")
+    public static class PourEvent extends Event {
+        /**
+         * Index of the test tube poured from.
+         */
+        @Label("From")
+        public int from;
+        /**
+         * Index of the test tube poured into.
+         */
+        @Label("To")
+        public int to;
+        /**
+         * True if the pour was allowed.
+         */
+        @Label("Allowed")
+        public boolean allowed;
+    }
+
+    /**
+     * Drawing everything on the GamePanel.
+     */
+    @Name("testtube.Paint")
+    @Label("Paint")
+    @Category("Test Tube")
+    @Description("Drawing the game panel")
+    public static class PaintEvent extends Event {
+        /**
+         * True if the game was drawn by the ActiveRenderer.
+         */
+        @Label("Active")
+        public boolean active;
+    }
+}
@@ -3,6 +3,14 @@ import java.awt.*;
 import java.awt.event.KeyEvent;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
+import java.awt.event.MouseWheelEvent;
+import java.awt.event.MouseWheelListener;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Test Tube
@@ -11,8 +19,17 @@ import java.awt.event.MouseListener;
  * GamePanel class:
  * The primary driver of game interaction. Manages the buttons, and
  * controls the puzzle by passing it the mouse interactions.
+ * The puzzle is shown through a view that can be scrolled and zoomed
+ * so puzzles with far more test tubes than fit on the panel can be played.
+ * After a move only the test tubes that changed are drawn again, and the
+ * title and buttons are kept in an image that is only redrawn when a
+ * button is enabled or disabled. Alternatively an ActiveRenderer can draw
+ * the panel every frame with animation enabled. Hints are found by a
+ * HintService in the background while the player thinks, so asking for
+ * one usually shows it straight away. A DeadEndDetector checks each new
+ * state so the player can be told when the puzzle can no longer be solved.
  */
-public class GamePanel extends JPanel implements MouseListener {
+public class GamePanel extends JPanel implements MouseListener, MouseWheelListener {
     /**
      * Width of the panel.
      */
@@ -21,6 +38,67 @@ public class GamePanel extends JPanel implements MouseListener {
      * Height of the panel.
      */
     public static final int PANEL_HEIGHT = 500;
+    /**
+     * The maximum time in milliseconds to spend looking for a solvable puzzle.
+     */
+    public static final int GENERATION_TIME_BUDGET = 500;
+    /**
+     * The smallest zoom allowed, showing the puzzle at a tenth of its size.
+     */
+    public static final double MIN_ZOOM = 0.1;
+    /**
+     * The largest zoom allowed.
+     */
+    public static final double MAX_ZOOM = 2.0;
+    /**
+     * How much the zoom changes for each step of the mouse wheel or key press.
+     */
+    private static final double ZOOM_STEP = 1.25;
+    /**
+     * The distance in pixels on screen that the view moves for each step of scrolling.
+     */
+    private static final int SCROLL_STEP = 60;
+    /**
+     * The height of the area at the top of the panel with the title and buttons.
+     */
+    private static final int CHROME_HEIGHT = 80;
+    /**
+     * The height of the bar at the bottom of the panel telling the player they are stuck.
+     */
+    private static final int DEAD_END_BAR_HEIGHT = 40;
+
+    /**
+     * Font used for the buttons and game over message.
+     */
+    private static final Font BUTTON_FONT = new Font("Arial", Font.BOLD, 20);
+    /**
+     * Font used for the title.
+     */
+    private static final Font TITLE_FONT = new Font("Arial", Font.BOLD, 40);
+    /**
+     * Background colour of enabled buttons and the game over message.
+     */
+    private static final Color BUTTON_COLOUR = new Color(141, 24, 24);
+    /**
+     * Background colour of disabled buttons.
+     */
+    private static final Color DISABLED_BUTTON_COLOUR = new Color(88, 88, 88);
+    /**
+     * Border colour of buttons and the game over message.
+     */
+    private static final Color BORDER_COLOUR = new Color(255, 34, 34);
+    /**
+     * Colour of text and the scroll bars.
+     */
+    private static final Color TEXT_COLOUR = new Color(255, 196, 0);
+    /**
+     * Colour of the title.
+     */
+    private static final Color TITLE_COLOUR = new Color(201, 8, 8);
+    /**
+     * Colour drawn over the puzzle when the game is over.
+     */
+    private static final Color GAME_OVER_OVERLAY_COLOUR = new Color(99, 99, 99, 179);
 
     /**
      * Reference to the puzzle that is currently active.
@@ -55,88 +133,337 @@ public class GamePanel extends JPanel implements MouseListener {
      * The undo button that can be clicked during the puzzle when there is at least one move that can be undone.
      */
     private Rectangle undoButton;
+    /**
+     * The redo button that can be clicked during the puzzle when there is at least one undone move to redo.
+     */
+    private Rectangle redoButton;
+    /**
+     * The hint button that can be clicked during the puzzle to show the best next pour.
+     */
+    private Rectangle hintButton;
+
+    /**
+     * The position in the puzzle layout shown at the top left corner of the panel.
+     */
+    private double viewX, viewY;
+    /**
+     * The scale the puzzle is drawn at, where 1 is the original size.
+     */
+    private double zoom;
+
+    /**
+     * The title and buttons drawn over a transparent background.
+     */
+    private BufferedImage chromeImage;
+    /**
+     * The result of getChromeState() when the chromeImage was drawn, or -1 if it has not been drawn.
+     */
+    private int chromeImageState = -1;
+    /**
+     * Animates pours and selections when the panel is drawn by an ActiveRenderer, otherwise null.
+     */
+    private TubeAnimator animator;
+    /**
+     * Finds the best next pour for the puzzle in the background.
+     */
+    private final HintService hintService;
+    /**
+     * A copy of the puzzle state when a hint was asked for, or null if no hint has been asked for
+     * since the last pour.
+     */
+    private PuzzleState hintState;
+    /**
+     * The hint being shown for hintState, or null if there is none yet.
+     */
+    private Move shownHint;
+    /**
+     * Checks each new state of the puzzle for a dead end in the background.
+     */
+    private final DeadEndDetector deadEndDetector;
+    /**
+     * The DeadEndDetector result that the dead end bar was last drawn for.
+     */
+    private int shownDeadEnd = DeadEndDetector.UNKNOWN;
+    /**
+     * Searches for new solvable puzzles one at a time, so the search never blocks input or drawing.
+     */
+    private final ExecutorService puzzleGenerator = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Puzzle generation");
+        thread.setDaemon(true);
+        return thread;
+    });
+    /**
+     * The search for the next puzzle that is running or waiting to run, or null if there is none.
+     */
+    private Future<?> pendingGeneration;
+    /**
+     * Counts the requests for a new puzzle, so only the puzzle from the latest one is shown.
+     */
+    private int generationCount;
+    /**
+     * The file the game is saved to when closed, or null to not save.
+     */
+    private Path saveFile;
 
     /**
      * Initialises the game with a default puzzle ready for interaction.
      */
     public GamePanel() {
+        this(null);
+    }
+
+    /**
+     * Initialises the game ready for interaction, continuing a saved game if there is one.
+     *
+     * @param resumedPuzzle A game loaded with SavedGame laid out for PANEL_WIDTH, or null to start a default puzzle.
+     */
+    public GamePanel(Puzzle resumedPuzzle) {
         setPreferredSize(new Dimension(PANEL_WIDTH,PANEL_HEIGHT));
         setBackground(Color.BLACK);
-        puzzle = new Puzzle(10, 4, 2, 4);
-        puzzle.newPuzzle();
+        if(resumedPuzzle != null) {
+            puzzle = resumedPuzzle;
+        } else {
+            // The panel is not shown yet, so the first puzzle is found before it is
+            puzzle = new Puzzle(10, 4, 2, 4, PANEL_WIDTH);
+            puzzle.newSolvablePuzzle(GENERATION_TIME_BUDGET);
+        }
         addMouseListener(this);
+        addMouseWheelListener(this);
+        resetView();
 
         difficultyDialog = new DifficultyDialog(this);
         nextButton = new Rectangle(PANEL_WIDTH/2-30,PANEL_HEIGHT/2+40, 60, 30);
         restartButton = new Rectangle(10,10,80,30);
         changeDifficultyButton = new Rectangle(100, 10, 100, 30);
         undoButton = new Rectangle(210, 10, 80, 30);
-        gameOver = false;
+        redoButton = new Rectangle(300, 10, 80, 30);
+        hintButton = new Rectangle(390, 10, 80, 30);
+        gameOver = puzzle.gameWon();
+        hintService = new HintService(() -> SwingUtilities.invokeLater(this::hintFound));
+        hintService.update(puzzle.getState());
+        deadEndDetector = new DeadEndDetector(() -> SwingUtilities.invokeLater(this::repaintChanges));
+        deadEndDetector.update(puzzle.getState());
     }
 
     /**
-     * Pressing Escape will quit, R will trigger the reset action, and D will show the difficulty dialog.
+     * Pressing Escape will quit, R will trigger the reset action, D will show the difficulty dialog,
+     * Z will undo, Y will redo, and H will show a hint. The arrow keys scroll the view, plus and minus zoom in and out,
+     * and Home returns the view to the start.
      *
      * @param keyCode The key that was pressed.
      */
     public void handleInput(int keyCode) {
         if(keyCode == KeyEvent.VK_ESCAPE) {
+            saveGame();
             System.exit(0);
         } else if(keyCode == KeyEvent.VK_R) {
             puzzle.reset();
             repaint();
+            updateBackgroundChecks();
         } else if(keyCode == KeyEvent.VK_D) {
             difficultyDialog.show();
+        } else if(keyCode == KeyEvent.VK_Z && !gameOver) {
+            puzzle.undo();
+            repaintChanges();
+        } else if(keyCode == KeyEvent.VK_Y && !gameOver) {
+            puzzle.redo();
+            checkGameWon();
+            repaintChanges();
+        } else if(keyCode == KeyEvent.VK_H && !gameOver) {
+            showHint();
+        } else if(keyCode == KeyEvent.VK_LEFT) {
+            scrollView(-SCROLL_STEP, 0);
+        } else if(keyCode == KeyEvent.VK_RIGHT) {
+            scrollView(SCROLL_STEP, 0);
+        } else if(keyCode == KeyEvent.VK_UP) {
+            scrollView(0, -SCROLL_STEP);
+        } else if(keyCode == KeyEvent.VK_DOWN) {
+            scrollView(0, SCROLL_STEP);
+        } else if(keyCode == KeyEvent.VK_EQUALS || keyCode == KeyEvent.VK_PLUS || keyCode == KeyEvent.VK_ADD) {
+            zoomView(ZOOM_STEP, PANEL_WIDTH/2, PANEL_HEIGHT/2);
+        } else if(keyCode == KeyEvent.VK_MINUS || keyCode == KeyEvent.VK_SUBTRACT) {
+            zoomView(1 / ZOOM_STEP, PANEL_WIDTH/2, PANEL_HEIGHT/2);
+        } else if(keyCode == KeyEvent.VK_HOME) {
+            resetView();
+            repaint();
         }
     }
 
     /**
-     * Draws the puzzle, any game over message, all the buttons, and the title.
+     * Draws the visible part of the puzzle, any game over message, all the buttons, and the title.
+     * Only the test tubes inside the area being repainted are drawn.
      *
      * @param g Reference to the Graphics object for rendering.
      */
     public void paint(Graphics g) {
         super.paint(g);
-        puzzle.paint(g);
+        drawScene(g);
+    }
+
+    /**
+     * Sets the file the game is saved to by saveGame().
+     *
+     * @param saveFile The file to save to, or null to not save.
+     */
+    public void setSaveFile(Path saveFile) {
+        this.saveFile = saveFile;
+    }
+
+    /**
+     * Saves the current game with SavedGame if a save file has been set.
+     * A game that can not be saved is reported rather than stopping the game from closing.
+     */
+    public void saveGame() {
+        if(saveFile == null) return;
+        try {
+            SavedGame.save(puzzle, saveFile);
+        } catch(IOException e) {
+            System.err.println("Could not save the game: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Records every pour, undo, and reset in a journal, including in puzzles started later.
+     *
+     * @param journal The journal to record moves in.
+     */
+    public void setJournal(MoveJournal journal) {
+        puzzle.setJournal(journal);
+    }
+
+    /**
+     * Turns on animation of pours and selections. Used when the panel is drawn by an
+     * ActiveRenderer, since animations need the panel to be drawn every frame.
+     */
+    public void enableAnimation() {
+        animator = new TubeAnimator(puzzle);
+    }
+
+    /**
+     * Moves any animations forward.
+     *
+     * @param seconds The time in seconds to move forward by.
+     */
+    public void update(double seconds) {
+        if(animator != null) {
+            animator.update(seconds);
+        }
+    }
+
+    /**
+     * Draws a whole frame of the game, including the background, for an ActiveRenderer.
+     *
+     * @param g Reference to the Graphics object for rendering.
+     */
+    public void render(Graphics g) {
+        g.setColor(getBackground());
+        g.fillRect(0, 0, PANEL_WIDTH, PANEL_HEIGHT);
+        drawScene(g);
+    }
+
+    /**
+     * Draws everything that goes over the background.
+     *
+     * @param g Reference to the Graphics object for rendering.
+     */
+    private void drawScene(Graphics g) {
+        GameEvents.PaintEvent event = new GameEvents.PaintEvent();
+        event.begin();
+        long startTime = Metrics.startTimer();
+        drawPuzzle(g);
+        drawScrollBars(g);
         if(gameOver) {
             drawGameOver(g);
+        } else {
+            drawDeadEnd(g);
+        }
+        drawChrome(g);
+        Metrics.PAINT_SECONDS.observeSince(startTime);
+        if(event.shouldCommit()) {
+            event.active = animator != null;
+            event.commit();
         }
-        drawButton(g, "Restart", restartButton, !gameOver);
-        drawButton(g, "Difficulty", changeDifficultyButton, true);
-        drawButton(g, "Undo", undoButton, !gameOver && puzzle.isUndoAvailable());
-        drawTitle(g);
     }
 
     /**
-     * Creates a new puzzle object with the specified properties and removes the old one.
+     * Creates a new puzzle object with the specified properties and removes the old one once
+     * a solvable puzzle has been found in the background.
      *
      * @param tubeCount The total number of test tubes to include.
      * @param emptyCount The number of test tubes that will be empty at the end of the solution.
      * @param emptyAtEndCount The number that begin empty at the end.
      * @param colourCount The number of different colours that can be randomly placed.
+     * @param capacity The number of segments that fit in each test tube.
+     * @param band The DifficultyRating band that puzzles must be in, or DifficultyRating.ANY_BAND.
      */
-    public void applyDifficulty(int tubeCount, int emptyCount, int emptyAtEndCount, int colourCount) {
-        Puzzle newPuzzle = new Puzzle(tubeCount, emptyCount, emptyAtEndCount, colourCount);
-        newPuzzle.newPuzzle();
-        puzzle = newPuzzle;
-        gameOver = false;
-        repaint();
+    public void applyDifficulty(int tubeCount, int emptyCount, int emptyAtEndCount, int colourCount,
+                                int capacity, int band) {
+        Puzzle newPuzzle = new Puzzle(tubeCount, emptyCount, emptyAtEndCount, colourCount, capacity, PANEL_WIDTH);
+        newPuzzle.setDifficultyBand(band);
+        newPuzzle.setJournal(puzzle.getJournal());
+        generatePuzzle(newPuzzle);
     }
 
     /**
-     * Clears any game over state and generates a new puzzle with the current settings.
+     * Generates a new solvable puzzle with the current settings in the background, then
+     * clears any game over state and shows it.
      */
     public void nextPuzzle() {
-        puzzle.newPuzzle();
+        generatePuzzle(puzzle);
+    }
+
+    /**
+     * Searches for a solvable puzzle with the settings of a puzzle on the generation thread, using
+     * a copy so the puzzle being shown is not changed. The puzzle is then generated again from
+     * the seed that was found and shown on the event thread. Any earlier request that has not
+     * been shown yet is dropped.
+     *
+     * @param target The puzzle to generate the new puzzle in and show.
+     */
+    private void generatePuzzle(Puzzle target) {
+        int request = ++generationCount;
+        if(pendingGeneration != null) {
+            pendingGeneration.cancel(false);
+        }
+        Puzzle search = new Puzzle(target.getTubeCount(), target.getEmptyCount(), target.getEmptyAtEndCount(),
+                                   target.getColourCount(), target.getCapacity(), PANEL_WIDTH);
+        search.setDifficultyBand(target.getDifficultyBand());
+        pendingGeneration = puzzleGenerator.submit(() -> {
+            search.newSolvablePuzzle(GENERATION_TIME_BUDGET);
+            long seed = search.getSeed();
+            SwingUtilities.invokeLater(() -> {
+                if(request == generationCount) showPuzzle(target, seed);
+            });
+        });
+    }
+
+    /**
+     * Replaces the puzzle being shown with a newly generated one and clears any game over state.
+     *
+     * @param newPuzzle The puzzle to show, which may be the current one.
+     * @param seed The seed of the solvable puzzle to generate in it.
+     */
+    private void showPuzzle(Puzzle newPuzzle, long seed) {
+        pendingGeneration = null;
+        newPuzzle.newPuzzle(seed);
+        puzzle = newPuzzle;
+        if(animator != null) {
+            animator = new TubeAnimator(puzzle);
+        }
         gameOver = false;
+        resetView();
+        repaint();
+        updateBackgroundChecks();
     }
 
     /**
      * Checks for interaction with the buttons. Difficulty button can be left clicked at any time
      * to show the dialog. When the game is over the Next button can be clicked to create a new
-     * puzzle with the same settings. When the game is still running, the restart and undo buttons
+     * puzzle with the same settings. When the game is still running, the restart, undo, redo, and hint buttons
      * can be left clicked, the test tubes can be left clicked, or right click can be used to
-     * clear the current tube selection.
+     * clear the current tube selection. Clicks on test tubes are converted from the panel to
+     * the puzzle layout using the current view. Only the parts of the panel that changed are
+     * repainted.
      *
      * @param e Information about the mouse event.
      */
@@ -156,19 +483,304 @@ public class GamePanel extends JPanel implements MouseListener {
                 repaint();
             } else if(undoButton.isPositionInside(mousePosition)) {
                 puzzle.undo();
+            } else if(redoButton.isPositionInside(mousePosition)) {
+                puzzle.redo();
+                checkGameWon();
+            } else if(hintButton.isPositionInside(mousePosition)) {
+                showHint();
             } else {
-                puzzle.handleClick(mousePosition);
-                if (puzzle.gameWon()) {
-                    gameOver = true;
-                }
+                puzzle.handleClick(toLayoutPosition(mousePosition));
+                checkGameWon();
             }
         } else if (e.getButton() == MouseEvent.BUTTON3) {
             puzzle.clearSelection();
         }
 
+        repaintChanges();
+    }
+
+    /**
+     * Scrolls the view with the mouse wheel. Holding Shift scrolls sideways, and
+     * holding Control zooms in or out around the mouse.
+     *
+     * @param e Information about the mouse wheel event.
+     */
+    @Override
+    public void mouseWheelMoved(MouseWheelEvent e) {
+        int steps = e.getWheelRotation();
+        if(e.isControlDown()) {
+            zoomView(Math.pow(ZOOM_STEP, -steps), e.getX(), e.getY());
+        } else if(e.isShiftDown()) {
+            scrollView(steps * SCROLL_STEP, 0);
+        } else {
+            scrollView(0, steps * SCROLL_STEP);
+        }
+    }
+
+    /**
+     * Shows the start of the puzzle at its original size.
+     */
+    private void resetView() {
+        viewX = 0;
+        viewY = 0;
+        zoom = 1;
+    }
+
+    /**
+     * Moves the view by an amount measured on screen, keeping it inside the puzzle.
+     *
+     * @param dx Distance to move right in pixels.
+     * @param dy Distance to move down in pixels.
+     */
+    private void scrollView(int dx, int dy) {
+        viewX += dx / zoom;
+        viewY += dy / zoom;
+        clampView();
         repaint();
     }
 
+    /**
+     * Changes the zoom while keeping the same part of the puzzle under a point on the panel.
+     *
+     * @param factor The amount to multiply the zoom by.
+     * @param anchorX X coordinate on the panel that stays fixed.
+     * @param anchorY Y coordinate on the panel that stays fixed.
+     */
+    private void zoomView(double factor, int anchorX, int anchorY) {
+        double newZoom = Math.max(MIN_ZOOM, Math.min(MAX_ZOOM, zoom * factor));
+        viewX += anchorX / zoom - anchorX / newZoom;
+        viewY += anchorY / zoom - anchorY / newZoom;
+        zoom = newZoom;
+        clampView();
+        repaint();
+    }
+
+    /**
+     * Keeps the view from moving past the edges of the puzzle layout.
+     */
+    private void clampView() {
+        double maxX = Math.max(0, puzzle.getLayoutWidth() - PANEL_WIDTH / zoom);
+        double maxY = Math.max(0, puzzle.getLayoutHeight() - PANEL_HEIGHT / zoom);
+        viewX = Math.max(0, Math.min(maxX, viewX));
+        viewY = Math.max(0, Math.min(maxY, viewY));
+    }
+
+    /**
+     * Converts a position on the panel to the matching position in the puzzle layout.
+     *
+     * @param panelPosition Position on the panel.
+     * @return Position in the puzzle layout.
+     */
+    private Position toLayoutPosition(Position panelPosition) {
+        return new Position((int)Math.floor(panelPosition.x / zoom + viewX),
+                            (int)Math.floor(panelPosition.y / zoom + viewY));
+    }
+
+    /**
+     * Draws the test tubes that are inside the view and the area being repainted,
+     * scaled and moved to match the view.
+     *
+     * @param g Reference to the Graphics object for rendering.
+     */
+    private void drawPuzzle(Graphics g) {
+        // Only the area being repainted needs to be drawn
+        java.awt.Rectangle clip = g.getClipBounds();
+        if(clip == null) clip = new java.awt.Rectangle(0, 0, PANEL_WIDTH, PANEL_HEIGHT);
+        Graphics2D viewGraphics = (Graphics2D) g.create();
+        viewGraphics.scale(zoom, zoom);
+        viewGraphics.translate(-viewX, -viewY);
+        Rectangle visibleArea = new Rectangle((int)Math.floor(clip.x / zoom + viewX), (int)Math.floor(clip.y / zoom + viewY),
+                                    (int)Math.ceil(clip.width / zoom) + 1, (int)Math.ceil(clip.height / zoom) + 1);
+        if(animator != null) {
+            animator.paint(viewGraphics, visibleArea);
+        } else {
+            puzzle.paint(viewGraphics, visibleArea);
+        }
+        if(shownHint != null) {
+            drawHint(viewGraphics);
+        }
+        viewGraphics.dispose();
+    }
+
+    /**
+     * Outlines the test tubes to pour from and to for the hint being shown.
+     *
+     * @param g Reference to the Graphics object for rendering, already moved to match the view.
+     */
+    private void drawHint(Graphics2D g) {
+        g.setColor(TEXT_COLOUR);
+        g.setStroke(new BasicStroke(3));
+        for(TestTube testTube : new TestTube[] { puzzle.getTestTube(shownHint.getFrom()), puzzle.getTestTube(shownHint.getTo()) }) {
+            Position position = testTube.getPosition();
+            g.drawRect(position.x + 1, position.y + 1, testTube.getWidth() - 3, testTube.getHeight() - 3);
+        }
+    }
+
+    /**
+     * Draws thin bars along the right and bottom edges showing which part of the
+     * puzzle is in view. Nothing is drawn for a direction where all of it is in view.
+     *
+     * @param g Reference to the Graphics object for rendering.
+     */
+    private void drawScrollBars(Graphics g) {
+        g.setColor(TEXT_COLOUR);
+        double viewWidth = PANEL_WIDTH / zoom, viewHeight = PANEL_HEIGHT / zoom;
+        int layoutWidth = puzzle.getLayoutWidth(), layoutHeight = puzzle.getLayoutHeight();
+        if(layoutHeight > viewHeight) {
+            g.fillRect(PANEL_WIDTH - 6, (int)(viewY / layoutHeight * PANEL_HEIGHT),
+                        4, Math.max(10, (int)(viewHeight / layoutHeight * PANEL_HEIGHT)));
+        }
+        if(layoutWidth > viewWidth) {
+            g.fillRect((int)(viewX / layoutWidth * PANEL_WIDTH), PANEL_HEIGHT - 6,
+                        Math.max(10, (int)(viewWidth / layoutWidth * PANEL_WIDTH)), 4);
+        }
+    }
+
+    /**
+     * Ends the game if the puzzle has been won.
+     */
+    private void checkGameWon() {
+        if(puzzle.gameWon()) {
+            gameOver = true;
+            repaint();
+        }
+    }
+
+    /**
+     * Shows the best next pour for the current state, or shows it as soon as it has been found.
+     */
+    private void showHint() {
+        if(hintState == null) {
+            hintState = new PuzzleState(puzzle.getState());
+            hintFound();
+        }
+    }
+
+    /**
+     * Shows the hint that was asked for if it has now been found, and updates the hint button.
+     * Called on the event thread each time the HintService finishes a search.
+     */
+    private void hintFound() {
+        if(hintState != null && shownHint == null && hintState.equals(puzzle.getState())) {
+            shownHint = hintService.getHint(hintState);
+            if(shownHint != null) {
+                repaintTube(puzzle.getTestTube(shownHint.getFrom()));
+                repaintTube(puzzle.getTestTube(shownHint.getTo()));
+            }
+        }
+        repaintChanges();
+    }
+
+    /**
+     * Removes a hint that no longer matches the puzzle, and starts finding the hint for the
+     * current state in the background.
+     */
+    private void updateHint() {
+        PuzzleState state = puzzle.getState();
+        if(hintState != null && (gameOver || !hintState.equals(state))) {
+            if(shownHint != null && hintState.getTubeCount() == state.getTubeCount()) {
+                repaintTube(puzzle.getTestTube(shownHint.getFrom()));
+                repaintTube(puzzle.getTestTube(shownHint.getTo()));
+            }
+            hintState = null;
+            shownHint = null;
+        }
+        hintService.update(state);
+    }
+
+    /**
+     * Starts the background checks for the current state of the puzzle, and repaints the
+     * dead end bar if the puzzle has been found to be stuck or is no longer stuck.
+     */
+    private void updateBackgroundChecks() {
+        updateHint();
+        deadEndDetector.update(puzzle.getState());
+        if(getDeadEnd() != shownDeadEnd) {
+            repaint(0, PANEL_HEIGHT - DEAD_END_BAR_HEIGHT - 10, PANEL_WIDTH, DEAD_END_BAR_HEIGHT + 10);
+        }
+    }
+
+    /**
+     * Gets the result of the dead end check for the current state, ignoring it once the game is over.
+     *
+     * @return One of the DeadEndDetector results.
+     */
+    private int getDeadEnd() {
+        return gameOver ? DeadEndDetector.UNKNOWN : deadEndDetector.getResult(puzzle.getState());
+    }
+
+    /**
+     * Repaints the test tubes that have changed since the last repaint, and the
+     * title and buttons if any button has been enabled or disabled.
+     */
+    private void repaintChanges() {
+        puzzle.takeChangedTubes(this::repaintTube);
+        updateBackgroundChecks();
+        if(getChromeState() != chromeImageState) {
+            repaint(0, 0, PANEL_WIDTH, CHROME_HEIGHT);
+        }
+    }
+
+    /**
+     * Repaints the area of the panel showing a test tube.
+     *
+     * @param testTube The test tube to repaint.
+     */
+    private void repaintTube(TestTube testTube) {
+        Position position = testTube.getPosition();
+        // Include an extra pixel on each side to cover rounding of the view
+        repaint((int)Math.floor((position.x - viewX) * zoom) - 1, (int)Math.floor((position.y - viewY) * zoom) - 1,
+                (int)Math.ceil(testTube.getWidth() * zoom) + 3, (int)Math.ceil(testTube.getHeight() * zoom) + 3);
+    }
+
+    /**
+     * Gets a value that is different for every combination of buttons being enabled.
+     *
+     * @return A bit for each of the restart, undo, redo, and hint buttons that is set when it is
+     *         enabled, and a bit that is set while waiting for a hint that was asked for.
+     */
+    private int getChromeState() {
+        int chromeState = 0;
+        PuzzleState state = puzzle.getState();
+        if(!gameOver) chromeState |= 1;
+        if(!gameOver && puzzle.isUndoAvailable()) chromeState |= 2;
+        if(!gameOver && puzzle.isRedoAvailable()) chromeState |= 4;
+        if(!gameOver && !hintService.isHintUnavailable(state)) chromeState |= 8;
+        if(!gameOver && hintState != null && !hintService.hasResult(state)) chromeState |= 16;
+        return chromeState;
+    }
+
+    /**
+     * Draws the title and buttons, first drawing them into the chromeImage if any
+     * button has been enabled or disabled since it was last drawn.
+     *
+     * @param g Reference to the Graphics object for rendering.
+     */
+    private void drawChrome(Graphics g) {
+        int chromeState = getChromeState();
+        if(chromeImage == null || chromeState != chromeImageState) {
+            if(chromeImage == null) {
+                GraphicsConfiguration configuration = getGraphicsConfiguration();
+                chromeImage = configuration != null
+                        ? configuration.createCompatibleImage(PANEL_WIDTH, CHROME_HEIGHT, Transparency.TRANSLUCENT)
+                        : new BufferedImage(PANEL_WIDTH, CHROME_HEIGHT, BufferedImage.TYPE_INT_ARGB);
+            }
+            Graphics2D chromeGraphics = chromeImage.createGraphics();
+            chromeGraphics.setComposite(AlphaComposite.Clear);
+            chromeGraphics.fillRect(0, 0, PANEL_WIDTH, CHROME_HEIGHT);
+            chromeGraphics.setComposite(AlphaComposite.SrcOver);
+            drawButton(chromeGraphics, "Restart", restartButton, (chromeState & 1) != 0);
+            drawButton(chromeGraphics, "Difficulty", changeDifficultyButton, true);
+            drawButton(chromeGraphics, "Undo", undoButton, (chromeState & 2) != 0);
+            drawButton(chromeGraphics, "Redo", redoButton, (chromeState & 4) != 0);
+            drawButton(chromeGraphics, (chromeState & 16) != 0 ? "..." : "Hint", hintButton, (chromeState & 8) != 0);
+            drawTitle(chromeGraphics);
+            chromeGraphics.dispose();
+            chromeImageState = chromeState;
+        }
+        g.drawImage(chromeImage, 0, 0, null);
+    }
+
     /**
      * Draws a background with game over message centred in the middle of the panel.
      * Below the message is a "Next" button.
@@ -176,21 +788,49 @@ public class GamePanel extends JPanel implements MouseListener {
      * @param g Reference to the Graphics object for rendering.
      */
     private void drawGameOver(Graphics g) {
-        g.setColor(new Color(99, 99, 99, 179));
+        g.setColor(GAME_OVER_OVERLAY_COLOUR);
         g.fillRect(0,0, PANEL_WIDTH, PANEL_HEIGHT);
 
-        g.setColor(new Color(141, 24, 24));
+        g.setColor(BUTTON_COLOUR);
         g.fillRect(0,PANEL_HEIGHT/2-20, PANEL_WIDTH, 40);
-        g.setColor(new Color(255, 34, 34));
+        g.setColor(BORDER_COLOUR);
         g.drawRect(0,PANEL_HEIGHT/2-20, PANEL_WIDTH, 40);
-        g.setColor(new Color(255, 196, 0));
-        g.setFont(new Font("Arial", Font.BOLD, 20));
+        g.setColor(TEXT_COLOUR);
+        g.setFont(BUTTON_FONT);
         int strWidth = g.getFontMetrics().stringWidth(gameOverMessage);
         g.drawString(gameOverMessage, PANEL_WIDTH/2-strWidth/2, PANEL_HEIGHT/2+10);
 
         drawButton(g, "Next", nextButton, true);
     }
 
+    /**
+     * Draws a bar along the bottom of the panel when the puzzle can no longer be solved,
+     * suggesting the player undoes some moves or restarts.
+     *
+     * @param g Reference to the Graphics object for rendering.
+     */
+    private void drawDeadEnd(Graphics g) {
+        int deadEnd = getDeadEnd();
+        shownDeadEnd = deadEnd;
+        String message;
+        if(deadEnd == DeadEndDetector.NO_POURS) {
+            message = "No pours left! Undo or Restart to keep going.";
+        } else if(deadEnd == DeadEndDetector.UNSOLVABLE) {
+            message = "This puzzle can no longer be solved. Undo or Restart to keep going.";
+        } else {
+            return;
+        }
+        int top = PANEL_HEIGHT - DEAD_END_BAR_HEIGHT - 10;
+        g.setColor(BUTTON_COLOUR);
+        g.fillRect(0, top, PANEL_WIDTH, DEAD_END_BAR_HEIGHT);
+        g.setColor(BORDER_COLOUR);
+        g.drawRect(0, top, PANEL_WIDTH, DEAD_END_BAR_HEIGHT);
+        g.setColor(TEXT_COLOUR);
+        g.setFont(BUTTON_FONT);
+        int strWidth = g.getFontMetrics().stringWidth(message);
+        g.drawString(message, PANEL_WIDTH/2-strWidth/2, top + 27);
+    }
+
     /**
      * Draws the button with a background, border, and centred text.
      *
@@ -200,12 +840,12 @@ public class GamePanel extends JPanel implements MouseListener {
      * @param isEnabled Whether the button should appear as enabled or disabled. (greyed when disabled).
      */
     private void drawButton(Graphics g, String text, Rectangle rectangle, boolean isEnabled) {
-        g.setFont(new Font("Arial", Font.BOLD, 20));
-        g.setColor(isEnabled ? new Color(141, 24, 24) : new Color(88, 88, 88));
+        g.setFont(BUTTON_FONT);
+        g.setColor(isEnabled ? BUTTON_COLOUR : DISABLED_BUTTON_COLOUR);
         g.fillRect(rectangle.position.x, rectangle.position.y, rectangle.width, rectangle.height);
-        g.setColor(new Color(255, 34, 34));
+        g.setColor(BORDER_COLOUR);
         g.drawRect(rectangle.position.x, rectangle.position.y, rectangle.width, rectangle.height);
-        g.setColor(new Color(255, 196, 0));
+        g.setColor(TEXT_COLOUR);
         int strWidth = g.getFontMetrics().stringWidth(text);
         g.drawString(text, rectangle.position.x+ rectangle.width/2-strWidth/2, rectangle.position.y+22);
     }
@@ -216,8 +856,8 @@ public class GamePanel extends JPanel implements MouseListener {
      * @param g Reference to the Graphics object for rendering.
      */
     private void drawTitle(Graphics g) {
-        g.setColor(new Color(201, 8, 8));
-        g.setFont(new Font("Arial", Font.BOLD, 40));
+        g.setColor(TITLE_COLOUR);
+        g.setFont(TITLE_FONT);
         int strWidth = g.getFontMetrics().stringWidth("TEST TUBE");
         g.drawString("TEST TUBE", PANEL_WIDTH/2-strWidth/2+60, 70);
     }
@@ -0,0 +1,274 @@
+import java.util.List;
+
+/**
+ * Test Tube
+ * Author: Peter Mitchell (2021)
+ *
+ * GameSession class:
+ * A single game played without any user interface. It keeps the settings, the starting
+ * state, the current state and the history of pours, and applies pours with the same rules
+ * as Puzzle. Nothing here uses Swing or Color, so many sessions can be kept by a server.
+ * A session is not thread safe, so each one must only be used by one thread at a time.
+ */
+public class GameSession {
+    /**
+     * The most states the Solver may expand for solve().
+     */
+    public static final int SOLVE_NODE_LIMIT = 200_000;
+
+    /**
+     * The total number of test tubes to include.
+     */
+    private final int tubeCount;
+    /**
+     * The number of test tubes that will be empty at the end of the solution.
+     */
+    private final int emptyCount;
+    /**
+     * The number that begin empty at the end.
+     */
+    private final int emptyAtEndCount;
+    /**
+     * The number of different colours that can be randomly placed.
+     */
+    private final int colourCount;
+    /**
+     * The number of segments that fit in each test tube.
+     */
+    private final int capacity;
+    /**
+     * The seed used to generate the current puzzle, or 0 if it was loaded.
+     */
+    private long seed;
+    /**
+     * The state the current puzzle started from.
+     */
+    private PuzzleState initialState;
+    /**
+     * The current state of the puzzle.
+     */
+    private PuzzleState state;
+    /**
+     * The pours that have been made, and undone pours that can be redone.
+     */
+    private final MoveHistory commandHistory = new MoveHistory();
+
+    /**
+     * Prepares the session ready for a newPuzzle() to be created.
+     *
+     * @param tubeCount The total number of test tubes to include.
+     * @param emptyCount The number of test tubes that will be empty at the end of the solution.
+     * @param emptyAtEndCount The number that begin empty at the end.
+     * @param colourCount The number of different colours that can be randomly placed.
+     */
+    public GameSession(int tubeCount, int emptyCount, int emptyAtEndCount, int colourCount) {
+        this(tubeCount, emptyCount, emptyAtEndCount, colourCount, PuzzleState.DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Prepares the session ready for a newPuzzle() to be created.
+     *
+     * @param tubeCount The total number of test tubes to include.
+     * @param emptyCount The number of test tubes that will be empty at the end of the solution.
+     * @param emptyAtEndCount The number that begin empty at the end.
+     * @param colourCount The number of different colours that can be randomly placed.
+     * @param capacity The number of segments that fit in each test tube.
+     */
+    public GameSession(int tubeCount, int emptyCount, int emptyAtEndCount, int colourCount, int capacity) {
+        this.tubeCount = tubeCount;
+        this.emptyCount = emptyCount;
+        this.emptyAtEndCount = emptyAtEndCount;
+        this.colourCount = colourCount;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Replaces the current puzzle with the one generated from a seed and clears the history.
+     *
+     * @param seed The seed used to randomly place the colours.
+     */
+    public void newPuzzle(long seed) {
+        this.seed = seed;
+        start(PuzzleGenerator.generate(seed, tubeCount, emptyCount, emptyAtEndCount, colourCount, capacity));
+    }
+
+    /**
+     * Replaces the current puzzle with one that starts from an existing state and clears the history.
+     *
+     * @param startState The state to start from. It is copied so later changes do not affect it.
+     */
+    public void loadPuzzle(PuzzleState startState) {
+        seed = 0;
+        start(new PuzzleState(startState));
+    }
+
+    /**
+     * Starts a puzzle from a state that is not shared with anything else.
+     *
+     * @param startState The state to start from.
+     */
+    private void start(PuzzleState startState) {
+        commandHistory.clear();
+        initialState = startState;
+        state = new PuzzleState(startState);
+    }
+
+    /**
+     * Tries to pour from one test tube into another using the same rules as Puzzle.
+     * If the pour is not allowed, including when either index is not a test tube, nothing happens.
+     *
+     * @param from Index of the test tube to pour from.
+     * @param to Index of the test tube to pour into.
+     * @return True if the pour was made.
+     */
+    public boolean pour(int from, int to) {
+        if(from < 0 || from >= state.getTubeCount() || to < 0 || to >= state.getTubeCount()
+                || !state.canPour(from, to)) {
+            return false;
+        }
+        int command = Command.encode(from, to, state.pourCount(from, to));
+        commandHistory.push(command);
+        Command.execute(state, command);
+        return true;
+    }
+
+    /**
+     * Reverses the most recent pour if there is one.
+     *
+     * @return True if a pour was undone.
+     */
+    public boolean undo() {
+        if(!commandHistory.isUndoAvailable()) return false;
+        Command.reverse(state, commandHistory.undo());
+        return true;
+    }
+
+    /**
+     * Makes the most recently undone pour again if there is one.
+     *
+     * @return True if a pour was redone.
+     */
+    public boolean redo() {
+        if(!commandHistory.isRedoAvailable()) return false;
+        Command.execute(state, commandHistory.redo());
+        return true;
+    }
+
+    /**
+     * Returns to the start of the current puzzle and clears the history.
+     */
+    public void reset() {
+        commandHistory.clear();
+        state.copyFrom(initialState);
+    }
+
+    /**
+     * Checks if every test tube is either empty or full of a single colour.
+     *
+     * @return True if the puzzle has been solved.
+     */
+    public boolean gameWon() {
+        return state.isSolved();
+    }
+
+    /**
+     * Finds the shortest sequence of pours that will solve the puzzle from its current state.
+     * The session is not changed.
+     *
+     * @return The list of moves to apply in order, an empty list if already solved,
+     *         or null if no solution was found within SOLVE_NODE_LIMIT.
+     */
+    public List<Move> solve() {
+        return new Solver(SOLVE_NODE_LIMIT).solve(state);
+    }
+
+    /**
+     * Gets the number of pours that can currently be undone.
+     *
+     * @return The number of pours made since the start, less any undone.
+     */
+    public int getMoveCount() {
+        return commandHistory.size();
+    }
+
+    /**
+     * Gets the history of pours.
+     *
+     * @return The history used for undo and redo.
+     */
+    public MoveHistory getHistory() {
+        return commandHistory;
+    }
+
+    /**
+     * Gets the current state of the puzzle.
+     *
+     * @return The current state. Changes to it change the session.
+     */
+    public PuzzleState getState() {
+        return state;
+    }
+
+    /**
+     * Gets the state the current puzzle started from.
+     *
+     * @return The starting state. It must not be changed.
+     */
+    public PuzzleState getInitialState() {
+        return initialState;
+    }
+
+    /**
+     * Gets the seed that was used to generate the current puzzle.
+     *
+     * @return The seed passed to newPuzzle(), or 0 if the puzzle was loaded with loadPuzzle().
+     */
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * Gets the total number of test tubes in new puzzles.
+     *
+     * @return The number of test tubes.
+     */
+    public int getTubeCount() {
+        return tubeCount;
+    }
+
+    /**
+     * Gets the number of test tubes that will be empty at the end of the solution.
+     *
+     * @return The number of empty test tubes.
+     */
+    public int getEmptyCount() {
+        return emptyCount;
+    }
+
+    /**
+     * Gets the number of test tubes that begin empty at the end.
+     *
+     * @return The number of empty test tubes at the end.
+     */
+    public int getEmptyAtEndCount() {
+        return emptyAtEndCount;
+    }
+
+    /**
+     * Gets the number of different colours that can be randomly placed.
+     *
+     * @return The number of colours.
+     */
+    public int getColourCount() {
+        return colourCount;
+    }
+
+    /**
+     * Gets the number of segments that fit in each test tube.
+     *
+     * @return The capacity of the test tubes.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+}
@@ -0,0 +1,156 @@
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Test Tube
+ * Author: Peter Mitchell (2021)
+ *
+ * HintService class:
+ * Finds the best next pour for a puzzle on a background thread so asking for a hint
+ * never has to wait for a search. Call update() whenever the state changes, and any
+ * search for an older state is cancelled and a new one started. Results are kept in a
+ * cache of the most recently used states. When a solution is found, every state along
+ * it is cached with its next move, so following the hints never needs another search.
+ */
+public class HintService {
+    /**
+     * The most states to keep hints for.
+     */
+    public static final int CACHE_SIZE = 4096;
+    /**
+     * The most states a single search will expand before giving up on finding a hint.
+     */
+    public static final int NODE_LIMIT = 500_000;
+    /**
+     * Stored in the cache for states that have no hint.
+     */
+    private static final Move NO_HINT = new Move(-1, -1, 0, 0);
+
+    /**
+     * The best move for each state, with the least recently used first. Used by both threads.
+     */
+    private final Map<PuzzleState, Move> cache = new LinkedHashMap<>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<PuzzleState, Move> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+    /**
+     * Runs the searches one at a time.
+     */
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Hint search");
+        thread.setDaemon(true);
+        return thread;
+    });
+    /**
+     * Called on the search thread when a search finishes with a result.
+     */
+    private final Runnable onHintFound;
+    /**
+     * A copy of the state being searched, or null if there is no search.
+     */
+    private PuzzleState searchState;
+    /**
+     * The search that is running or waiting to run, or null if there is none.
+     */
+    private Future<?> search;
+
+    /**
+     * @param onHintFound Called on the search thread each time a search finishes with a result.
+     */
+    public HintService(Runnable onHintFound) {
+        this.onHintFound = onHintFound;
+    }
+
+    /**
+     * Starts finding the hint for a state unless it is already known or being searched.
+     * Any search for a different state is cancelled. Should always be called from the same thread.
+     *
+     * @param state The current state of the puzzle.
+     */
+    public void update(PuzzleState state) {
+        if(searchState != null && searchState.equals(state)) return;
+        if(search != null) {
+            search.cancel(true);
+            search = null;
+            searchState = null;
+        }
+        if(hasResult(state)) return;
+        // Large puzzles are too big to search, and a solved puzzle has no next move
+        if(state.getTubeCount() > Puzzle.MAX_CHECKED_TUBES || state.isSolved()) {
+            putHint(new PuzzleState(state), NO_HINT);
+            return;
+        }
+        PuzzleState start = new PuzzleState(state);
+        searchState = start;
+        search = executor.submit(() -> findHint(start));
+    }
+
+    /**
+     * Checks if the search for a state has finished.
+     *
+     * @param state The state to check.
+     * @return True if getHint() will give the final result for the state.
+     */
+    public synchronized boolean hasResult(PuzzleState state) {
+        return cache.containsKey(state);
+    }
+
+    /**
+     * Gets the hint for a state without waiting.
+     *
+     * @param state The state to get a hint for.
+     * @return The best next move, or null if it is not known yet or no solution was found.
+     */
+    public synchronized Move getHint(PuzzleState state) {
+        Move hint = cache.get(state);
+        return hint == NO_HINT ? null : hint;
+    }
+
+    /**
+     * Checks if the search for a state has finished without finding a solution.
+     *
+     * @param state The state to check.
+     * @return True if there is no hint for the state.
+     */
+    public synchronized boolean isHintUnavailable(PuzzleState state) {
+        return cache.get(state) == NO_HINT;
+    }
+
+    /**
+     * Stores the hint for a state.
+     *
+     * @param state A state that will not be changed.
+     * @param hint The best move, or NO_HINT.
+     */
+    private synchronized void putHint(PuzzleState state, Move hint) {
+        cache.put(state, hint);
+    }
+
+    /**
+     * Solves a state and caches the next move of every state along the solution.
+     * Runs on the search thread.
+     *
+     * @param start The state to solve. It is not changed.
+     */
+    private void findHint(PuzzleState start) {
+        List<Move> solution = new Solver(NODE_LIMIT).solve(start);
+        // A cancelled search has not finished, so it has no result to keep
+        if(Thread.currentThread().isInterrupted()) return;
+        if(solution == null) {
+            putHint(start, NO_HINT);
+        } else {
+            PuzzleState state = new PuzzleState(start);
+            for(Move move : solution) {
+                putHint(new PuzzleState(state), move);
+                Command.execute(state, Command.encode(move.getFrom(), move.getTo(), move.getCount()));
+            }
+        }
+        onHintFound.run();
+    }
+}
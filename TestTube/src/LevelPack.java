@@ -0,0 +1,440 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Test Tube
+ * Author: Peter Mitchell (2021)
+ *
+ * LevelPack class:
+ * Reads a file of pre-made puzzles written by the LevelPackWriter. Puzzles are grouped
+ * by the four difficulty properties and the capacity of the test tubes, and every puzzle
+ * in a group is stored as a fixed width record, so finding puzzle N is a simple
+ * calculation. Opening a pack only reads the header and the index of groups. The puzzle
+ * data is memory mapped a chunk at a time the first time it is used, and each puzzle is
+ * read straight out of the mapped bytes.
+ *
+ * File layout (all numbers big endian):
+ *   Header:  magic "TTLP", version, bits per segment, group count, index offset (long)
+ *   Records: for each group, record count records of tube count * capacity bytes,
+ *            each tube being the low bytes of its packed PuzzleState value
+ *   Index:   for each group, tube count, empty count, empty at end count, colour count,
+ *            capacity, record count (long), data offset (long)
+ */
+public class LevelPack implements Closeable {
+    /**
+     * The first four bytes of every level pack.
+     */
+    public static final int MAGIC = 0x54544C50;
+    /**
+     * The version of the file layout written by this code.
+     */
+    public static final int VERSION = 2;
+    /**
+     * The size of the header in bytes.
+     */
+    public static final int HEADER_SIZE = 24;
+    /**
+     * The size of each group in the index in bytes.
+     */
+    public static final int INDEX_ENTRY_SIZE = 36;
+    /**
+     * The number of bytes used to store each segment of a test tube.
+     */
+    public static final int BYTES_PER_SEGMENT = PuzzleState.SEGMENT_BITS / Byte.SIZE;
+    /**
+     * The largest number of bytes mapped at once for a group.
+     */
+    private static final long MAX_CHUNK_SIZE = 1L << 30;
+
+    /**
+     * A set of puzzles that were all generated with the same properties.
+     */
+    public static class Group {
+        /**
+         * The total number of test tubes in each puzzle.
+         */
+        private final int tubeCount;
+        /**
+         * The number of test tubes that will be empty at the end of the solution.
+         */
+        private final int emptyCount;
+        /**
+         * The number that begin empty at the end.
+         */
+        private final int emptyAtEndCount;
+        /**
+         * The number of different colours that can be randomly placed.
+         */
+        private final int colourCount;
+        /**
+         * The number of segments that fit in each test tube.
+         */
+        private final int capacity;
+        /**
+         * The number of bytes used to store each test tube.
+         */
+        private final int bytesPerTube;
+        /**
+         * The number of puzzles in the group.
+         */
+        private final long recordCount;
+        /**
+         * The position in the file of the first puzzle.
+         */
+        private final long dataOffset;
+        /**
+         * The number of puzzles in each mapped chunk.
+         */
+        private final long recordsPerChunk;
+        /**
+         * The chunks of the group that have been mapped so far.
+         */
+        private final AtomicReferenceArray<ByteBuffer> chunks;
+
+        /**
+         * @param tubeCount The total number of test tubes in each puzzle.
+         * @param emptyCount The number of test tubes that will be empty at the end of the solution.
+         * @param emptyAtEndCount The number that begin empty at the end.
+         * @param colourCount The number of different colours that can be randomly placed.
+         * @param capacity The number of segments that fit in each test tube.
+         * @param bytesPerTube The number of bytes used to store each test tube.
+         * @param recordCount The number of puzzles in the group.
+         * @param dataOffset The position in the file of the first puzzle.
+         */
+        private Group(int tubeCount, int emptyCount, int emptyAtEndCount, int colourCount, int capacity,
+                      int bytesPerTube, long recordCount, long dataOffset) {
+            this.tubeCount = tubeCount;
+            this.emptyCount = emptyCount;
+            this.emptyAtEndCount = emptyAtEndCount;
+            this.colourCount = colourCount;
+            this.capacity = capacity;
+            this.bytesPerTube = bytesPerTube;
+            this.recordCount = recordCount;
+            this.dataOffset = dataOffset;
+            recordsPerChunk = Math.max(1, MAX_CHUNK_SIZE / getRecordSize());
+            chunks = new AtomicReferenceArray<>((int)((recordCount + recordsPerChunk - 1) / recordsPerChunk));
+        }
+
+        /**
+         * Gets the total number of test tubes in each puzzle.
+         *
+         * @return The total number of test tubes in each puzzle.
+         */
+        public int getTubeCount() {
+            return tubeCount;
+        }
+
+        /**
+         * Gets the number of test tubes that will be empty at the end of the solution.
+         *
+         * @return The number of test tubes that will be empty at the end of the solution.
+         */
+        public int getEmptyCount() {
+            return emptyCount;
+        }
+
+        /**
+         * Gets the number that begin empty at the end.
+         *
+         * @return The number that begin empty at the end.
+         */
+        public int getEmptyAtEndCount() {
+            return emptyAtEndCount;
+        }
+
+        /**
+         * Gets the number of different colours that can be randomly placed.
+         *
+         * @return The number of different colours that can be randomly placed.
+         */
+        public int getColourCount() {
+            return colourCount;
+        }
+
+        /**
+         * Gets the number of segments that fit in each test tube.
+         *
+         * @return The number of segments that fit in each test tube.
+         */
+        public int getCapacity() {
+            return capacity;
+        }
+
+        /**
+         * Gets the number of puzzles in the group.
+         *
+         * @return The number of puzzles in the group.
+         */
+        public long getRecordCount() {
+            return recordCount;
+        }
+
+        /**
+         * Gets the number of bytes used to store each puzzle.
+         *
+         * @return The number of bytes used to store each puzzle.
+         */
+        public int getRecordSize() {
+            return tubeCount * bytesPerTube;
+        }
+    }
+
+    /**
+     * The open level pack file.
+     */
+    private final FileChannel channel;
+    /**
+     * Every group in the order they appear in the index.
+     */
+    private final List<Group> groups;
+    /**
+     * The groups found by their properties.
+     */
+    private final Map<List<Integer>, Group> groupsByProperties = new HashMap<>();
+
+    /**
+     * Opens a level pack and reads the index. No puzzle data is read until it is used.
+     *
+     * @param path The level pack file.
+     * @throws IOException If the file can not be read or is not a level pack.
+     */
+    public LevelPack(Path path) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(header, 0);
+            if(header.getInt(0) != MAGIC) throw new IOException(path + " is not a level pack");
+            if(header.getInt(4) != VERSION) throw new IOException("Unsupported level pack version " + header.getInt(4));
+            if(header.getInt(8) != PuzzleState.SEGMENT_BITS) {
+                throw new IOException("Unsupported segment size " + header.getInt(8));
+            }
+            int groupCount = header.getInt(12);
+            long indexOffset = header.getLong(16);
+
+            long fileSize = channel.size();
+            if(groupCount < 0 || indexOffset < 0 || indexOffset > fileSize
+                    || groupCount > (fileSize - indexOffset) / INDEX_ENTRY_SIZE) {
+                throw new IOException("Level pack index does not fit in " + path);
+            }
+            ByteBuffer index = ByteBuffer.allocate(groupCount * INDEX_ENTRY_SIZE);
+            readFully(index, indexOffset);
+            List<Group> loadedGroups = new ArrayList<>();
+            for(int i = 0; i < groupCount; i++) {
+                int entry = i * INDEX_ENTRY_SIZE;
+                int capacity = index.getInt(entry + 16);
+                if(capacity < PuzzleState.MIN_CAPACITY || capacity > PuzzleState.MAX_CAPACITY) {
+                    throw new IOException("Unsupported capacity " + capacity);
+                }
+                int tubeCount = index.getInt(entry);
+                if(tubeCount < 1 || tubeCount > Command.MAX_TUBES) {
+                    throw new IOException("Unsupported tube count " + tubeCount);
+                }
+                long recordCount = index.getLong(entry + 20);
+                long dataOffset = index.getLong(entry + 28);
+                int bytesPerTube = capacity * BYTES_PER_SEGMENT;
+                long recordSize = (long)tubeCount * bytesPerTube;
+                if(recordCount < 0 || dataOffset < 0 || dataOffset > fileSize
+                        || recordCount > (fileSize - dataOffset) / recordSize) {
+                    throw new IOException("Group " + i + " does not fit in the level pack");
+                }
+                Group group = new Group(tubeCount, index.getInt(entry + 4), index.getInt(entry + 8),
+                                        index.getInt(entry + 12), capacity,
+                                        bytesPerTube, recordCount, dataOffset);
+                loadedGroups.add(group);
+                groupsByProperties.put(propertiesKey(group.tubeCount, group.emptyCount,
+                                                     group.emptyAtEndCount, group.colourCount, group.capacity), group);
+            }
+            groups = Collections.unmodifiableList(loadedGroups);
+        } catch(IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Gets every group of puzzles in the pack.
+     *
+     * @return The groups in the order they appear in the index.
+     */
+    public List<Group> getGroups() {
+        return groups;
+    }
+
+    /**
+     * Finds the group of puzzles with the given properties and test tubes of PuzzleState.DEFAULT_CAPACITY.
+     *
+     * @param tubeCount The total number of test tubes.
+     * @param emptyCount The number of test tubes that will be empty at the end of the solution.
+     * @param emptyAtEndCount The number that begin empty at the end.
+     * @param colourCount The number of different colours.
+     * @return The matching group, or null if there is none.
+     */
+    public Group findGroup(int tubeCount, int emptyCount, int emptyAtEndCount, int colourCount) {
+        return findGroup(tubeCount, emptyCount, emptyAtEndCount, colourCount, PuzzleState.DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Finds the group of puzzles with the given properties.
+     *
+     * @param tubeCount The total number of test tubes.
+     * @param emptyCount The number of test tubes that will be empty at the end of the solution.
+     * @param emptyAtEndCount The number that begin empty at the end.
+     * @param colourCount The number of different colours.
+     * @param capacity The number of segments that fit in each test tube.
+     * @return The matching group, or null if there is none.
+     */
+    public Group findGroup(int tubeCount, int emptyCount, int emptyAtEndCount, int colourCount, int capacity) {
+        return groupsByProperties.get(propertiesKey(tubeCount, emptyCount, emptyAtEndCount, colourCount, capacity));
+    }
+
+    /**
+     * Reads the starting state of one puzzle.
+     *
+     * @param group The group the puzzle is in.
+     * @param number The position of the puzzle in the group, starting from 0.
+     * @return The starting state of the puzzle.
+     * @throws IOException If the puzzle data could not be mapped or is not a valid puzzle.
+     */
+    public PuzzleState loadState(Group group, long number) throws IOException {
+        if(number < 0 || number >= group.recordCount) {
+            throw new IndexOutOfBoundsException("Puzzle " + number + " of " + group.recordCount);
+        }
+        ByteBuffer chunk = getChunk(group, (int)(number / group.recordsPerChunk));
+        int offset = (int)(number % group.recordsPerChunk) * group.getRecordSize();
+        PuzzleState state = new PuzzleState(group.tubeCount, group.capacity);
+        for(int tube = 0; tube < group.tubeCount; tube++) {
+            long packed = readTube(chunk, offset + tube * group.bytesPerTube, group.bytesPerTube);
+            if(!PuzzleState.isValidTube(packed, group.capacity)) {
+                throw new IOException("Puzzle " + number + " has an invalid test tube " + tube);
+            }
+            state.setTube(tube, packed);
+        }
+        return state;
+    }
+
+    /**
+     * Creates a puzzle ready to play from one puzzle in the pack.
+     *
+     * @param group The group the puzzle is in.
+     * @param number The position of the puzzle in the group, starting from 0.
+     * @return The puzzle with its test tubes created.
+     * @throws IOException If the puzzle data could not be mapped or is not a valid puzzle.
+     */
+    public Puzzle loadPuzzle(Group group, long number) throws IOException {
+        Puzzle puzzle = new Puzzle(group.tubeCount, group.emptyCount, group.emptyAtEndCount, group.colourCount,
+                                   group.capacity, Puzzle.DEFAULT_LAYOUT_WIDTH);
+        puzzle.loadPuzzle(loadState(group, number));
+        return puzzle;
+    }
+
+    /**
+     * Closes the file. Puzzles that have already been loaded are not affected.
+     *
+     * @throws IOException If the file could not be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Gets a mapped chunk of a group, mapping it the first time it is used.
+     *
+     * @param group The group the chunk is part of.
+     * @param chunkIndex The index of the chunk in the group.
+     * @return The mapped bytes of the chunk.
+     * @throws IOException If the chunk could not be mapped.
+     */
+    private ByteBuffer getChunk(Group group, int chunkIndex) throws IOException {
+        ByteBuffer chunk = group.chunks.get(chunkIndex);
+        if(chunk == null) {
+            long firstRecord = chunkIndex * group.recordsPerChunk;
+            long size = Math.min(group.recordsPerChunk, group.recordCount - firstRecord) * group.getRecordSize();
+            chunk = channel.map(FileChannel.MapMode.READ_ONLY, group.dataOffset + firstRecord * group.getRecordSize(), size);
+            // Another thread may have mapped the same chunk, either copy can be used
+            if(!group.chunks.compareAndSet(chunkIndex, null, chunk)) {
+                chunk = group.chunks.get(chunkIndex);
+            }
+        }
+        return chunk;
+    }
+
+    /**
+     * Reads bytes from the file until the buffer is full.
+     *
+     * @param buffer The buffer to fill.
+     * @param position The position in the file to start reading from.
+     * @throws IOException If the end of the file is reached first.
+     */
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while(buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if(read < 0) throw new IOException("Unexpected end of level pack");
+        }
+    }
+
+    /**
+     * Reads the low bytes of a packed test tube. The common sizes are read in one go, with
+     * 4 bytes being a test tube of the default capacity.
+     *
+     * @param buffer The buffer to read from.
+     * @param offset The position of the first byte of the test tube.
+     * @param size The number of bytes stored for the test tube.
+     * @return The packed test tube.
+     */
+    static long readTube(ByteBuffer buffer, int offset, int size) {
+        switch(size) {
+            case Integer.BYTES: return buffer.getInt(offset) & 0xFFFFFFFFL;
+            case Long.BYTES: return buffer.getLong(offset);
+            default:
+                long packed = 0;
+                for(int i = 0; i < size; i++) {
+                    packed = packed << Byte.SIZE | (buffer.get(offset + i) & 0xFFL);
+                }
+                return packed;
+        }
+    }
+
+    /**
+     * Writes the low bytes of a packed test tube in the layout read by readTube().
+     *
+     * @param buffer The buffer to write to at its position.
+     * @param packed The packed test tube.
+     * @param size The number of bytes to store for the test tube.
+     */
+    static void writeTube(ByteBuffer buffer, long packed, int size) {
+        switch(size) {
+            case Integer.BYTES: buffer.putInt((int) packed); break;
+            case Long.BYTES: buffer.putLong(packed); break;
+            default:
+                for(int i = size - 1; i >= 0; i--) {
+                    buffer.put((byte) (packed >>> (i * Byte.SIZE)));
+                }
+        }
+    }
+
+    /**
+     * Creates the key used to find a group by its properties.
+     *
+     * @param tubeCount The total number of test tubes.
+     * @param emptyCount The number of test tubes that will be empty at the end of the solution.
+     * @param emptyAtEndCount The number that begin empty at the end.
+     * @param colourCount The number of different colours.
+     * @param capacity The number of segments that fit in each test tube.
+     * @return A key that is equal for groups with the same properties.
+     */
+    private static List<Integer> propertiesKey(int tubeCount, int emptyCount, int emptyAtEndCount,
+                                               int colourCount, int capacity) {
+        return List.of(tubeCount, emptyCount, emptyAtEndCount, colourCount, capacity);
+    }
+}
@@ -0,0 +1,230 @@
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Test Tube
+ * Author: Peter Mitchell (2021)
+ *
+ * LevelPackWriter class:
+ * Writes a level pack that can be read with LevelPack. Puzzles are written one group
+ * at a time as they are added, and the index is written at the end when the writer is
+ * closed, so a pack of any size can be written without holding the puzzles in memory.
+ *
+ * Usage: java LevelPackWriter pack-file tubes,empty,emptyAtEnd,colours[,capacity]=catalogue-file ...
+ * where each catalogue file is the output of PuzzleCatalogue for those properties. The capacity
+ * is PuzzleState.DEFAULT_CAPACITY when it is not given.
+ */
+public class LevelPackWriter implements Closeable {
+    /**
+     * The size of the buffer used to write puzzles.
+     */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * The level pack file being written.
+     */
+    private final FileChannel channel;
+    /**
+     * Puzzles waiting to be written to the file.
+     */
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    /**
+     * The index entries of every group that has been started, grown as needed.
+     */
+    private ByteBuffer indexEntries = ByteBuffer.allocate(LevelPack.INDEX_ENTRY_SIZE * 64);
+    /**
+     * The position in the file that the next byte will be written to.
+     */
+    private long filePosition = LevelPack.HEADER_SIZE;
+    /**
+     * The number of test tubes in each puzzle of the current group, or 0 if there is no group.
+     */
+    private int groupTubeCount;
+    /**
+     * The number of segments that fit in each test tube of the current group.
+     */
+    private int groupCapacity;
+    /**
+     * The number of puzzles added to the current group.
+     */
+    private long groupRecordCount;
+
+    /**
+     * Converts catalogue files written by PuzzleCatalogue into a level pack.
+     *
+     * @param args The pack file followed by the properties and catalogue file of each group.
+     * @throws IOException If any file could not be read or written.
+     */
+    public static void main(String[] args) throws IOException {
+        if(args.length < 2) {
+            System.err.println("Usage: java LevelPackWriter pack-file "
+                               + "tubes,empty,emptyAtEnd,colours[,capacity]=catalogue-file ...");
+            return;
+        }
+        try(LevelPackWriter writer = new LevelPackWriter(Paths.get(args[0]))) {
+            for(int i = 1; i < args.length; i++) {
+                String[] group = args[i].split("=", 2);
+                String[] properties = group[0].split(",");
+                int capacity = properties.length > 4 ? Integer.parseInt(properties[4]) : PuzzleState.DEFAULT_CAPACITY;
+                writer.beginGroup(Integer.parseInt(properties[0]), Integer.parseInt(properties[1]),
+                                  Integer.parseInt(properties[2]), Integer.parseInt(properties[3]), capacity);
+                try(BufferedReader reader = Files.newBufferedReader(Paths.get(group[1]), StandardCharsets.UTF_8)) {
+                    String line;
+                    while((line = reader.readLine()) != null) {
+                        if(line.isBlank()) continue;
+                        // Skip the seed at the start of each catalogue line
+                        writer.add(PuzzleFormat.parse(line.substring(line.indexOf(' ') + 1), capacity));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates a new level pack, replacing any file that already exists.
+     *
+     * @param path The level pack file to write.
+     * @throws IOException If the file could not be created.
+     */
+    public LevelPackWriter(Path path) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                   StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**
+     * Finishes any current group and starts a new one with test tubes of PuzzleState.DEFAULT_CAPACITY.
+     * Every puzzle added until the next group is started must have been generated with these properties.
+     *
+     * @param tubeCount The total number of test tubes.
+     * @param emptyCount The number of test tubes that will be empty at the end of the solution.
+     * @param emptyAtEndCount The number that begin empty at the end.
+     * @param colourCount The number of different colours.
+     * @throws IOException If writing fails.
+     */
+    public void beginGroup(int tubeCount, int emptyCount, int emptyAtEndCount, int colourCount) throws IOException {
+        beginGroup(tubeCount, emptyCount, emptyAtEndCount, colourCount, PuzzleState.DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Finishes any current group and starts a new one. Every puzzle added until the
+     * next group is started must have been generated with these properties.
+     *
+     * @param tubeCount The total number of test tubes.
+     * @param emptyCount The number of test tubes that will be empty at the end of the solution.
+     * @param emptyAtEndCount The number that begin empty at the end.
+     * @param colourCount The number of different colours.
+     * @param capacity The number of segments that fit in each test tube.
+     * @throws IOException If writing fails.
+     */
+    public void beginGroup(int tubeCount, int emptyCount, int emptyAtEndCount, int colourCount,
+                           int capacity) throws IOException {
+        finishGroup();
+        if(indexEntries.remaining() < LevelPack.INDEX_ENTRY_SIZE) {
+            ByteBuffer larger = ByteBuffer.allocate(indexEntries.capacity() * 2);
+            indexEntries.flip();
+            larger.put(indexEntries);
+            indexEntries = larger;
+        }
+        indexEntries.putInt(tubeCount).putInt(emptyCount).putInt(emptyAtEndCount).putInt(colourCount)
+                    .putInt(capacity);
+        groupTubeCount = tubeCount;
+        groupCapacity = capacity;
+        groupRecordCount = 0;
+    }
+
+    /**
+     * Adds a puzzle to the current group.
+     *
+     * @param state The starting state of the puzzle.
+     * @throws IOException If writing fails.
+     */
+    public void add(PuzzleState state) throws IOException {
+        if(groupTubeCount == 0) throw new IllegalStateException("beginGroup() must be called before add()");
+        if(state.getTubeCount() != groupTubeCount || state.getCapacity() != groupCapacity) {
+            throw new IllegalArgumentException("Expected " + groupTubeCount + " test tubes of capacity "
+                                                + groupCapacity + " but the state has " + state.getTubeCount()
+                                                + " of capacity " + state.getCapacity());
+        }
+        int bytesPerTube = groupCapacity * LevelPack.BYTES_PER_SEGMENT;
+        if(buffer.remaining() < groupTubeCount * bytesPerTube) {
+            flush();
+        }
+        for(int tube = 0; tube < groupTubeCount; tube++) {
+            LevelPack.writeTube(buffer, state.getTube(tube), bytesPerTube);
+        }
+        groupRecordCount++;
+    }
+
+    /**
+     * Finishes the current group, then writes the index and header.
+     *
+     * @throws IOException If writing fails.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            finishGroup();
+            flush();
+            long indexOffset = filePosition;
+            indexEntries.flip();
+            int groupCount = indexEntries.remaining() / LevelPack.INDEX_ENTRY_SIZE;
+            write(indexEntries, indexOffset);
+
+            ByteBuffer header = ByteBuffer.allocate(LevelPack.HEADER_SIZE);
+            header.putInt(LevelPack.MAGIC).putInt(LevelPack.VERSION).putInt(PuzzleState.SEGMENT_BITS)
+                  .putInt(groupCount).putLong(indexOffset);
+            header.flip();
+            write(header, 0);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Completes the index entry of the current group if there is one.
+     *
+     * @throws IOException If writing fails.
+     */
+    private void finishGroup() throws IOException {
+        if(groupTubeCount == 0) return;
+        flush();
+        long dataOffset = filePosition - groupRecordCount * groupTubeCount * groupCapacity * LevelPack.BYTES_PER_SEGMENT;
+        indexEntries.putLong(groupRecordCount).putLong(dataOffset);
+        groupTubeCount = 0;
+    }
+
+    /**
+     * Writes any buffered puzzles to the file.
+     *
+     * @throws IOException If writing fails.
+     */
+    private void flush() throws IOException {
+        buffer.flip();
+        filePosition += write(buffer, filePosition);
+        buffer.clear();
+    }
+
+    /**
+     * Writes all remaining bytes of a buffer at a position in the file.
+     *
+     * @param source The bytes to write.
+     * @param position The position in the file to write at.
+     * @return The number of bytes written.
+     * @throws IOException If writing fails.
+     */
+    private int write(ByteBuffer source, long position) throws IOException {
+        int written = 0;
+        while(source.hasRemaining()) {
+            written += channel.write(source, position + written);
+        }
+        return written;
+    }
+}
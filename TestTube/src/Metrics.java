@@ -0,0 +1,316 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Test Tube
+ * Author: Peter Mitchell (2021)
+ *
+ * Metrics class:
+ * A small registry of counters and histograms for the engine and the interface, written
+ * in the Prometheus text format so they can be scraped from /metrics by startServer() or
+ * PuzzleServer. Counters and histograms use LongAdder so threads do not contend when they
+ * record at the same time.
+ * Nothing is recorded unless the testtube.metrics system property is true when this class
+ * is first used. ENABLED is a constant, so when it is false the checks around each
+ * recording are removed by the JIT compiler and cost nothing.
+ */
+public class Metrics {
+    /**
+     * True if metrics are recorded, set from the testtube.metrics system property.
+     */
+    public static final boolean ENABLED = Boolean.getBoolean("testtube.metrics");
+    /**
+     * The upper bounds in seconds of the buckets used for timing histograms.
+     */
+    private static final double[] TIME_BUCKETS = {0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005,
+                                                  0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1};
+    /**
+     * The upper bounds of the buckets used for counting attempts.
+     */
+    private static final double[] ATTEMPT_BUCKETS = {1, 2, 3, 5, 10, 20, 50, 100};
+
+    /**
+     * Every counter and histogram in the order they are written.
+     */
+    private static final List<Metric> metrics = new ArrayList<>();
+
+    /**
+     * The time taken by Puzzle.newPuzzle() to generate each puzzle.
+     */
+    public static final Histogram NEW_PUZZLE_SECONDS = register(new Histogram("testtube_new_puzzle_seconds",
+            "Time to generate a single puzzle", TIME_BUCKETS));
+    /**
+     * The time taken by Puzzle.newSolvablePuzzle() including every rejected puzzle.
+     */
+    public static final Histogram SOLVABLE_PUZZLE_SECONDS = register(new Histogram("testtube_solvable_puzzle_seconds",
+            "Time to generate a puzzle that is checked to be solvable", TIME_BUCKETS));
+    /**
+     * The number of puzzles generated by each call to Puzzle.newSolvablePuzzle().
+     */
+    public static final Histogram SOLVABLE_PUZZLE_ATTEMPTS = register(new Histogram("testtube_solvable_puzzle_attempts",
+            "Puzzles generated to find each solvable puzzle", ATTEMPT_BUCKETS));
+    /**
+     * The number of pours made.
+     */
+    public static final Counter POURS = register(new Counter("testtube_pours_total", "Pours made"));
+    /**
+     * The number of pours that were not allowed.
+     */
+    public static final Counter POURS_REJECTED = register(new Counter("testtube_pours_rejected_total",
+            "Pours that were not allowed"));
+    /**
+     * The number of moves undone.
+     */
+    public static final Counter UNDOS = register(new Counter("testtube_undos_total", "Moves undone"));
+    /**
+     * The number of times a puzzle was reset to its start.
+     */
+    public static final Counter RESETS = register(new Counter("testtube_resets_total", "Puzzles reset to the start"));
+    /**
+     * The time taken by the GamePanel to draw everything.
+     */
+    public static final Histogram PAINT_SECONDS = register(new Histogram("testtube_paint_seconds",
+            "Time to draw the game panel", TIME_BUCKETS));
+
+    /**
+     * A value that can be written in the Prometheus text format.
+     */
+    public abstract static class Metric {
+        /**
+         * The name of the metric.
+         */
+        protected final String name;
+        /**
+         * The description of the metric.
+         */
+        protected final String help;
+
+        /**
+         * @param name The name of the metric.
+         * @param help The description of the metric.
+         */
+        protected Metric(String name, String help) {
+            this.name = name;
+            this.help = help;
+        }
+
+        /**
+         * Writes the metric with its HELP and TYPE lines.
+         *
+         * @param result The text is added to the end of this.
+         */
+        protected abstract void appendTo(StringBuilder result);
+    }
+
+    /**
+     * A count that only goes up.
+     */
+    public static class Counter extends Metric {
+        /**
+         * The count.
+         */
+        private final LongAdder count = new LongAdder();
+
+        /**
+         * @param name The name of the metric.
+         * @param help The description of the metric.
+         */
+        public Counter(String name, String help) {
+            super(name, help);
+        }
+
+        /**
+         * Adds one to the count if metrics are enabled.
+         */
+        public void increment() {
+            if(ENABLED) count.increment();
+        }
+
+        /**
+         * Gets the count.
+         *
+         * @return The number of increments.
+         */
+        public long get() {
+            return count.sum();
+        }
+
+        /**
+         * Writes the counter with its HELP and TYPE lines.
+         *
+         * @param result The text is added to the end of this.
+         */
+        @Override
+        protected void appendTo(StringBuilder result) {
+            result.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            result.append("# TYPE ").append(name).append(" counter\n");
+            result.append(name).append(' ').append(count.sum()).append('\n');
+        }
+    }
+
+    /**
+     * Counts how many observed values fall at or below each of a fixed set of bounds.
+     */
+    public static class Histogram extends Metric {
+        /**
+         * The upper bound of each bucket in increasing order.
+         */
+        private final double[] bounds;
+        /**
+         * The number of values in each bucket, with one more for values above every bound.
+         */
+        private final LongAdder[] buckets;
+        /**
+         * The sum of every value.
+         */
+        private final DoubleAdder sum = new DoubleAdder();
+
+        /**
+         * @param name The name of the metric.
+         * @param help The description of the metric.
+         * @param bounds The upper bound of each bucket in increasing order.
+         */
+        public Histogram(String name, String help, double[] bounds) {
+            super(name, help);
+            this.bounds = bounds;
+            buckets = new LongAdder[bounds.length + 1];
+            for(int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        /**
+         * Records a value if metrics are enabled.
+         *
+         * @param value The value to record.
+         */
+        public void observe(double value) {
+            if(!ENABLED) return;
+            int bucket = 0;
+            while(bucket < bounds.length && value > bounds[bucket]) {
+                bucket++;
+            }
+            buckets[bucket].increment();
+            sum.add(value);
+        }
+
+        /**
+         * Records the time since a start time in seconds if metrics are enabled.
+         *
+         * @param startNanos The start time from System.nanoTime().
+         */
+        public void observeSince(long startNanos) {
+            if(ENABLED) observe((System.nanoTime() - startNanos) / 1e9);
+        }
+
+        /**
+         * Gets the number of values recorded.
+         *
+         * @return The number of values.
+         */
+        public long getCount() {
+            long count = 0;
+            for(LongAdder bucket : buckets) {
+                count += bucket.sum();
+            }
+            return count;
+        }
+
+        /**
+         * Writes the histogram with its HELP and TYPE lines. The buckets are cumulative as
+         * the format requires.
+         *
+         * @param result The text is added to the end of this.
+         */
+        @Override
+        protected void appendTo(StringBuilder result) {
+            result.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            result.append("# TYPE ").append(name).append(" histogram\n");
+            long cumulative = 0;
+            for(int i = 0; i < buckets.length; i++) {
+                cumulative += buckets[i].sum();
+                result.append(name).append("_bucket{le=\"")
+                      .append(i < bounds.length ? Double.toString(bounds[i]) : "+Inf")
+                      .append("\"} ").append(cumulative).append('\n');
+            }
+            result.append(name).append("_sum ").append(sum.sum()).append('\n');
+            result.append(name).append("_count ").append(cumulative).append('\n');
+        }
+    }
+
+    /**
+     * Adds a metric to those that are written.
+     *
+     * @param metric The metric to add.
+     * @param <T> The type of metric.
+     * @return The metric.
+     */
+    public static <T extends Metric> T register(T metric) {
+        synchronized(metrics) {
+            metrics.add(metric);
+        }
+        return metric;
+    }
+
+    /**
+     * Gets a timestamp to pass to Histogram.observeSince().
+     *
+     * @return The current System.nanoTime(), or 0 if metrics are disabled.
+     */
+    public static long startTimer() {
+        return ENABLED ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Writes every metric in the Prometheus text format.
+     *
+     * @return The text for every metric.
+     */
+    public static String toPrometheusText() {
+        StringBuilder result = new StringBuilder();
+        synchronized(metrics) {
+            for(Metric metric : metrics) {
+                metric.appendTo(result);
+            }
+        }
+        return result.toString();
+    }
+
+    /**
+     * Starts an HTTP server in the background that answers /metrics with every metric.
+     *
+     * @param port The port to listen on.
+     * @return The server that was started.
+     * @throws IOException If the server could not be started.
+     */
+    public static HttpServer startServer(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/metrics", Metrics::handleScrape);
+        server.start();
+        return server;
+    }
+
+    /**
+     * Answers a scrape request with every metric.
+     *
+     * @param exchange The request and response.
+     * @throws IOException If the response could not be sent.
+     */
+    public static void handleScrape(HttpExchange exchange) throws IOException {
+        byte[] body = toPrometheusText().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+        exchange.sendResponseHeaders(200, body.length);
+        try(OutputStream output = exchange.getResponseBody()) {
+            output.write(body);
+        }
+    }
+}
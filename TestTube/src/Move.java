@@ -0,0 +1,86 @@
+/**
+ * Test Tube
+ * Author: Peter Mitchell (2021)
+ *
+ * Move class:
+ * Describes a single pour between two test tubes by their index in the
+ * PuzzleState. Unlike Command it does not reference any TestTube objects,
+ * so it can be produced by headless code such as the Solver.
+ */
+public class Move {
+    /**
+     * Index of the test tube the colour is coming from.
+     */
+    private final int from;
+    /**
+     * Index of the test tube the colour is going to.
+     */
+    private final int to;
+    /**
+     * The count of colours that are being transferred.
+     */
+    private final int count;
+    /**
+     * The colour ID that is being transferred.
+     */
+    private final int colour;
+
+    /**
+     * @param from Index of the test tube the colour is coming from.
+     * @param to Index of the test tube the colour is going to.
+     * @param count The count of colours that are being transferred.
+     * @param colour The colour ID that is being transferred.
+     */
+    public Move(int from, int to, int count, int colour) {
+        this.from = from;
+        this.to = to;
+        this.count = count;
+        this.colour = colour;
+    }
+
+    /**
+     * Gets the index of the test tube the colour is coming from.
+     *
+     * @return Index of the test tube to pour from.
+     */
+    public int getFrom() {
+        return from;
+    }
+
+    /**
+     * Gets the index of the test tube the colour is going to.
+     *
+     * @return Index of the test tube to pour into.
+     */
+    public int getTo() {
+        return to;
+    }
+
+    /**
+     * Gets the count of colours that are being transferred.
+     *
+     * @return The number of segments moved.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Gets the colour ID that is being transferred.
+     *
+     * @return The colour ID of the segments moved.
+     */
+    public int getColour() {
+        return colour;
+    }
+
+    /**
+     * Gets a string version of the Move.
+     *
+     * @return A string in the form from->to (count x colour)
+     */
+    @Override
+    public String toString() {
+        return from + "->" + to + " (" + count + "x" + colour + ")";
+    }
+}
@@ -0,0 +1,243 @@
+import java.util.Arrays;
+
+/**
+ * Test Tube
+ * Author: Peter Mitchell (2021)
+ *
+ * MoveGenerator class:
+ * Lists the pours that are allowed from a PuzzleState without trying every pair of
+ * test tubes. Each test tube is kept in a bucket for its top colour, with empty test
+ * tubes in their own bucket, and the test tubes in each colour bucket that still have
+ * room are also kept in an open bucket for that colour. A pour is allowed from any test
+ * tube into an open test tube with the same top colour or into an empty one, so the
+ * pours can be read straight out of the buckets in time proportional to how many there
+ * are. The generator listens to its state, so each change to a test tube only moves
+ * that test tube between buckets. Pours are given as encoded Commands.
+ */
+public class MoveGenerator {
+    /**
+     * The state the pours are generated for.
+     */
+    private PuzzleState state;
+    /**
+     * For each top colour, the test tubes with that top colour. Index EMPTY holds the empty test tubes.
+     */
+    private int[][] tops;
+    /**
+     * The number of test tubes in each of the tops buckets.
+     */
+    private final int[] topSizes = new int[PuzzleState.MAX_COLOUR + 1];
+    /**
+     * For each top colour, the test tubes with that top colour that are not full.
+     */
+    private int[][] open;
+    /**
+     * The number of test tubes in each of the open buckets.
+     */
+    private final int[] openSizes = new int[PuzzleState.MAX_COLOUR + 1];
+    /**
+     * The tops bucket each test tube is in.
+     */
+    private int[] bucketColours;
+    /**
+     * The position of each test tube in its tops bucket.
+     */
+    private int[] topPositions;
+    /**
+     * The position of each test tube in its open bucket, or -1 if it is not in one.
+     */
+    private int[] openPositions;
+    /**
+     * A bit for each colour that is at the top of at least one test tube.
+     */
+    private long topColours;
+
+    /**
+     * Creates a generator that follows a state as it changes.
+     *
+     * @param state The state to generate pours for.
+     */
+    public MoveGenerator(PuzzleState state) {
+        setState(state);
+    }
+
+    /**
+     * Switches to generating pours for a different state, and stops following the old one.
+     * Arrays are kept when the number of test tubes does not change, so a solver can use one
+     * generator for every state it expands.
+     *
+     * @param newState The state to generate pours for.
+     */
+    public void setState(PuzzleState newState) {
+        detach();
+        state = newState;
+        int tubeCount = state.getTubeCount();
+        if(bucketColours == null || bucketColours.length != tubeCount) {
+            tops = new int[PuzzleState.MAX_COLOUR + 1][tubeCount];
+            open = new int[PuzzleState.MAX_COLOUR + 1][tubeCount];
+            bucketColours = new int[tubeCount];
+            topPositions = new int[tubeCount];
+            openPositions = new int[tubeCount];
+        }
+        rebuild();
+        state.setTubeListener(this::tubeChanged);
+    }
+
+    /**
+     * Stops following the state. The generator must be given a new state before it is used again.
+     */
+    public void detach() {
+        if(state != null) {
+            state.setTubeListener(null);
+            state = null;
+        }
+    }
+
+    /**
+     * Checks if any pour is allowed.
+     *
+     * @return True if at least one pour is allowed.
+     */
+    public boolean hasLegalPour() {
+        return countLegalPours() > 0;
+    }
+
+    /**
+     * Counts the pours that are allowed. This only looks at the size of each bucket.
+     *
+     * @return The number of pours generate() would give.
+     */
+    public int countLegalPours() {
+        int count = 0;
+        int emptyCount = topSizes[PuzzleState.EMPTY];
+        for(long colours = topColours; colours != 0; colours &= colours - 1) {
+            int colour = Long.numberOfTrailingZeros(colours);
+            // Every open test tube is also a source, and can not pour into itself
+            count += topSizes[colour] * (openSizes[colour] + emptyCount) - openSizes[colour];
+        }
+        return count;
+    }
+
+    /**
+     * Finds every pour that is allowed.
+     *
+     * @param commands Filled with the encoded command for each pour. Must have room for
+     *                 at least countLegalPours() commands.
+     * @return The number of commands that were written.
+     */
+    public int generate(int[] commands) {
+        return generate(commands, false);
+    }
+
+    /**
+     * Finds the pours that can lead to a different state once the test tubes are sorted.
+     * Pours into empty test tubes all lead to the same sorted state, so only the first
+     * empty test tube is used, and a test tube holding only one colour is never poured
+     * into an empty one as that only swaps the two test tubes around.
+     *
+     * @param commands Filled with the encoded command for each pour. Must have room for
+     *                 at least countLegalPours() commands.
+     * @return The number of commands that were written.
+     */
+    public int generateDistinct(int[] commands) {
+        return generate(commands, true);
+    }
+
+    /**
+     * Reads the pours out of the buckets.
+     *
+     * @param commands Filled with the encoded command for each pour.
+     * @param isDistinct True to leave out pours into empty test tubes that give the same sorted state.
+     * @return The number of commands that were written.
+     */
+    private int generate(int[] commands, boolean isDistinct) {
+        int count = 0;
+        int[] empties = tops[PuzzleState.EMPTY];
+        int emptyCount = topSizes[PuzzleState.EMPTY];
+        for(long colours = topColours; colours != 0; colours &= colours - 1) {
+            int colour = Long.numberOfTrailingZeros(colours);
+            int[] sources = tops[colour], targets = open[colour];
+            for(int i = 0; i < topSizes[colour]; i++) {
+                int from = sources[i];
+                int topCount = state.countTopColour(from);
+                for(int j = 0; j < openSizes[colour]; j++) {
+                    int to = targets[j];
+                    if(to != from) {
+                        commands[count++] = Command.encode(from, to, Math.min(topCount, state.countRoom(to)));
+                    }
+                }
+                int emptyTargets = !isDistinct ? emptyCount
+                        : topCount == state.count(from) ? 0 : Math.min(1, emptyCount);
+                for(int j = 0; j < emptyTargets; j++) {
+                    commands[count++] = Command.encode(from, empties[j], topCount);
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Moves a test tube into the buckets for its new contents. Called by the state each
+     * time a test tube changes.
+     *
+     * @param tube Index of the test tube that changed.
+     */
+    private void tubeChanged(int tube) {
+        int colour = state.topColour(tube);
+        boolean isOpen = colour != PuzzleState.EMPTY && state.countRoom(tube) != 0;
+        if(colour == bucketColours[tube] && isOpen == (openPositions[tube] >= 0)) return;
+        removeFromBuckets(tube);
+        addToBuckets(tube, colour, isOpen);
+    }
+
+    /**
+     * Places every test tube of the state in its buckets.
+     */
+    private void rebuild() {
+        Arrays.fill(topSizes, 0);
+        Arrays.fill(openSizes, 0);
+        topColours = 0;
+        for(int tube = 0; tube < bucketColours.length; tube++) {
+            int colour = state.topColour(tube);
+            addToBuckets(tube, colour, colour != PuzzleState.EMPTY && state.countRoom(tube) != 0);
+        }
+    }
+
+    /**
+     * Adds a test tube to the tops bucket for a colour, and to the open bucket if it has room.
+     *
+     * @param tube Index of the test tube.
+     * @param colour The top colour of the test tube, or EMPTY.
+     * @param isOpen True if the test tube has colour and is not full.
+     */
+    private void addToBuckets(int tube, int colour, boolean isOpen) {
+        bucketColours[tube] = colour;
+        topPositions[tube] = topSizes[colour];
+        tops[colour][topSizes[colour]++] = tube;
+        if(colour != PuzzleState.EMPTY) topColours |= 1L << colour;
+        if(isOpen) {
+            openPositions[tube] = openSizes[colour];
+            open[colour][openSizes[colour]++] = tube;
+        } else {
+            openPositions[tube] = -1;
+        }
+    }
+
+    /**
+     * Removes a test tube from its buckets by moving the last test tube of each bucket into its place.
+     *
+     * @param tube Index of the test tube.
+     */
+    private void removeFromBuckets(int tube) {
+        int colour = bucketColours[tube];
+        int last = tops[colour][--topSizes[colour]];
+        tops[colour][topPositions[tube]] = last;
+        topPositions[last] = topPositions[tube];
+        if(topSizes[colour] == 0) topColours &= ~(1L << colour);
+        if(openPositions[tube] >= 0) {
+            last = open[colour][--openSizes[colour]];
+            open[colour][openPositions[tube]] = last;
+            openPositions[last] = openPositions[tube];
+        }
+    }
+}
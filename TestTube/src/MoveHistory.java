@@ -0,0 +1,204 @@
+/**
+ * Test Tube
+ * Author: Peter Mitchell (2021)
+ *
+ * MoveHistory class:
+ * Stores the encoded commands that have been applied so they can be undone, and
+ * the commands that have been undone so they can be redone. The commands are kept
+ * in a ring buffer of ints, so recording a move never creates an object once the
+ * buffer has grown to fit. An optional limit removes the oldest moves first.
+ */
+public class MoveHistory {
+    /**
+     * The starting size of the buffer.
+     */
+    private static final int INITIAL_CAPACITY = 64;
+
+    /**
+     * The buffer of encoded commands. The length is always a power of two.
+     */
+    private int[] commands;
+    /**
+     * The position in the buffer of the oldest command.
+     */
+    private int start;
+    /**
+     * The number of commands that can be undone.
+     */
+    private int undoCount;
+    /**
+     * The number of commands after those that can be undone that can be redone.
+     */
+    private int redoCount;
+    /**
+     * The largest number of commands to keep, or 0 to keep every command.
+     */
+    private int limit;
+
+    /**
+     * Creates an empty history that keeps every command.
+     */
+    public MoveHistory() {
+        this(0);
+    }
+
+    /**
+     * Creates an empty history.
+     *
+     * @param limit The largest number of commands to keep, or 0 to keep every command.
+     */
+    public MoveHistory(int limit) {
+        commands = new int[INITIAL_CAPACITY];
+        this.limit = limit;
+    }
+
+    /**
+     * Records a command that has been executed. Any commands that could be redone are lost.
+     * If the history is at its limit the oldest command is removed.
+     *
+     * @param command The encoded command.
+     */
+    public void push(int command) {
+        redoCount = 0;
+        if(limit > 0 && undoCount == limit) {
+            start = (start + 1) & (commands.length - 1);
+            undoCount--;
+        } else if(undoCount == commands.length) {
+            grow();
+        }
+        commands[(start + undoCount) & (commands.length - 1)] = command;
+        undoCount++;
+    }
+
+    /**
+     * Takes the most recent command so it can be reversed. It can then be redone.
+     * Check isUndoAvailable() first.
+     *
+     * @return The encoded command to reverse.
+     */
+    public int undo() {
+        undoCount--;
+        redoCount++;
+        return commands[(start + undoCount) & (commands.length - 1)];
+    }
+
+    /**
+     * Takes the most recently undone command so it can be executed again.
+     * Check isRedoAvailable() first.
+     *
+     * @return The encoded command to execute.
+     */
+    public int redo() {
+        int command = commands[(start + undoCount) & (commands.length - 1)];
+        undoCount++;
+        redoCount--;
+        return command;
+    }
+
+    /**
+     * Checks if there are any commands to undo().
+     *
+     * @return True if undo() can be called.
+     */
+    public boolean isUndoAvailable() {
+        return undoCount != 0;
+    }
+
+    /**
+     * Checks if there are any commands to redo().
+     *
+     * @return True if redo() can be called.
+     */
+    public boolean isRedoAvailable() {
+        return redoCount != 0;
+    }
+
+    /**
+     * Gets the number of commands that can be undone.
+     *
+     * @return The number of commands in the history.
+     */
+    public int size() {
+        return undoCount;
+    }
+
+    /**
+     * Gets a command that can be undone, in the order they were executed.
+     *
+     * @param index The position of the command, where 0 is the oldest kept command.
+     * @return The encoded command.
+     */
+    public int get(int index) {
+        if(index < 0 || index >= undoCount) {
+            throw new IndexOutOfBoundsException("Command " + index + " of " + undoCount);
+        }
+        return commands[(start + index) & (commands.length - 1)];
+    }
+
+    /**
+     * Gets the number of commands that can be redone.
+     *
+     * @return The number of undone commands.
+     */
+    public int redoSize() {
+        return redoCount;
+    }
+
+    /**
+     * Gets a command that can be redone, in the order redo() would return them.
+     *
+     * @param index The position of the command, where 0 is the next command to redo.
+     * @return The encoded command.
+     */
+    public int getRedo(int index) {
+        if(index < 0 || index >= redoCount) {
+            throw new IndexOutOfBoundsException("Redo command " + index + " of " + redoCount);
+        }
+        return commands[(start + undoCount + index) & (commands.length - 1)];
+    }
+
+    /**
+     * Removes every command.
+     */
+    public void clear() {
+        start = 0;
+        undoCount = 0;
+        redoCount = 0;
+    }
+
+    /**
+     * Changes the largest number of commands to keep. If there are more commands than the
+     * new limit the oldest are removed, and any commands that could be redone are lost.
+     *
+     * @param limit The largest number of commands to keep, or 0 to keep every command.
+     */
+    public void setLimit(int limit) {
+        this.limit = limit;
+        redoCount = 0;
+        if(limit > 0 && undoCount > limit) {
+            start = (start + undoCount - limit) & (commands.length - 1);
+            undoCount = limit;
+        }
+    }
+
+    /**
+     * Gets the largest number of commands that will be kept.
+     *
+     * @return The limit, or 0 if every command is kept.
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Doubles the size of the buffer, moving the oldest command to the start.
+     */
+    private void grow() {
+        int[] larger = new int[commands.length * 2];
+        int firstPart = commands.length - start;
+        System.arraycopy(commands, start, larger, 0, firstPart);
+        System.arraycopy(commands, 0, larger, firstPart, start);
+        commands = larger;
+        start = 0;
+    }
+}
@@ -0,0 +1,501 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test Tube
+ * Author: Peter Mitchell (2021)
+ *
+ * MoveJournal class:
+ * An append only file of every event in every game played: new puzzles, pours, undos and
+ * resets. Each event is numbered in order from 0. Snapshots of the whole state are written
+ * when a puzzle starts or is reset, and every SNAPSHOT_INTERVAL events, so the state after
+ * any event can be rebuilt by reading the nearest snapshot before it and replaying only the
+ * events between them. Undo events hold the command they undid so they can be replayed
+ * without the rest of the history.
+ * Events are collected in a buffer and written to the file by a background thread every
+ * FLUSH_INTERVAL milliseconds, or sooner if the buffer fills, rather than on every move.
+ *
+ * File layout: the MAGIC int and the VERSION int, followed by records that each start with
+ * a type byte. POUR and UNDO records have the encoded command as an int. NEW and RESET
+ * records have nothing else, and are always followed by a SNAPSHOT of the same event.
+ * SNAPSHOT records have the event number as a long, the number of test tubes as an int, the
+ * capacity of the test tubes as a byte, and the packed long for each test tube.
+ *
+ * Usage: java MoveJournal file [event]
+ * Prints the number of events, and the state after the event if one is given.
+ */
+public class MoveJournal implements AutoCloseable {
+    /**
+     * The first four bytes of every journal, "TTJL".
+     */
+    public static final int MAGIC = 0x54544A4C;
+    /**
+     * The version of the file layout.
+     */
+    public static final int VERSION = 2;
+    /**
+     * The most events between two snapshots.
+     */
+    public static final int SNAPSHOT_INTERVAL = 64;
+    /**
+     * The time in milliseconds between writes of the buffered events to the file.
+     */
+    public static final long FLUSH_INTERVAL = 1000;
+    /**
+     * Record type for a pour.
+     */
+    public static final byte POUR = 1;
+    /**
+     * Record type for an undone pour.
+     */
+    public static final byte UNDO = 2;
+    /**
+     * Record type for returning to the start of the puzzle.
+     */
+    public static final byte RESET = 3;
+    /**
+     * Record type for starting a new puzzle.
+     */
+    public static final byte NEW = 4;
+    /**
+     * Record type for the whole state after an event.
+     */
+    public static final byte SNAPSHOT = 5;
+    /**
+     * The size of the header at the start of the file.
+     */
+    private static final int HEADER_SIZE = 8;
+    /**
+     * The size of a snapshot record before its test tubes.
+     */
+    private static final int SNAPSHOT_HEADER_SIZE = Byte.BYTES + Long.BYTES + Integer.BYTES + Byte.BYTES;
+    /**
+     * The size of the buffer that events are collected in before writing.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The open journal file.
+     */
+    private final FileChannel channel;
+    /**
+     * Events that have not been written to the file yet.
+     */
+    private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    /**
+     * The position in the file the buffer will be written at.
+     */
+    private long writePosition;
+    /**
+     * The number of events in the journal.
+     */
+    private long eventCount;
+    /**
+     * The number of events since the last snapshot.
+     */
+    private int eventsSinceSnapshot;
+    /**
+     * The event number of each snapshot, in order.
+     */
+    private long[] snapshotEvents = new long[16];
+    /**
+     * The position in the file of each snapshot, matching snapshotEvents.
+     */
+    private long[] snapshotPositions = new long[16];
+    /**
+     * The number of snapshots.
+     */
+    private int snapshotCount;
+    /**
+     * Writes the buffer to the file on a schedule, or null if it is only written by flush().
+     */
+    private final ScheduledExecutorService flusher;
+
+    /**
+     * Prints the number of events in a journal, and the state after an event if one is given.
+     *
+     * @param args The file, and optionally the event number.
+     * @throws IOException If the journal could not be read.
+     */
+    public static void main(String[] args) throws IOException {
+        try(MoveJournal journal = new MoveJournal(Paths.get(args[0]), false)) {
+            System.out.println(journal.getEventCount() + " events");
+            if(args.length > 1) {
+                System.out.println(PuzzleFormat.format(journal.getStateAfter(Long.parseLong(args[1]))));
+            }
+        }
+    }
+
+    /**
+     * Opens a journal, creating it if it does not exist. New events are added to the end of
+     * an existing journal, after any partly written record left by a crash is removed.
+     *
+     * @param path The journal file.
+     * @param flushOnSchedule True to write events to the file every FLUSH_INTERVAL milliseconds.
+     * @throws IOException If the file could not be opened or is not a journal.
+     */
+    public MoveJournal(Path path, boolean flushOnSchedule) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                   StandardOpenOption.WRITE);
+        if(channel.size() == 0) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION);
+            header.flip();
+            writeFully(header, 0);
+            writePosition = HEADER_SIZE;
+        } else {
+            scan();
+        }
+        if(flushOnSchedule) {
+            flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "Journal flush");
+                thread.setDaemon(true);
+                return thread;
+            });
+            flusher.scheduleWithFixedDelay(this::flushQuietly, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+        } else {
+            flusher = null;
+        }
+    }
+
+    /**
+     * Reads every record of an existing journal to find the snapshots and count the events,
+     * then cuts off anything after the last complete record.
+     *
+     * @throws IOException If the file could not be read or is not a journal.
+     */
+    private void scan() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(header, 0);
+        if(header.getInt() != MAGIC || header.getInt() != VERSION) {
+            throw new IOException("Not a version " + VERSION + " journal");
+        }
+        long position = HEADER_SIZE;
+        long size = channel.size();
+        ByteBuffer record = ByteBuffer.allocate(SNAPSHOT_HEADER_SIZE);
+        while(position < size) {
+            record.clear().limit(Byte.BYTES + Integer.BYTES);
+            if(!tryRead(record, position)) break;
+            byte type = record.get(0);
+            if(type == SNAPSHOT) {
+                record.clear();
+                if(!tryRead(record, position)) break;
+                int tubeCount = record.getInt(Byte.BYTES + Long.BYTES);
+                long recordSize = snapshotSize(tubeCount);
+                if(position + recordSize > size) break;
+                addSnapshot(record.getLong(Byte.BYTES), position);
+                position += recordSize;
+            } else {
+                if(type != POUR && type != UNDO && type != RESET && type != NEW) {
+                    throw new IOException("Unknown record type " + type + " at " + position);
+                }
+                if((type == RESET || type == NEW) && !hasCompleteSnapshot(position + eventSize(type), size)) {
+                    break;
+                }
+                eventCount++;
+                eventsSinceSnapshot++;
+                position += eventSize(type);
+            }
+        }
+        writePosition = position;
+        channel.truncate(position);
+    }
+
+    /**
+     * Checks that a whole snapshot record was written at a position, so an event that must
+     * be followed by one is not kept without it.
+     *
+     * @param position The position the snapshot should start at.
+     * @param size The size of the file.
+     * @return True if there is a complete snapshot at the position.
+     * @throws IOException If the file could not be read.
+     */
+    private boolean hasCompleteSnapshot(long position, long size) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(SNAPSHOT_HEADER_SIZE);
+        return tryRead(header, position) && header.get(0) == SNAPSHOT
+                && position + snapshotSize(header.getInt(Byte.BYTES + Long.BYTES)) <= size;
+    }
+
+    /**
+     * Records a pour. The state is used when a snapshot is due.
+     *
+     * @param command The encoded command that was executed.
+     * @param state The state after the pour.
+     */
+    public synchronized void recordPour(int command, PuzzleState state) {
+        ensureRoom(eventSize(POUR));
+        buffer.put(POUR).putInt(command);
+        endEvent(state, false);
+    }
+
+    /**
+     * Records an undone pour. The state is used when a snapshot is due.
+     *
+     * @param command The encoded command that was reversed.
+     * @param state The state after the undo.
+     */
+    public synchronized void recordUndo(int command, PuzzleState state) {
+        ensureRoom(eventSize(UNDO));
+        buffer.put(UNDO).putInt(command);
+        endEvent(state, false);
+    }
+
+    /**
+     * Records a return to the start of the puzzle, with a snapshot of the starting state.
+     *
+     * @param state The state after the reset.
+     */
+    public synchronized void recordReset(PuzzleState state) {
+        ensureRoom(eventSize(RESET));
+        buffer.put(RESET);
+        endEvent(state, true);
+    }
+
+    /**
+     * Records the start of a new puzzle, with a snapshot of its starting state.
+     *
+     * @param state The starting state of the puzzle.
+     */
+    public synchronized void recordNewPuzzle(PuzzleState state) {
+        ensureRoom(eventSize(NEW));
+        buffer.put(NEW);
+        endEvent(state, true);
+    }
+
+    /**
+     * Counts an event that has just been added to the buffer and writes a snapshot
+     * after it if one is needed or due.
+     *
+     * @param state The state after the event.
+     * @param forceSnapshot True if a snapshot must be written.
+     */
+    private void endEvent(PuzzleState state, boolean forceSnapshot) {
+        eventCount++;
+        eventsSinceSnapshot++;
+        if(forceSnapshot || eventsSinceSnapshot >= SNAPSHOT_INTERVAL) {
+            int size = snapshotSize(state.getTubeCount());
+            ensureRoom(size);
+            if(buffer.remaining() < size) {
+                buffer = ByteBuffer.allocate(size);
+            }
+            addSnapshot(eventCount - 1, writePosition + buffer.position());
+            buffer.put(SNAPSHOT).putLong(eventCount - 1).putInt(state.getTubeCount()).put((byte) state.getCapacity());
+            for(int tube = 0; tube < state.getTubeCount(); tube++) {
+                buffer.putLong(state.getTube(tube));
+            }
+        }
+    }
+
+    /**
+     * Remembers where a snapshot is so it can be found without reading the file.
+     *
+     * @param event The event the snapshot is the state after.
+     * @param position The position of the snapshot record in the file.
+     */
+    private void addSnapshot(long event, long position) {
+        if(snapshotCount == snapshotEvents.length) {
+            snapshotEvents = Arrays.copyOf(snapshotEvents, snapshotCount * 2);
+            snapshotPositions = Arrays.copyOf(snapshotPositions, snapshotCount * 2);
+        }
+        snapshotEvents[snapshotCount] = event;
+        snapshotPositions[snapshotCount] = position;
+        snapshotCount++;
+        eventsSinceSnapshot = 0;
+    }
+
+    /**
+     * Rebuilds the state after an event by reading the nearest snapshot at or before it and
+     * replaying the events in between. Any buffered events are written to the file first.
+     *
+     * @param event The event number, from 0 to getEventCount() - 1.
+     * @return The state after the event.
+     * @throws IOException If the journal could not be read.
+     * @throws IndexOutOfBoundsException If there is no such event.
+     */
+    public synchronized PuzzleState getStateAfter(long event) throws IOException {
+        if(event < 0 || event >= eventCount) {
+            throw new IndexOutOfBoundsException("Event " + event + " of " + eventCount);
+        }
+        flush();
+        // Find the last snapshot at or before the event
+        int index = Arrays.binarySearch(snapshotEvents, 0, snapshotCount, event);
+        if(index < 0) index = -index - 2;
+        long position = snapshotPositions[index];
+
+        ByteBuffer header = ByteBuffer.allocate(SNAPSHOT_HEADER_SIZE);
+        readFully(header, position);
+        int tubeCount = header.getInt(Byte.BYTES + Long.BYTES);
+        int capacity = header.get(Byte.BYTES + Long.BYTES + Integer.BYTES);
+        ByteBuffer tubes = ByteBuffer.allocate(tubeCount * Long.BYTES);
+        readFully(tubes, position + header.capacity());
+        PuzzleState state = new PuzzleState(tubeCount, capacity);
+        for(int tube = 0; tube < tubeCount; tube++) {
+            state.setTube(tube, tubes.getLong());
+        }
+
+        // Only pours and undos can come before the next snapshot, and there are fewer than
+        // SNAPSHOT_INTERVAL of them, so they are read all at once
+        int replayCount = (int) (event - snapshotEvents[index]);
+        ByteBuffer events = ByteBuffer.allocate(replayCount * eventSize(POUR));
+        readFully(events, position + snapshotSize(tubeCount));
+        for(int i = 0; i < replayCount; i++) {
+            byte type = events.get();
+            int command = events.getInt();
+            if(type == POUR) {
+                Command.execute(state, command);
+            } else if(type == UNDO) {
+                Command.reverse(state, command);
+            } else {
+                throw new IOException("Unexpected record type " + type + " without a snapshot");
+            }
+        }
+        return state;
+    }
+
+    /**
+     * Gets the number of events in the journal.
+     *
+     * @return The number of events, including those not yet written to the file.
+     */
+    public synchronized long getEventCount() {
+        return eventCount;
+    }
+
+    /**
+     * Gets the number of snapshots in the journal.
+     *
+     * @return The number of snapshots, including those not yet written to the file.
+     */
+    public synchronized int getSnapshotCount() {
+        return snapshotCount;
+    }
+
+    /**
+     * Writes any buffered events to the file.
+     *
+     * @throws IOException If the file could not be written.
+     */
+    public synchronized void flush() throws IOException {
+        if(buffer.position() == 0) return;
+        buffer.flip();
+        writeFully(buffer, writePosition);
+        writePosition += buffer.limit();
+        buffer.clear();
+    }
+
+    /**
+     * Writes any buffered events to the file for the scheduled flush. Failures are
+     * reported instead of stopping later flushes.
+     */
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch(IOException e) {
+            System.err.println("Could not write the move journal: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Stops the scheduled flushes, then writes any buffered events and closes the file.
+     *
+     * @throws IOException If the file could not be written or closed.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if(flusher != null) {
+            flusher.shutdown();
+        }
+        try {
+            flush();
+            channel.force(false);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Makes sure there is room in the buffer for a record, writing the buffer to the file if not.
+     *
+     * @param size The size of the record.
+     */
+    private void ensureRoom(int size) {
+        if(buffer.remaining() >= size) return;
+        try {
+            flush();
+        } catch(IOException e) {
+            throw new IllegalStateException("Could not write the move journal", e);
+        }
+    }
+
+    /**
+     * Gets the size of an event record.
+     *
+     * @param type The type of the event.
+     * @return The size of the record in bytes.
+     */
+    private static int eventSize(byte type) {
+        return type == POUR || type == UNDO ? Byte.BYTES + Integer.BYTES : Byte.BYTES;
+    }
+
+    /**
+     * Gets the size of a snapshot record.
+     *
+     * @param tubeCount The number of test tubes in the snapshot.
+     * @return The size of the record in bytes.
+     */
+    private static int snapshotSize(int tubeCount) {
+        return SNAPSHOT_HEADER_SIZE + tubeCount * Long.BYTES;
+    }
+
+    /**
+     * Writes all of a buffer to the file.
+     *
+     * @param source The bytes to write, from its position to its limit.
+     * @param position The position in the file to write at.
+     * @throws IOException If the file could not be written.
+     */
+    private void writeFully(ByteBuffer source, long position) throws IOException {
+        while(source.hasRemaining()) {
+            position += channel.write(source, position);
+        }
+    }
+
+    /**
+     * Fills a buffer from the file.
+     *
+     * @param target The buffer to fill from its position to its limit. It is flipped ready to read.
+     * @param position The position in the file to read from.
+     * @throws IOException If the file could not be read or ends first.
+     */
+    private void readFully(ByteBuffer target, long position) throws IOException {
+        if(!tryRead(target, position)) {
+            throw new EOFException("Journal ends at " + channel.size());
+        }
+    }
+
+    /**
+     * Fills a buffer from the file if the file is long enough.
+     *
+     * @param target The buffer to fill from its position to its limit. It is flipped ready to read.
+     * @param position The position in the file to read from.
+     * @return False if the file ends first.
+     * @throws IOException If the file could not be read.
+     */
+    private boolean tryRead(ByteBuffer target, long position) throws IOException {
+        while(target.hasRemaining()) {
+            int read = channel.read(target, position);
+            if(read < 0) return false;
+            position += read;
+        }
+        target.flip();
+        return true;
+    }
+}
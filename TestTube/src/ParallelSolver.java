@@ -0,0 +1,338 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Test Tube
+ * Author: Peter Mitchell (2021)
+ *
+ * ParallelSolver class:
+ * Searches for any sequence of pours that solves a PuzzleState using a depth first
+ * search spread over a ForkJoinPool. Each task searches on its own, trying the pours
+ * with the best estimate first, and hands parts of its search to new tasks whenever
+ * idle threads could steal them. All tasks share one concurrent table of visited
+ * states keyed on the sorted test tube contents. When every reachable state has been
+ * visited without finding a solution the puzzle is proven to be unsolvable.
+ * Unlike the Solver the solutions found are not guaranteed to be the shortest.
+ */
+public class ParallelSolver {
+    /**
+     * The default maximum number of states to visit before giving up, the same as the Solver.
+     */
+    public static final long DEFAULT_STATE_LIMIT = 2_000_000L;
+    /**
+     * An estimate of the memory used by each visited state apart from the test tubes of the
+     * state and its key: the objects, the table entry, and the path node and move.
+     */
+    private static final int STATE_OVERHEAD_BYTES = 256;
+    /**
+     * The fraction of the maximum heap size the visited states may be expected to use.
+     */
+    private static final int HEAP_FRACTION = 2;
+    /**
+     * The number of states a task expands before adding them to the shared count and
+     * checking the state limit, so the count is not summed for every state.
+     */
+    private static final int COUNT_INTERVAL = 1024;
+    /**
+     * A task will only hand off work while it has fewer than this many queued tasks that
+     * have not been stolen, so work is split up when threads are running out of it.
+     */
+    private static final int SURPLUS_THRESHOLD = 2;
+
+    /**
+     * A single pour in the path from the start, linked back to the previous pour.
+     */
+    private static class PathNode {
+        /**
+         * The pour that was applied.
+         */
+        private final Move move;
+        /**
+         * The previous pour in the path, or null if this was the first.
+         */
+        private final PathNode parent;
+
+        /**
+         * @param move The pour that was applied.
+         * @param parent The previous pour in the path, or null if this was the first.
+         */
+        private PathNode(Move move, PathNode parent) {
+            this.move = move;
+            this.parent = parent;
+        }
+    }
+
+    /**
+     * Searches every state reachable from one start state, handing off parts of the search
+     * to new tasks when there is surplus capacity.
+     */
+    private class SearchTask extends RecursiveAction {
+        /**
+         * Tasks are never serialized, this is only to satisfy Serializable.
+         */
+        private static final long serialVersionUID = 1L;
+        /**
+         * The state this task begins searching from.
+         */
+        private final PuzzleState state;
+        /**
+         * The pours used to reach the state.
+         */
+        private final PathNode path;
+
+        /**
+         * @param state The state this task begins searching from.
+         * @param path The pours used to reach the state.
+         */
+        private SearchTask(PuzzleState state, PathNode path) {
+            this.state = state;
+            this.path = path;
+        }
+
+        /**
+         * Runs the depth first search with an explicit stack so long paths can not overflow.
+         */
+        @Override
+        protected void compute() {
+            List<SearchTask> forked = new ArrayList<>();
+            MoveGenerator generator = generators.get();
+            if(generator == null) {
+                generator = new MoveGenerator(state);
+                generators.set(generator);
+            }
+            List<PuzzleState> stateStack = new ArrayList<>();
+            List<PathNode> pathStack = new ArrayList<>();
+            stateStack.add(state);
+            pathStack.add(path);
+
+            int uncounted = 0;
+            while(!stateStack.isEmpty() && solution.get() == null && !limitReached) {
+                PuzzleState current = stateStack.remove(stateStack.size()-1);
+                PathNode currentPath = pathStack.remove(pathStack.size()-1);
+                if(current.isSolved()) {
+                    solution.compareAndSet(null, currentPath);
+                    break;
+                }
+                if(++uncounted == COUNT_INTERVAL) {
+                    addExpanded(uncounted);
+                    uncounted = 0;
+                }
+
+                List<PuzzleState> children = new ArrayList<>();
+                List<PathNode> childPaths = new ArrayList<>();
+                generateChildren(current, currentPath, generator, children, childPaths);
+                // Push the worst first so the best estimate is searched next
+                for(int i = children.size()-1; i >= 0; i--) {
+                    if(ForkJoinTask.getSurplusQueuedTaskCount() < SURPLUS_THRESHOLD) {
+                        SearchTask task = new SearchTask(children.get(i), childPaths.get(i));
+                        task.fork();
+                        forked.add(task);
+                    } else {
+                        stateStack.add(children.get(i));
+                        pathStack.add(childPaths.get(i));
+                    }
+                }
+            }
+            addExpanded(uncounted);
+            for(SearchTask task : forked) {
+                task.join();
+            }
+        }
+    }
+
+    /**
+     * The number of threads to search with.
+     */
+    private final int parallelism;
+    /**
+     * The maximum number of states to visit before giving up.
+     */
+    private final long stateLimit;
+    /**
+     * The state limit for the current search, lowered if the states would not fit in the heap.
+     */
+    private long effectiveLimit;
+    /**
+     * The sorted contents of every state that has been reached in the current search.
+     */
+    private Set<PuzzleState> visited;
+    /**
+     * The solution found by any task, or null while still searching.
+     */
+    private final AtomicReference<PathNode> solution = new AtomicReference<>();
+    /**
+     * The MoveGenerator of each thread in the pool, kept for every task the thread runs.
+     */
+    private final ThreadLocal<MoveGenerator> generators = new ThreadLocal<>();
+    /**
+     * The number of states expanded by all the tasks.
+     */
+    private final LongAdder expandedCount = new LongAdder();
+    /**
+     * True if the search stopped because it reached the state limit.
+     */
+    private volatile boolean limitReached;
+
+    /**
+     * Creates a solver that uses every available processor and the default state limit.
+     */
+    public ParallelSolver() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param parallelism The number of threads to search with.
+     */
+    public ParallelSolver(int parallelism) {
+        this(parallelism, DEFAULT_STATE_LIMIT);
+    }
+
+    /**
+     * @param parallelism The number of threads to search with.
+     * @param stateLimit The maximum number of states to visit before giving up. A search
+     *                   stops sooner if the states would not fit in the heap.
+     */
+    public ParallelSolver(int parallelism, long stateLimit) {
+        this.parallelism = parallelism;
+        this.stateLimit = stateLimit;
+    }
+
+    /**
+     * Searches for a sequence of pours from the start state to a solved state.
+     * The start state is not modified.
+     *
+     * @param start The state to solve.
+     * @return The list of moves to apply in order, an empty list if already solved, or null
+     *         if there is no solution or the state limit was reached. Use isLimitReached()
+     *         to tell the difference.
+     */
+    public List<Move> solve(PuzzleState start) {
+        solution.set(null);
+        expandedCount.reset();
+        limitReached = false;
+        if(!Solver.hasCompleteColourCounts(start)) return null;
+        // The root task has no path node, so a solved start can not be reported as a solution
+        if(start.isSolved()) return new ArrayList<>();
+        effectiveLimit = Math.min(stateLimit, getHeapStateLimit(start.getTubeCount()));
+
+        visited = ConcurrentHashMap.newKeySet();
+        PuzzleState initial = new PuzzleState(start);
+        PuzzleState key = new PuzzleState(initial);
+        key.sortTubes();
+        visited.add(key);
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new SearchTask(initial, null));
+        } finally {
+            pool.shutdown();
+            visited = null;
+        }
+
+        PathNode found = solution.get();
+        if(found == null) return null;
+        List<Move> path = new ArrayList<>();
+        for(PathNode current = found; current != null; current = current.parent) {
+            path.add(current.move);
+        }
+        Collections.reverse(path);
+        return path;
+    }
+
+    /**
+     * Checks if the most recent solve() gave up because it reached the state limit.
+     * If solve() returned null and this is false the puzzle is proven to be unsolvable.
+     *
+     * @return True if the state limit was reached.
+     */
+    public boolean isLimitReached() {
+        return limitReached;
+    }
+
+    /**
+     * Gets the number of states expanded by the most recent solve().
+     *
+     * @return The number of expanded states.
+     */
+    public long getExpandedCount() {
+        return expandedCount.sum();
+    }
+
+    /**
+     * Gets the number of threads this solver searches with.
+     *
+     * @return The parallelism level.
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Adds states expanded by a task to the shared count, and stops every task once the
+     * count is over the state limit.
+     *
+     * @param count The number of states expanded since the task last added to the count.
+     */
+    private void addExpanded(int count) {
+        expandedCount.add(count);
+        if(expandedCount.sum() > effectiveLimit) {
+            limitReached = true;
+        }
+    }
+
+    /**
+     * Estimates how many states with the given number of test tubes can be visited before
+     * the visited table and paths use more than 1/HEAP_FRACTION of the maximum heap size.
+     *
+     * @param tubeCount The number of test tubes in each state.
+     * @return The estimated number of states.
+     */
+    private static long getHeapStateLimit(int tubeCount) {
+        long bytesPerState = STATE_OVERHEAD_BYTES + 2L * tubeCount * Long.BYTES;
+        return Runtime.getRuntime().maxMemory() / HEAP_FRACTION / bytesPerState;
+    }
+
+    /**
+     * Finds every pour from the state that reaches a state no task has visited yet. The
+     * new states are claimed in the visited table and returned sorted by best estimate first.
+     *
+     * @param state The state to pour from.
+     * @param path The pours used to reach the state.
+     * @param generator The generator used by the calling task.
+     * @param children The list to add the new states to.
+     * @param childPaths The list to add the paths to the new states to.
+     */
+    private void generateChildren(PuzzleState state, PathNode path, MoveGenerator generator,
+                                  List<PuzzleState> children, List<PathNode> childPaths) {
+        List<Integer> estimates = new ArrayList<>();
+        generator.setState(state);
+        // Same symmetry pruning as the Solver, and in the same order
+        int[] moves = new int[generator.countLegalPours()];
+        int moveCount = generator.generateDistinct(moves);
+        Arrays.sort(moves, 0, moveCount);
+        for(int i = 0; i < moveCount; i++) {
+            PuzzleState next = new PuzzleState(state);
+            Move move = Solver.pour(next, Command.getFrom(moves[i]), Command.getTo(moves[i]));
+            PuzzleState key = new PuzzleState(next);
+            key.sortTubes();
+            if(!visited.add(key)) continue;
+
+            // Insert in order of estimate, there are only ever a few children
+            int estimate = Solver.estimateRemaining(next);
+            int insertAt = estimates.size();
+            while(insertAt > 0 && estimates.get(insertAt-1) > estimate) insertAt--;
+            estimates.add(insertAt, estimate);
+            children.add(insertAt, next);
+            childPaths.add(insertAt, new PathNode(move, path));
+        }
+    }
+}
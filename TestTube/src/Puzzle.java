@@ -1,8 +1,10 @@
 import java.awt.*;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
+import java.util.BitSet;
 import java.util.List;
+import java.util.OptionalLong;
+import java.util.function.Consumer;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * Test Tube
@@ -14,15 +16,45 @@ import java.util.List;
 public class Puzzle {
 
     /**
-     * All the possible colours that can be used for the game.
+     * All the possible colours that can be used for the game, where colour ID n is drawn with
+     * element n-1. There is one for every colour ID up to PuzzleState.MAX_COLOUR.
      */
-    public static final Color[] possibleColours = {Color.RED, Color.GREEN, Color.BLUE, Color.YELLOW, Color.CYAN, Color.PINK,
-                                                    new Color(63, 90, 38), new Color(134, 57, 57)};
+    public static final Color[] possibleColours = createPalette();
+
+    /**
+     * The packed colours of every test tube in the puzzle.
+     */
+    private PuzzleState state;
+    /**
+     * The width used to lay out the test tubes when there is no panel to use.
+     */
+    public static final int DEFAULT_LAYOUT_WIDTH = 1050;
+    /**
+     * The narrowest a test tube can be. Puzzles with too many test tubes to fit in two rows
+     * at this width are laid out over as many rows as needed.
+     */
+    public static final int MIN_TUBE_WIDTH = 60;
+    /**
+     * Puzzles with more test tubes than this are too large for newSolvablePuzzle() to check.
+     */
+    public static final int MAX_CHECKED_TUBES = 200;
 
     /**
      * The list of active test tubes as part of the puzzle.
      */
     private List<TestTube> testTubeList;
+    /**
+     * Spatial index of the test tubes to find them by position without checking every one.
+     */
+    private TubeGrid tubeGrid;
+    /**
+     * Images of the test tubes so each one is only drawn again when it changes.
+     */
+    private final TubeImageCache tubeImages = new TubeImageCache();
+    /**
+     * The indices of test tubes whose contents or selection changed since takeChangedTubes().
+     */
+    private final BitSet changedTubes = new BitSet();
     /**
      * The currently selected test tube to be poured into another.
      */
@@ -45,16 +77,54 @@ public class Puzzle {
      * The number of different colours that can be randomly placed.
      */
     private int colourCount;
+    /**
+     * The number of segments that fit in each test tube.
+     */
+    private int capacity;
+    /**
+     * The seed used to generate the current puzzle.
+     */
+    private long seed;
+    /**
+     * The width of the area the test tubes are laid out in.
+     */
+    private int layoutWidth;
+    /**
+     * The height of the area covered by the test tubes, including the space above the first row.
+     */
+    private int layoutHeight;
 
     // Properties for resetting and undoing
     /**
      * The data for all test tubes saved from the initial puzzle that can be restored.
      */
-    private Color[] initialState;
+    private PuzzleState initialState;
+    /**
+     * Keeps track of the pours that are allowed as the state changes.
+     */
+    private MoveGenerator moveGenerator;
+    /**
+     * All the commands that have been run to allow an undo action, and undone commands to allow a redo.
+     */
+    private MoveHistory commandHistory;
     /**
-     * All the commands that have been run to allow an undo action.
+     * The number of puzzles thrown away by the last newSolvablePuzzle() for being unsolvable.
      */
-    private List<Command> commandHistory;
+    private int rejectedCount;
+    /**
+     * The DifficultyRating band that newSolvablePuzzle() looks for, or DifficultyRating.ANY_BAND.
+     */
+    private int difficultyBand = DifficultyRating.ANY_BAND;
+    /**
+     * The journal that every pour, undo, and reset is recorded in, or null if there is none.
+     */
+    private MoveJournal journal;
+    /**
+     * True once the current puzzle has been recorded in the journal. Puzzles are only recorded
+     * when the first move is made, so the candidates thrown away by newSolvablePuzzle() are not.
+     * A resumed game is recorded with the moves that led to its current state.
+     */
+    private boolean journalStarted;
 
     /**
      * Prepares the puzzle ready for a newPuzzle() to be created.
@@ -65,67 +135,357 @@ public class Puzzle {
      * @param colourCount The number of different colours that can be randomly placed.
      */
     public Puzzle(int tubeCount, int emptyCount, int emptyAtEndCount, int colourCount) {
+        this(tubeCount, emptyCount, emptyAtEndCount, colourCount, DEFAULT_LAYOUT_WIDTH);
+    }
+
+    /**
+     * Prepares the puzzle ready for a newPuzzle() to be created.
+     *
+     * @param tubeCount The total number of test tubes to include.
+     * @param emptyCount The number of test tubes that will be empty at the end of the solution.
+     * @param emptyAtEndCount The number that begin empty at the end.
+     * @param colourCount The number of different colours that can be randomly placed.
+     * @param layoutWidth The width of the area the test tubes are laid out in.
+     */
+    public Puzzle(int tubeCount, int emptyCount, int emptyAtEndCount, int colourCount, int layoutWidth) {
+        this(tubeCount, emptyCount, emptyAtEndCount, colourCount, PuzzleState.DEFAULT_CAPACITY, layoutWidth);
+    }
+
+    /**
+     * Prepares the puzzle ready for a newPuzzle() to be created.
+     *
+     * @param tubeCount The total number of test tubes to include.
+     * @param emptyCount The number of test tubes that will be empty at the end of the solution.
+     * @param emptyAtEndCount The number that begin empty at the end.
+     * @param colourCount The number of different colours that can be randomly placed.
+     * @param capacity The number of segments that fit in each test tube.
+     * @param layoutWidth The width of the area the test tubes are laid out in.
+     */
+    public Puzzle(int tubeCount, int emptyCount, int emptyAtEndCount, int colourCount, int capacity, int layoutWidth) {
         testTubeList = new ArrayList<>();
+        this.layoutWidth = layoutWidth;
         this.tubeCount = tubeCount;
         this.emptyCount = emptyCount;
         this.emptyAtEndCount = emptyAtEndCount;
         this.colourCount = colourCount;
-        commandHistory = new ArrayList<>();
+        this.capacity = capacity;
+        commandHistory = new MoveHistory();
+    }
+
+    /**
+     * Creates the colours used to draw each colour ID. The first eight are the original
+     * colours of the game, and the rest are spread around the colour wheel by the golden
+     * angle with the saturation and brightness varied, so each colour stands apart from
+     * those near it and from the black of an empty segment.
+     *
+     * @return A colour for every colour ID up to PuzzleState.MAX_COLOUR.
+     */
+    private static Color[] createPalette() {
+        Color[] original = {Color.RED, Color.GREEN, Color.BLUE, Color.YELLOW, Color.CYAN, Color.PINK,
+                            new Color(63, 90, 38), new Color(134, 57, 57)};
+        Color[] palette = new Color[PuzzleState.MAX_COLOUR];
+        System.arraycopy(original, 0, palette, 0, original.length);
+        for(int i = original.length; i < palette.length; i++) {
+            float hue = (i * 0.618034f) % 1;
+            float saturation = i % 2 == 0 ? 0.55f : 0.9f;
+            float brightness = i % 3 == 0 ? 0.6f : 0.95f;
+            palette[i] = Color.getHSBColor(hue, saturation, brightness);
+        }
+        return palette;
     }
 
     /**
      * Generates a new puzzle by clearing the old one. And then using the
      * specified parameters for the class to generate a new set of test tubes filled as
-     * required.
+     * required. A random seed is chosen for the puzzle.
      */
     public void newPuzzle() {
-        testTubeList.clear();
+        newPuzzle(ThreadLocalRandom.current().nextLong());
+    }
+
+    /**
+     * Generates a new puzzle by clearing the old one. And then using the
+     * specified parameters for the class to generate a new set of test tubes filled as
+     * required. The same seed will always generate the same puzzle.
+     *
+     * @param seed The seed used to randomly place the colours.
+     */
+    public void newPuzzle(long seed) {
+        GameEvents.NewPuzzleEvent event = new GameEvents.NewPuzzleEvent();
+        event.begin();
+        long startTime = Metrics.startTimer();
+        commandHistory.clear();
+        changedTubes.clear();
+        this.seed = seed;
+        state = PuzzleGenerator.generate(seed, tubeCount, emptyCount, emptyAtEndCount, colourCount, capacity);
+        moveGenerator = new MoveGenerator(state);
+        createTestTubes();
+        // save the state to allow restarting
+        saveInitialState();
+        Metrics.NEW_PUZZLE_SECONDS.observeSince(startTime);
+        if(event.shouldCommit()) {
+            event.tubeCount = tubeCount;
+            event.colourCount = colourCount;
+            event.commit();
+        }
+    }
+
+    /**
+     * Replaces the current puzzle with one that starts from an existing state, such as
+     * a puzzle loaded from a LevelPack. The state must have the same number of test tubes
+     * and the same capacity as this puzzle was created with.
+     *
+     * @param startState The state to start from. It is copied so later changes do not affect it.
+     */
+    public void loadPuzzle(PuzzleState startState) {
+        if(startState.getTubeCount() != tubeCount || startState.getCapacity() != capacity) {
+            throw new IllegalArgumentException("Expected " + tubeCount + " test tubes of capacity " + capacity
+                                                + " but the state has " + startState.getTubeCount()
+                                                + " of capacity " + startState.getCapacity());
+        }
         commandHistory.clear();
+        changedTubes.clear();
+        seed = 0;
+        state = new PuzzleState(startState);
+        moveGenerator = new MoveGenerator(state);
+        createTestTubes();
+        saveInitialState();
+    }
 
-        // Choose the colours that will be used by randomising the order of existing colours.
-        List<Color> colourSelection = Arrays.asList(possibleColours.clone());
-        Collections.shuffle(colourSelection);
+    /**
+     * Replaces the current puzzle with a saved game, including its history of moves.
+     * The states must have the same number of test tubes and the same capacity as this puzzle
+     * was created with.
+     *
+     * @param seed The seed the puzzle was generated from, or 0 if it was loaded.
+     * @param startState The state the puzzle started from. It is kept, not copied.
+     * @param currentState The state reached by the moves in the history. It is kept, not copied.
+     * @param history The moves that can be undone and redone. It is kept, not copied.
+     */
+    public void resumePuzzle(long seed, PuzzleState startState, PuzzleState currentState, MoveHistory history) {
+        if(startState.getTubeCount() != tubeCount || currentState.getTubeCount() != tubeCount
+                || startState.getCapacity() != capacity || currentState.getCapacity() != capacity) {
+            throw new IllegalArgumentException("Expected " + tubeCount + " test tubes of capacity " + capacity);
+        }
+        changedTubes.clear();
+        this.seed = seed;
+        state = currentState;
+        commandHistory = history;
+        moveGenerator = new MoveGenerator(state);
+        createTestTubes();
+        initialState = startState;
+        journalStarted = false;
+    }
 
+    /**
+     * Creates all the test tubes for the current state, split over up to two rows
+     * that fit inside the layout width. When there are too many test tubes for that
+     * they are given the minimum width and use as many rows as needed. Test tubes are
+     * made taller for a larger capacity so each segment is drawn the same size.
+     */
+    private void createTestTubes() {
+        testTubeList.clear();
         // Calculate the spacing to be used for visual elements
         int fitTubes = (tubeCount % 2 == 0) ? tubeCount/2 : (tubeCount+1)/2;
-        int tubeWidth = Math.min(GamePanel.PANEL_WIDTH / fitTubes, 150);
-        int tubeHeight = 200;
+        int tubeWidth = Math.max(Math.min(layoutWidth / fitTubes, 150), MIN_TUBE_WIDTH);
+        int tubeHeight = 200 * TestTube.getSectionCount(capacity) / TestTube.getSectionCount(PuzzleState.DEFAULT_CAPACITY);
         int x = 0, y = 100;
-        // Create all the test tubes split over up to two rows.
         for(int i = 0; i < tubeCount; i++) {
-            testTubeList.add(new TestTube(new Position(x,y),tubeWidth,tubeHeight));
+            testTubeList.add(new TestTube(new Position(x,y),tubeWidth,tubeHeight,state,i));
             x+=tubeWidth;
-            if(x + tubeWidth > GamePanel.PANEL_WIDTH) {
+            if(x + tubeWidth > layoutWidth) {
                 x = 0;
                 y += tubeHeight;
             }
         }
-        // Create a random selection of colour counts to apply colours randomly.
-        int[] colourCounts = new int[colourCount];
-        int totalColours = 0;
-        for(int i = 0; i < tubeCount-emptyCount; i++) {
-            colourCounts[(int)(Math.random()*colourCounts.length)] += 4;
-            totalColours += 4;
+        layoutHeight = testTubeList.get(testTubeList.size()-1).getPosition().y + tubeHeight;
+        tubeGrid = new TubeGrid(testTubeList);
+    }
+
+    /**
+     * Gets the width of the area the test tubes are laid out in.
+     *
+     * @return The width of the layout.
+     */
+    public int getLayoutWidth() {
+        return layoutWidth;
+    }
+
+    /**
+     * Gets the height of the area covered by the test tubes, including the space above the first row.
+     *
+     * @return The height of the layout.
+     */
+    public int getLayoutHeight() {
+        return layoutHeight;
+    }
+
+    /**
+     * Gets the total number of test tubes to include.
+     *
+     * @return The number of test tubes.
+     */
+    public int getTubeCount() {
+        return tubeCount;
+    }
+
+    /**
+     * Gets the number of test tubes that will be empty at the end of the solution.
+     *
+     * @return The number of empty test tubes.
+     */
+    public int getEmptyCount() {
+        return emptyCount;
+    }
+
+    /**
+     * Gets the number of test tubes that begin empty at the end.
+     *
+     * @return The number of empty test tubes at the end.
+     */
+    public int getEmptyAtEndCount() {
+        return emptyAtEndCount;
+    }
+
+    /**
+     * Gets the number of different colours that can be randomly placed.
+     *
+     * @return The number of colours.
+     */
+    public int getColourCount() {
+        return colourCount;
+    }
+
+    /**
+     * Gets the number of segments that fit in each test tube.
+     *
+     * @return The capacity of the test tubes.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Gets the state the current puzzle started from.
+     *
+     * @return The starting state. It must not be changed.
+     */
+    public PuzzleState getInitialState() {
+        return initialState;
+    }
+
+    /**
+     * Gets the history of moves that can be undone and redone.
+     *
+     * @return The history. It must not be changed.
+     */
+    public MoveHistory getHistory() {
+        return commandHistory;
+    }
+
+    /**
+     * Gets the seed that was used to generate the current puzzle.
+     *
+     * @return The seed passed to newPuzzle(), or 0 if the puzzle was loaded with loadPuzzle().
+     */
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * Generates new puzzles with newPuzzle() until one is found that can be solved.
+     * Each candidate is checked with isSolvable(). If the time budget runs out the
+     * last candidate is kept even though it could not be shown to be solvable. Puzzles with
+     * more than MAX_CHECKED_TUBES test tubes are generated once without being checked.
+     * When a difficulty band has been set, candidates are rated on all cores until one is
+     * in the band, and if none is found in time any solvable puzzle is used instead.
+     *
+     * @param timeBudgetMillis The maximum time to spend generating in milliseconds.
+     * @return True if the puzzle that was generated is known to be solvable.
+     */
+    public boolean newSolvablePuzzle(long timeBudgetMillis) {
+        GameEvents.SolvablePuzzleEvent event = new GameEvents.SolvablePuzzleEvent();
+        event.begin();
+        long startTime = Metrics.startTimer();
+        boolean solvable = generateSolvablePuzzle(timeBudgetMillis);
+        Metrics.SOLVABLE_PUZZLE_SECONDS.observeSince(startTime);
+        Metrics.SOLVABLE_PUZZLE_ATTEMPTS.observe(rejectedCount + 1);
+        if(event.shouldCommit()) {
+            event.attempts = rejectedCount + 1;
+            event.solvable = solvable;
+            event.commit();
+        }
+        return solvable;
+    }
+
+    /**
+     * Generates new puzzles until one is found that can be solved, as described by newSolvablePuzzle().
+     *
+     * @param timeBudgetMillis The maximum time to spend generating in milliseconds.
+     * @return True if the puzzle that was generated is known to be solvable.
+     */
+    private boolean generateSolvablePuzzle(long timeBudgetMillis) {
+        long deadline = System.nanoTime() + timeBudgetMillis * 1_000_000L;
+        rejectedCount = 0;
+        if(tubeCount > MAX_CHECKED_TUBES) {
+            newPuzzle();
+            return false;
+        }
+        if(difficultyBand != DifficultyRating.ANY_BAND) {
+            // Leave some of the time to fall back to any solvable puzzle
+            OptionalLong bandSeed = DifficultyRating.findSeedInBand(difficultyBand, tubeCount, emptyCount,
+                                    emptyAtEndCount, colourCount, capacity, timeBudgetMillis * 3 / 4,
+                                    Runtime.getRuntime().availableProcessors());
+            if(bandSeed.isPresent()) {
+                newPuzzle(bandSeed.getAsLong());
+                return true;
+            }
         }
-        // Distribute all the colours into the test tubes randomly until there are no more to distribute.
-        while(totalColours > 0) {
-            // Find a random colour that still has elements to remove
-            int colourID;
-            do {
-                colourID = (int)(Math.random()*colourCounts.length);
-            } while(colourCounts[colourID] == 0);
-            // Find a random test tube that is not full
-            int testTubeID;
-            do {
-                testTubeID = (int)(Math.random()*(testTubeList.size()-emptyAtEndCount));
-            } while(testTubeList.get(testTubeID).countRoom() == 0);
-            // Place that colour into the found test tube
-            testTubeList.get(testTubeID).add(1, colourSelection.get(colourID));
-            totalColours--;
-            colourCounts[colourID]--;
+        while(true) {
+            newPuzzle();
+            long remainingMillis = (deadline - System.nanoTime()) / 1_000_000L;
+            if(remainingMillis <= 0) return false;
+            Solver solver = new Solver();
+            if(solver.isSolvable(state, remainingMillis)) return true;
+            if(solver.isLimitReached()) return false;
+            rejectedCount++;
         }
-        // save the state to allow restarting
-        saveInitialState();
+    }
+
+    /**
+     * Sets the DifficultyRating band that newSolvablePuzzle() looks for.
+     *
+     * @param difficultyBand The index of the band in DifficultyRating.BAND_NAMES, or DifficultyRating.ANY_BAND.
+     */
+    public void setDifficultyBand(int difficultyBand) {
+        this.difficultyBand = difficultyBand;
+    }
+
+    /**
+     * Gets the DifficultyRating band that newSolvablePuzzle() looks for.
+     *
+     * @return The index of the band in DifficultyRating.BAND_NAMES, or DifficultyRating.ANY_BAND.
+     */
+    public int getDifficultyBand() {
+        return difficultyBand;
+    }
+
+    /**
+     * Gets how many unsolvable puzzles were thrown away by the last newSolvablePuzzle().
+     *
+     * @return The number of rejected puzzles.
+     */
+    public int getRejectedCount() {
+        return rejectedCount;
+    }
+
+    /**
+     * Checks if the puzzle can still be solved from its current state.
+     *
+     * @return True if there is at least one sequence of pours that solves the puzzle.
+     */
+    public boolean isSolvable() {
+        return new Solver().isSolvable(state);
     }
 
     /**
@@ -134,6 +494,7 @@ public class Puzzle {
     public void clearSelection() {
         if(selected != null) {
             selected.setSelected(false);
+            changedTubes.set(selected.getIndex());
         }
         selected = null;
     }
@@ -153,9 +514,10 @@ public class Puzzle {
 
         if(selected == null) {
             // Don't select empty test tubes as the first click
-            if(testTubeAtMouse.topColour() != Color.BLACK) {
+            if(testTubeAtMouse.topColour() != PuzzleState.EMPTY) {
                 selected = testTubeAtMouse;
                 selected.setSelected(true);
+                changedTubes.set(selected.getIndex());
             }
         } else if(selected != testTubeAtMouse){
             // attempt to pour, may fail if the pour is not valid
@@ -165,18 +527,36 @@ public class Puzzle {
     }
 
     /**
-     * Checks if the game is won by testing if all the test tubes have
-     * four of the same colour.
+     * Checks if the game is won by testing if all the test tubes are
+     * full of the same colour or empty. The state keeps a count of complete test
+     * tubes as moves are made, so this does not rescan the test tubes.
      *
      * @return True if the game has been won.
      */
     public boolean gameWon() {
-        for (TestTube testTube : testTubeList) {
-            if(!testTube.fourOfSameColour()) {
-                return false;
-            }
-        }
-        return true;
+        return state.isSolved();
+    }
+
+    /**
+     * Checks if any pour can be made, using the same rules as a pour made by clicking.
+     * The MoveGenerator keeps the test tubes grouped by top colour as pours are made,
+     * so this only looks at the size of each group.
+     *
+     * @return True if at least one pour is allowed.
+     */
+    public boolean hasLegalPour() {
+        return moveGenerator.hasLegalPour();
+    }
+
+    /**
+     * Finds every pour that can be made from the current state.
+     *
+     * @return The encoded Command for each allowed pour.
+     */
+    public int[] getLegalPours() {
+        int[] commands = new int[moveGenerator.countLegalPours()];
+        moveGenerator.generate(commands);
+        return commands;
     }
 
     /**
@@ -185,7 +565,52 @@ public class Puzzle {
      * @param g Reference to the Graphics object for rendering.
      */
     public void paint(Graphics g) {
-        testTubeList.forEach(testTube -> testTube.paint(g));
+        testTubeList.forEach(testTube -> tubeImages.paint((Graphics2D) g, testTube));
+    }
+
+    /**
+     * Draws only the test tubes that can be seen, so large puzzles can be drawn quickly.
+     * Each test tube is drawn from a cached image that is only redrawn when it changes.
+     *
+     * @param g Reference to the Graphics object for rendering.
+     * @param visibleArea The area of the layout that is visible.
+     */
+    public void paint(Graphics g, Rectangle visibleArea) {
+        tubeGrid.forEachOverlapping(visibleArea, testTube -> tubeImages.paint((Graphics2D) g, testTube));
+    }
+
+    /**
+     * Calls the action for every test tube that overlaps an area of the layout.
+     *
+     * @param area The area of the layout to find test tubes in.
+     * @param action The action to apply to each test tube found.
+     */
+    public void forEachTestTubeIn(Rectangle area, Consumer<TestTube> action) {
+        tubeGrid.forEachOverlapping(area, action);
+    }
+
+    /**
+     * Gets a test tube by its index.
+     *
+     * @param index Index of the test tube in the puzzle.
+     * @return The test tube.
+     */
+    public TestTube getTestTube(int index) {
+        return testTubeList.get(index);
+    }
+
+    /**
+     * Passes every test tube whose contents or selection changed since the last call to
+     * the action, so only those parts of the screen need to be drawn again. Starting a new
+     * puzzle or resetting changes every test tube and is not included.
+     *
+     * @param action The action to apply to each changed test tube.
+     */
+    public void takeChangedTubes(Consumer<TestTube> action) {
+        for(int i = changedTubes.nextSetBit(0); i >= 0; i = changedTubes.nextSetBit(i+1)) {
+            action.accept(testTubeList.get(i));
+        }
+        changedTubes.clear();
     }
 
     /**
@@ -194,13 +619,28 @@ public class Puzzle {
      * @param mousePosition Position of the mouse.
      * @return A test tube if there is one at that position, or null.
      */
-    private TestTube getTestTubeAt(Position mousePosition) {
-        for (TestTube testTube : testTubeList) {
-            if(testTube.isPositionInside(mousePosition)) {
-                return testTube;
-            }
-        }
-        return null;
+    TestTube getTestTubeAt(Position mousePosition) {
+        return tubeGrid.getTestTubeAt(mousePosition);
+    }
+
+    /**
+     * Tries to pour from one tube into the other using their index in the puzzle.
+     *
+     * @param from Index of the test tube to pour from.
+     * @param to Index of the test tube to pour into.
+     * @return True if the pour was successful.
+     */
+    public boolean pour(int from, int to) {
+        return pourTube(testTubeList.get(from), testTubeList.get(to));
+    }
+
+    /**
+     * Gets the packed colours of every test tube in the puzzle.
+     *
+     * @return The current state of the puzzle.
+     */
+    public PuzzleState getState() {
+        return state;
     }
 
     /**
@@ -214,31 +654,81 @@ public class Puzzle {
     private boolean pourTube(TestTube from, TestTube to) {
         // The "from" must not be empty, the "to" must not be full, the
         // "to" can not have a different top colour to the "from" unless it is empty.
-        if(from.topColour() == Color.BLACK || to.countRoom() == 0
-                || (to.topColour() != Color.BLACK && from.topColour() != to.topColour())) {
+        GameEvents.PourEvent event = new GameEvents.PourEvent();
+        event.begin();
+        boolean allowed = state.canPour(from.getIndex(), to.getIndex());
+        if(event.shouldCommit()) {
+            event.from = from.getIndex();
+            event.to = to.getIndex();
+            event.allowed = allowed;
+            event.commit();
+        }
+        if(!allowed) {
+            Metrics.POURS_REJECTED.increment();
             return false;
         }
+        Metrics.POURS.increment();
 
         // Get the maximum number that can be poured
-        int removeCount = Math.min(from.countTopColour(), to.countRoom());
+        int removeCount = state.pourCount(from.getIndex(), to.getIndex());
         // Create the command to pour, execute it, and add it to the command history.
-        Command command = new Command(from, to, from.topColour(), removeCount);
-        commandHistory.add(command);
-        command.execute();
+        int command = Command.encode(from.getIndex(), to.getIndex(), removeCount);
+        commandHistory.push(command);
+        Command.execute(state, command);
+        markChanged(command);
+        recordEvent(MoveJournal.POUR, command);
         return true;
     }
 
+    /**
+     * Finds the shortest sequence of pours that will solve the puzzle from its current state.
+     * The puzzle itself is not changed.
+     *
+     * @return The list of moves to apply in order, an empty list if already solved,
+     *         or null if no solution could be found.
+     */
+    public List<Move> solve() {
+        return new Solver().solve(state);
+    }
+
+    /**
+     * Finds any sequence of pours that will solve the puzzle from its current state by
+     * searching on multiple threads. The solution may not be the shortest.
+     * The puzzle itself is not changed.
+     *
+     * @param parallelism The number of threads to search with.
+     * @return The list of moves to apply in order, an empty list if already solved,
+     *         or null if no solution could be found.
+     */
+    public List<Move> solveParallel(int parallelism) {
+        return new ParallelSolver(parallelism).solve(state);
+    }
+
+    /**
+     * Finds the shortest sequence of pours that will solve the puzzle from its current state
+     * with a breadth first search from both ends. This is slower than solve() on most puzzles.
+     * The puzzle itself is not changed.
+     *
+     * @return The list of moves to apply in order, an empty list if already solved,
+     *         or null if no solution could be found.
+     */
+    public List<Move> solveBidirectional() {
+        return new BidirectionalSolver().solve(state);
+    }
+
     /**
      * Does nothing if there are no commands to undo.
      * Will reverse the most recent command and remove it from the command history.
      */
     public void undo() {
-        if(commandHistory.size() == 0) return;
+        if(!commandHistory.isUndoAvailable()) return;
 
         clearSelection();
-        Command command = commandHistory.get(commandHistory.size()-1);
-        commandHistory.remove(commandHistory.size()-1);
-        command.reverse();
+        Metrics.UNDOS.increment();
+        int command = commandHistory.undo();
+        Command.reverse(state, command);
+        markChanged(command);
+        recordEvent(MoveJournal.UNDO, command);
     }
 
     /**
@@ -247,37 +737,158 @@ public class Puzzle {
      * @return True if undo() can be called.
      */
     public boolean isUndoAvailable() {
-        return commandHistory.size() != 0;
+        return commandHistory.isUndoAvailable();
+    }
+
+    /**
+     * Does nothing if there are no commands to redo.
+     * Will execute the most recently undone command again.
+     */
+    public void redo() {
+        if(!commandHistory.isRedoAvailable()) return;
+
+        clearSelection();
+        int command = commandHistory.redo();
+        Command.execute(state, command);
+        markChanged(command);
+        recordEvent(MoveJournal.POUR, command);
+    }
+
+    /**
+     * Checks if there are any undone commands to redo().
+     *
+     * @return True if redo() can be called.
+     */
+    public boolean isRedoAvailable() {
+        return commandHistory.isRedoAvailable();
+    }
+
+    /**
+     * Limits how many commands are kept for undo. When the limit is reached the
+     * oldest commands are forgotten first.
+     *
+     * @param limit The largest number of commands to keep, or 0 to keep every command.
+     */
+    public void setHistoryLimit(int limit) {
+        commandHistory.setLimit(limit);
+    }
+
+    /**
+     * Records that both test tubes used by a command have changed.
+     *
+     * @param command The encoded command.
+     */
+    private void markChanged(int command) {
+        changedTubes.set(Command.getFrom(command));
+        changedTubes.set(Command.getTo(command));
     }
 
     /**
      * Saves the initial state of all test tubes to allow reset() to be called.
      */
     private void saveInitialState() {
-        initialState = new Color[testTubeList.size()*4];
-        int saveIndex = 0;
-        for(int i = 0; i < testTubeList.size(); i++) {
-            Color[] colours =  testTubeList.get(i).getColours();
-            for(int j = 0; j < 4; j++, saveIndex++) {
-                initialState[saveIndex] = colours[j];
-            }
+        initialState = new PuzzleState(state);
+        journalStarted = false;
+    }
+
+    /**
+     * Sets the journal to record every pour, undo, and reset in.
+     *
+     * @param journal The journal, or null to stop recording.
+     */
+    public void setJournal(MoveJournal journal) {
+        this.journal = journal;
+        journalStarted = false;
+    }
+
+    /**
+     * Gets the journal that moves are recorded in.
+     *
+     * @return The journal, or null if there is none.
+     */
+    public MoveJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Records an event in the journal if there is one, first recording the start of the
+     * puzzle if this is its first event.
+     *
+     * @param type MoveJournal.POUR, MoveJournal.UNDO, or MoveJournal.RESET.
+     * @param command The encoded command that was executed or reversed. Not used for a reset.
+     */
+    private void recordEvent(byte type, int command) {
+        if(journal == null) return;
+        if(!journalStarted) {
+            // Nothing has happened since the start that a reset needs to undo
+            if(type == MoveJournal.RESET) return;
+            startJournal(type, command);
+            journalStarted = true;
+        }
+        if(type == MoveJournal.POUR) {
+            journal.recordPour(command, state);
+        } else if(type == MoveJournal.UNDO) {
+            journal.recordUndo(command, state);
+        } else {
+            journal.recordReset(state);
+        }
+    }
+
+    /**
+     * Records the start of the puzzle in the journal, followed by the moves in the history
+     * that came before the event being recorded, so the journal reaches the same state as
+     * the puzzle when a resumed game or a game already being played starts to be recorded.
+     * If the oldest moves have been forgotten because the history is limited, the state
+     * before the event is recorded as the start instead.
+     *
+     * @param type MoveJournal.POUR or MoveJournal.UNDO for the event about to be recorded.
+     * @param command The encoded command that was executed or reversed by the event.
+     */
+    private void startJournal(byte type, int command) {
+        PuzzleState before = new PuzzleState(state);
+        if(type == MoveJournal.POUR) {
+            Command.reverse(before, command);
+        } else {
+            Command.execute(before, command);
+        }
+        // A pour or redo is already the last command in the history. An undo has moved its
+        // command to the front of the redo list, so it is the last pour before the event.
+        int[] earlier;
+        if(type == MoveJournal.POUR) {
+            earlier = new int[commandHistory.size() - 1];
+        } else {
+            earlier = new int[commandHistory.size() + 1];
+            earlier[commandHistory.size()] = commandHistory.getRedo(0);
+        }
+        for(int i = 0; i < earlier.length && i < commandHistory.size(); i++) {
+            earlier[i] = commandHistory.get(i);
+        }
+        PuzzleState replayed = new PuzzleState(initialState);
+        for(int earlierCommand : earlier) {
+            Command.execute(replayed, earlierCommand);
+        }
+        if(!replayed.equals(before)) {
+            journal.recordNewPuzzle(before);
+            return;
+        }
+        replayed.copyFrom(initialState);
+        journal.recordNewPuzzle(replayed);
+        for(int earlierCommand : earlier) {
+            Command.execute(replayed, earlierCommand);
+            journal.recordPour(earlierCommand, replayed);
         }
     }
 
     /**
      * Resets back to the initial state of the current puzzle.
-     * Clears any selection and command history then forces all the saved data into the test tubes.
+     * Clears any selection and command history then copies the saved data back into the test tubes.
      */
     public void reset() {
+        Metrics.RESETS.increment();
         commandHistory.clear();
         clearSelection();
-        int saveIndex = 0;
-        for(int i = 0; i < testTubeList.size(); i++) {
-            Color[] colourData = new Color[4];
-            for(int j = 0; j < 4; j++, saveIndex++) {
-                colourData[j] = initialState[saveIndex];
-            }
-            testTubeList.get(i).setColours(colourData);
-        }
+        changedTubes.clear();
+        state.copyFrom(initialState);
+        recordEvent(MoveJournal.RESET, 0);
     }
 }
@@ -0,0 +1,316 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Test Tube
+ * Author: Peter Mitchell (2021)
+ *
+ * PuzzleCatalogue class:
+ * Command line entry point for generating large numbers of puzzles without any
+ * user interface. Worker threads each claim a batch of puzzle numbers, generate them,
+ * and pass the batch of text to a single writer, so puzzles are written as they are
+ * produced and only a few batches are held in memory at once. Each line is the seed
+ * followed by the puzzle in the PuzzleFormat, so any puzzle can be created again with
+ * Puzzle.newPuzzle(seed). Batches may be written in any order. With --band only puzzles
+ * the DifficultyRating puts in that band are written, to build pools of one difficulty.
+ *
+ * Usage: java PuzzleCatalogue [--count n] [--tubes n] [--empty n] [--empty-at-end n]
+ *                             [--colours n] [--capacity n] [--seed n] [--threads n] [--solvable]
+ *                             [--band easy|medium|hard] [--output file]
+ */
+public class PuzzleCatalogue {
+    /**
+     * The number of puzzles each worker generates before passing them to the writer.
+     */
+    private static final int BATCH_SIZE = 1024;
+    /**
+     * The maximum number of batches waiting to be written.
+     */
+    private static final int QUEUE_CAPACITY = 64;
+    /**
+     * The maximum time in milliseconds to check each puzzle is solvable when requested.
+     */
+    private static final long SOLVABLE_TIME_LIMIT = 1000;
+    /**
+     * Passed to the writer by each worker when it has finished, even if it failed. This is
+     * compared by reference so it can never be confused with a batch.
+     */
+    private static final Batch END_OF_WORK = new Batch("", 0);
+
+    /**
+     * The text of a batch of generated puzzles and the number of puzzles in it.
+     */
+    private static class Batch {
+        /**
+         * One line of text for each puzzle.
+         */
+        private final String text;
+        /**
+         * The number of puzzles in the text.
+         */
+        private final int puzzleCount;
+
+        /**
+         * @param text One line of text for each puzzle.
+         * @param puzzleCount The number of puzzles in the text.
+         */
+        private Batch(String text, int puzzleCount) {
+            this.text = text;
+            this.puzzleCount = puzzleCount;
+        }
+    }
+
+    /**
+     * The number of puzzles to generate.
+     */
+    private long count = 1000;
+    /**
+     * The total number of test tubes to include.
+     */
+    private int tubeCount = 10;
+    /**
+     * The number of test tubes that will be empty at the end of the solution.
+     */
+    private int emptyCount = 4;
+    /**
+     * The number that begin empty at the end.
+     */
+    private int emptyAtEndCount = 2;
+    /**
+     * The number of different colours that can be randomly placed.
+     */
+    private int colourCount = 4;
+    /**
+     * The number of segments that fit in each test tube.
+     */
+    private int capacity = PuzzleState.DEFAULT_CAPACITY;
+    /**
+     * The seed of the first puzzle, each following puzzle adds one.
+     */
+    private long firstSeed = 0;
+    /**
+     * The number of worker threads generating puzzles.
+     */
+    private int threadCount = Runtime.getRuntime().availableProcessors();
+    /**
+     * When true puzzles that can not be shown to be solvable are skipped.
+     */
+    private boolean solvableOnly = false;
+    /**
+     * The DifficultyRating band puzzles must be in, or DifficultyRating.ANY_BAND to keep all of them.
+     */
+    private int band = DifficultyRating.ANY_BAND;
+    /**
+     * The file to write to, or null to write to the standard output.
+     */
+    private String output = null;
+
+    /**
+     * The next puzzle number to be claimed by a worker.
+     */
+    private final AtomicLong nextPuzzle = new AtomicLong();
+    /**
+     * The number of puzzles that have been written. Only used by the writer.
+     */
+    private long writtenCount;
+    /**
+     * The number of puzzles skipped for not being solvable.
+     */
+    private final AtomicLong rejectedCount = new AtomicLong();
+    /**
+     * The batches of generated text waiting to be written.
+     */
+    private final BlockingQueue<Batch> batches = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    /**
+     * The first exception thrown by a worker, or null if none have failed.
+     */
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    /**
+     * Entry point for generating a catalogue of puzzles.
+     *
+     * @param args The settings described in the class comment.
+     * @throws Exception If writing fails, a worker fails, or the workers are interrupted.
+     */
+    public static void main(String[] args) throws Exception {
+        PuzzleCatalogue catalogue = new PuzzleCatalogue();
+        for(int i = 0; i < args.length; i++) {
+            switch(args[i]) {
+                case "--count": catalogue.count = Long.parseLong(args[++i]); break;
+                case "--tubes": catalogue.tubeCount = Integer.parseInt(args[++i]); break;
+                case "--empty": catalogue.emptyCount = Integer.parseInt(args[++i]); break;
+                case "--empty-at-end": catalogue.emptyAtEndCount = Integer.parseInt(args[++i]); break;
+                case "--colours": catalogue.colourCount = Integer.parseInt(args[++i]); break;
+                case "--capacity": catalogue.capacity = Integer.parseInt(args[++i]); break;
+                case "--seed": catalogue.firstSeed = Long.parseLong(args[++i]); break;
+                case "--threads": catalogue.threadCount = Integer.parseInt(args[++i]); break;
+                case "--solvable": catalogue.solvableOnly = true; break;
+                case "--band": catalogue.band = parseBand(args[++i]); break;
+                case "--output": catalogue.output = args[++i]; break;
+                default: throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        catalogue.validate();
+        catalogue.run();
+    }
+
+    /**
+     * Finds the DifficultyRating band with a name, ignoring case.
+     *
+     * @param name The name of the band.
+     * @return The index of the band in DifficultyRating.BAND_NAMES.
+     * @throws IllegalArgumentException If there is no band with the name.
+     */
+    private static int parseBand(String name) {
+        for(int i = 0; i < DifficultyRating.BAND_NAMES.length; i++) {
+            if(DifficultyRating.BAND_NAMES[i].equalsIgnoreCase(name)) return i;
+        }
+        throw new IllegalArgumentException("Unknown band " + name);
+    }
+
+    /**
+     * Checks the settings describe puzzles that can be generated.
+     *
+     * @throws IllegalArgumentException If any of the settings are out of range.
+     */
+    private void validate() {
+        if(tubeCount < 1 || emptyCount < 0 || emptyCount > tubeCount
+                || emptyAtEndCount < 0 || emptyAtEndCount > emptyCount) {
+            throw new IllegalArgumentException("Tubes, empty, and empty at end must satisfy "
+                    + "0 <= empty at end <= empty <= tubes");
+        }
+        if(colourCount < 1 || colourCount > PuzzleState.MAX_COLOUR) {
+            throw new IllegalArgumentException("Colours must be between 1 and " + PuzzleState.MAX_COLOUR);
+        }
+        if(capacity < PuzzleState.MIN_CAPACITY || capacity > PuzzleState.MAX_CAPACITY) {
+            throw new IllegalArgumentException("Capacity must be between " + PuzzleState.MIN_CAPACITY
+                                                + " and " + PuzzleState.MAX_CAPACITY);
+        }
+    }
+
+    /**
+     * Starts the workers, writes every batch as it arrives, and reports progress
+     * on the error stream.
+     *
+     * @throws IOException If writing fails.
+     * @throws InterruptedException If interrupted while waiting for batches.
+     * @throws IllegalStateException If a worker failed, with the worker's exception as the cause.
+     */
+    private void run() throws IOException, InterruptedException {
+        long startTime = System.nanoTime();
+        for(int i = 0; i < threadCount; i++) {
+            Thread worker = new Thread(this::generateBatches, "PuzzleCatalogue-" + i);
+            worker.setDaemon(true);
+            worker.start();
+        }
+
+        try(Writer writer = output == null
+                ? new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8))
+                : Files.newBufferedWriter(Paths.get(output), StandardCharsets.UTF_8)) {
+            int finishedWorkers = 0;
+            long lastReport = startTime;
+            while(finishedWorkers < threadCount) {
+                Batch batch = batches.take();
+                if(batch == END_OF_WORK) {
+                    finishedWorkers++;
+                    continue;
+                }
+                writer.write(batch.text);
+                writtenCount += batch.puzzleCount;
+                long now = System.nanoTime();
+                if(now - lastReport > 1_000_000_000L) {
+                    report(now - startTime);
+                    lastReport = now;
+                }
+            }
+        }
+        report(System.nanoTime() - startTime);
+        if(failure.get() != null) {
+            throw new IllegalStateException("Generating puzzles failed", failure.get());
+        }
+    }
+
+    /**
+     * Run by each worker thread. Generates batches until there are none left or a worker
+     * has failed, then always tells the writer it has finished.
+     */
+    private void generateBatches() {
+        try {
+            generateUntilDone();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch(RuntimeException | Error e) {
+            failure.compareAndSet(null, e);
+        } finally {
+            // The writer waits for every worker, so this must be queued even when interrupted
+            boolean interrupted = Thread.interrupted();
+            while(true) {
+                try {
+                    batches.put(END_OF_WORK);
+                    break;
+                } catch(InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if(interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Claims batches of puzzle numbers until all have been claimed, passing the text for
+     * each batch to the writer.
+     *
+     * @throws InterruptedException If interrupted while waiting for room in the queue.
+     */
+    private void generateUntilDone() throws InterruptedException {
+        StringBuilder batch = new StringBuilder();
+        long start;
+        while(failure.get() == null && (start = nextPuzzle.getAndAdd(BATCH_SIZE)) < count) {
+            long end = Math.min(start + BATCH_SIZE, count);
+            int generated = 0;
+            for(long i = start; i < end; i++) {
+                long seed = firstSeed + i;
+                PuzzleState state = PuzzleGenerator.generate(seed, tubeCount, emptyCount,
+                                                             emptyAtEndCount, colourCount, capacity);
+                if(solvableOnly && !new Solver().isSolvable(state, SOLVABLE_TIME_LIMIT)) {
+                    rejectedCount.incrementAndGet();
+                    continue;
+                }
+                if(band != DifficultyRating.ANY_BAND) {
+                    // Rating solves the puzzle, so this also skips any that could not be solved
+                    DifficultyRating rating = DifficultyRating.rate(state);
+                    if(rating == null || rating.getBand() != band) {
+                        rejectedCount.incrementAndGet();
+                        continue;
+                    }
+                }
+                batch.append(seed).append(' ');
+                PuzzleFormat.appendTo(batch, state);
+                batch.append('\n');
+                generated++;
+            }
+            batches.put(new Batch(batch.toString(), generated));
+            batch.setLength(0);
+        }
+    }
+
+    /**
+     * Writes the progress and rate of generation to the error stream.
+     *
+     * @param elapsedNanos The time since generation started.
+     */
+    private void report(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        System.err.printf("%d puzzles written, %d rejected, %.1fs, %.0f puzzles/s%n",
+                          writtenCount, rejectedCount.get(), seconds, writtenCount / seconds);
+    }
+}
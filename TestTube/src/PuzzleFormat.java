@@ -0,0 +1,93 @@
+/**
+ * Test Tube
+ * Author: Peter Mitchell (2021)
+ *
+ * PuzzleFormat class:
+ * Converts a PuzzleState to and from a single line of text. Each test tube is
+ * written as its colour IDs from the bottom to the top, with a "-" for an
+ * empty test tube, and the test tubes are separated by spaces. For example a
+ * puzzle with one test tube of two reds and an empty test tube is written "11 -".
+ * Colour IDs are single characters in base 36, so IDs up to 15 are the same as hex
+ * and the larger IDs carry on through the alphabet. The capacity of the test tubes is
+ * not part of the text, so it must be given when reading any other capacity than
+ * PuzzleState.DEFAULT_CAPACITY.
+ */
+public class PuzzleFormat {
+    /**
+     * The text used for a test tube with nothing in it.
+     */
+    public static final String EMPTY_TUBE = "-";
+    /**
+     * The base used to write each colour ID as a single character.
+     */
+    public static final int COLOUR_RADIX = Character.MAX_RADIX;
+
+    /**
+     * Writes the state as a single line of text.
+     *
+     * @param state The state to write.
+     * @return The text for the state.
+     */
+    public static String format(PuzzleState state) {
+        StringBuilder result = new StringBuilder();
+        appendTo(result, state);
+        return result.toString();
+    }
+
+    /**
+     * Writes the state as a single line of text on to the end of a StringBuilder.
+     *
+     * @param result The StringBuilder to add the text to.
+     * @param state The state to write.
+     */
+    public static void appendTo(StringBuilder result, PuzzleState state) {
+        for(int tube = 0; tube < state.getTubeCount(); tube++) {
+            if(tube > 0) result.append(' ');
+            int count = state.count(tube);
+            if(count == 0) {
+                result.append(EMPTY_TUBE);
+            }
+            for(int i = 0; i < count; i++) {
+                result.append(Character.forDigit(state.getSegment(tube, i), COLOUR_RADIX));
+            }
+        }
+    }
+
+    /**
+     * Reads a state with test tubes of PuzzleState.DEFAULT_CAPACITY from the text created by format().
+     *
+     * @param text The text to read.
+     * @return The state described by the text.
+     * @throws IllegalArgumentException If the text does not describe a valid state.
+     */
+    public static PuzzleState parse(String text) {
+        return parse(text, PuzzleState.DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Reads a state from the text created by format().
+     *
+     * @param text The text to read.
+     * @param capacity The number of segments that fit in each test tube.
+     * @return The state described by the text.
+     * @throws IllegalArgumentException If the text does not describe a valid state.
+     */
+    public static PuzzleState parse(String text, int capacity) {
+        String[] tubes = text.trim().split("\\s+");
+        PuzzleState state = new PuzzleState(tubes.length, capacity);
+        for(int tube = 0; tube < tubes.length; tube++) {
+            if(tubes[tube].equals(EMPTY_TUBE)) continue;
+            if(tubes[tube].length() > capacity) {
+                throw new IllegalArgumentException("Too many colours in test tube " + tube + ": " + tubes[tube]);
+            }
+            for(int i = 0; i < tubes[tube].length(); i++) {
+                int colour = Character.digit(tubes[tube].charAt(i), COLOUR_RADIX);
+                if(colour <= PuzzleState.EMPTY || colour > PuzzleState.MAX_COLOUR) {
+                    throw new IllegalArgumentException("Invalid colour in test tube " + tube + ": " + tubes[tube]);
+                }
+                state.add(tube, 1, colour);
+            }
+        }
+        return state;
+    }
+}
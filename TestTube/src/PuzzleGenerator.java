@@ -0,0 +1,114 @@
+import java.util.SplittableRandom;
+
+/**
+ * Test Tube
+ * Author: Peter Mitchell (2021)
+ *
+ * PuzzleGenerator class:
+ * Creates the starting contents for puzzles. All the segments that need to be
+ * placed are laid out along with the empty spaces and shuffled once, so the
+ * time taken does not depend on how full the test tubes get. The same seed
+ * and properties always produce the same puzzle. No state is shared between
+ * calls, so it is safe to generate from many threads at once.
+ */
+public class PuzzleGenerator {
+    /**
+     * The number of colours to choose from when a puzzle uses this many colours or fewer.
+     * Puzzles with more colours choose from the first colourCount of Puzzle.possibleColours.
+     */
+    public static final int PALETTE_SIZE = 8;
+
+    /**
+     * Generates the contents of a new puzzle with test tubes of PuzzleState.DEFAULT_CAPACITY.
+     *
+     * @param seed The seed for the random number generator.
+     * @param tubeCount The total number of test tubes to include.
+     * @param emptyCount The number of test tubes that will be empty at the end of the solution.
+     * @param emptyAtEndCount The number that begin empty at the end.
+     * @param colourCount The number of different colours that can be randomly placed.
+     * @return A new state with the colours placed.
+     */
+    public static PuzzleState generate(long seed, int tubeCount, int emptyCount,
+                                       int emptyAtEndCount, int colourCount) {
+        return generate(seed, tubeCount, emptyCount, emptyAtEndCount, colourCount, PuzzleState.DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Generates the contents of a new puzzle.
+     *
+     * @param seed The seed for the random number generator.
+     * @param tubeCount The total number of test tubes to include.
+     * @param emptyCount The number of test tubes that will be empty at the end of the solution.
+     * @param emptyAtEndCount The number that begin empty at the end.
+     * @param colourCount The number of different colours that can be randomly placed, up to PuzzleState.MAX_COLOUR.
+     * @param capacity The number of segments that fit in each test tube.
+     * @return A new state with the colours placed.
+     */
+    public static PuzzleState generate(long seed, int tubeCount, int emptyCount,
+                                       int emptyAtEndCount, int colourCount, int capacity) {
+        if(colourCount < 1 || colourCount > PuzzleState.MAX_COLOUR) {
+            throw new IllegalArgumentException("Colour count must be from 1 to " + PuzzleState.MAX_COLOUR
+                                                + ": " + colourCount);
+        }
+        SplittableRandom random = new SplittableRandom(seed);
+
+        // Choose the colours that will be used by shuffling the start of the palette.
+        int paletteSize = getPaletteSize(colourCount);
+        int[] colourSelection = new int[paletteSize];
+        for(int i = 0; i < paletteSize; i++) {
+            colourSelection[i] = i + 1;
+        }
+        for(int i = 0; i < colourCount; i++) {
+            swap(colourSelection, i, i + random.nextInt(paletteSize - i));
+        }
+
+        // Lay out every space in the test tubes that may be filled, with one full
+        // test tube worth of a random colour for each test tube that will be filled.
+        int filledCount = (tubeCount - emptyCount) * capacity;
+        int[] slots = new int[(tubeCount - emptyAtEndCount) * capacity];
+        for(int i = 0; i < filledCount; i += capacity) {
+            int colour = colourSelection[random.nextInt(colourCount)];
+            for(int j = 0; j < capacity; j++) {
+                slots[i + j] = colour;
+            }
+        }
+        // Fisher-Yates shuffle of the colours and the empty spaces together
+        for(int i = slots.length - 1; i > 0; i--) {
+            swap(slots, i, random.nextInt(i + 1));
+        }
+
+        // Each test tube takes the colours from its group of slots, settling to the bottom.
+        PuzzleState state = new PuzzleState(tubeCount, capacity);
+        for(int tube = 0; tube < tubeCount - emptyAtEndCount; tube++) {
+            for(int i = tube * capacity; i < (tube + 1) * capacity; i++) {
+                if(slots[i] != PuzzleState.EMPTY) {
+                    state.add(tube, 1, slots[i]);
+                }
+            }
+        }
+        return state;
+    }
+
+    /**
+     * Gets the number of colours the colours of a puzzle are chosen from.
+     *
+     * @param colourCount The number of different colours in the puzzle.
+     * @return PALETTE_SIZE, or colourCount if it is larger.
+     */
+    public static int getPaletteSize(int colourCount) {
+        return Math.max(PALETTE_SIZE, colourCount);
+    }
+
+    /**
+     * Swaps two elements in an array.
+     *
+     * @param values The array to change.
+     * @param i Index of the first element.
+     * @param j Index of the second element.
+     */
+    private static void swap(int[] values, int i, int j) {
+        int temp = values[i];
+        values[i] = values[j];
+        values[j] = temp;
+    }
+}
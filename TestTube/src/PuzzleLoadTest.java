@@ -0,0 +1,218 @@
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Test Tube
+ * Author: Peter Mitchell (2021)
+ *
+ * PuzzleLoadTest class:
+ * Command line tool that measures how many requests a PuzzleServer can handle. Each
+ * client repeatedly plays a whole game: it starts a session, asks for the solution, makes
+ * every pour while checking the state, undoes and resets, and closes the session. A game
+ * that does not end up won counts as an error. The requests per second and the spread of
+ * response times are written to the standard output when the time is up.
+ *
+ * Usage: java PuzzleLoadTest [--url url] [--clients n] [--time seconds] [--local]
+ * With --local a PuzzleServer is started in the same process and --url is ignored.
+ */
+public class PuzzleLoadTest {
+    /**
+     * Finds each [from, to] pair in a solution.
+     */
+    private static final Pattern MOVE_PATTERN = Pattern.compile("\\[(\\d+), (\\d+)\\]");
+    /**
+     * Finds the session id in a response.
+     */
+    private static final Pattern SESSION_PATTERN = Pattern.compile("\"session\": (\\d+)");
+
+    /**
+     * The address of the server, without a trailing slash.
+     */
+    private final String baseUrl;
+    /**
+     * The client shared by every simulated player.
+     */
+    private final HttpClient client;
+    /**
+     * The number of requests that have been answered.
+     */
+    private final LongAdder requestCount = new LongAdder();
+    /**
+     * The number of requests that failed and games that were not won.
+     */
+    private final LongAdder errorCount = new LongAdder();
+    /**
+     * The number of games played to the end.
+     */
+    private final LongAdder gameCount = new LongAdder();
+    /**
+     * The number of requests for each response time, where bucket i holds times below 2^i microseconds.
+     */
+    private final AtomicLongArray latencyBuckets = new AtomicLongArray(40);
+
+    /**
+     * Runs the load test.
+     *
+     * @param args The settings described in the class comment.
+     * @throws Exception If the local server could not be started or the clients are interrupted.
+     */
+    public static void main(String[] args) throws Exception {
+        String url = "http://localhost:" + PuzzleServer.DEFAULT_PORT;
+        int clientCount = 64;
+        long seconds = 10;
+        boolean local = false;
+        for(int i = 0; i < args.length; i++) {
+            switch(args[i]) {
+                case "--url": url = args[++i]; break;
+                case "--clients": clientCount = Integer.parseInt(args[++i]); break;
+                case "--time": seconds = Long.parseLong(args[++i]); break;
+                case "--local": local = true; break;
+                default: throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        PuzzleServer server = null;
+        if(local) {
+            server = new PuzzleServer(Integer.MAX_VALUE);
+            server.start(0);
+            url = "http://localhost:" + server.getPort();
+        }
+        PuzzleLoadTest loadTest = new PuzzleLoadTest(url);
+        loadTest.run(clientCount, seconds * 1000);
+        if(server != null) {
+            server.stop();
+        }
+    }
+
+    /**
+     * @param baseUrl The address of the server, without a trailing slash.
+     */
+    public PuzzleLoadTest(String baseUrl) {
+        this.baseUrl = baseUrl;
+        client = HttpClient.newBuilder()
+                           .version(HttpClient.Version.HTTP_1_1)
+                           .executor(PuzzleServer.newRequestExecutor())
+                           .build();
+    }
+
+    /**
+     * Plays games on every client until the time is up, then writes the results.
+     *
+     * @param clientCount The number of players making requests at once.
+     * @param durationMillis How long to keep playing in milliseconds.
+     * @throws InterruptedException If interrupted while waiting for the clients.
+     */
+    public void run(int clientCount, long durationMillis) throws InterruptedException {
+        ExecutorService clients = PuzzleServer.newRequestExecutor();
+        long startTime = System.nanoTime();
+        long deadline = startTime + durationMillis * 1_000_000L;
+        for(int i = 0; i < clientCount; i++) {
+            clients.execute(() -> {
+                while(System.nanoTime() < deadline) {
+                    playGame();
+                }
+            });
+        }
+        clients.shutdown();
+        clients.awaitTermination(durationMillis + 60_000, TimeUnit.MILLISECONDS);
+        report(System.nanoTime() - startTime);
+    }
+
+    /**
+     * Plays one whole game in a new session, counting an error if anything goes wrong.
+     */
+    private void playGame() {
+        try {
+            String created = request("/new");
+            Matcher sessionMatcher = SESSION_PATTERN.matcher(created);
+            if(!sessionMatcher.find()) {
+                errorCount.increment();
+                return;
+            }
+            String session = "?session=" + sessionMatcher.group(1);
+            Matcher moves = MOVE_PATTERN.matcher(request("/solve" + session));
+            String last = created;
+            while(moves.find()) {
+                last = request("/pour" + session + "&from=" + moves.group(1) + "&to=" + moves.group(2));
+                request("/state" + session);
+            }
+            if(!last.contains("\"won\": true")) {
+                errorCount.increment();
+            }
+            request("/undo" + session);
+            request("/reset" + session);
+            request("/close" + session);
+            gameCount.increment();
+        } catch(IOException e) {
+            errorCount.increment();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Sends a request and records how long it took to answer.
+     *
+     * @param pathAndQuery The path and query of the endpoint.
+     * @return The body of the response.
+     * @throws IOException If the request failed or the response was an error.
+     * @throws InterruptedException If interrupted while waiting for the response.
+     */
+    private String request(String pathAndQuery) throws IOException, InterruptedException {
+        HttpRequest httpRequest = HttpRequest.newBuilder(URI.create(baseUrl + pathAndQuery)).build();
+        long start = System.nanoTime();
+        HttpResponse<String> response = client.send(httpRequest, HttpResponse.BodyHandlers.ofString());
+        long micros = (System.nanoTime() - start) / 1000;
+        int bucket = Math.min(64 - Long.numberOfLeadingZeros(micros), latencyBuckets.length() - 1);
+        latencyBuckets.incrementAndGet(bucket);
+        requestCount.increment();
+        if(response.statusCode() != 200) {
+            throw new IOException("Status " + response.statusCode() + " for " + pathAndQuery);
+        }
+        return response.body();
+    }
+
+    /**
+     * Writes the request rate, error count and response time percentiles.
+     *
+     * @param elapsedNanos The time the test ran for.
+     */
+    private void report(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        long requests = requestCount.sum();
+        System.out.printf("%d requests, %d games, %d errors, %.1fs, %.0f requests/s%n",
+                          requests, gameCount.sum(), errorCount.sum(), seconds, requests / seconds);
+        List<String> percentiles = new ArrayList<>();
+        for(double percentile : new double[] {50, 90, 99, 99.9}) {
+            percentiles.add("p" + percentile + " < " + getLatencyBound(percentile / 100, requests) + "us");
+        }
+        System.out.println(String.join(", ", percentiles));
+    }
+
+    /**
+     * Finds the upper bound of the response time bucket that a percentile falls in.
+     *
+     * @param fraction The percentile as a fraction between 0 and 1.
+     * @param requests The total number of requests.
+     * @return The upper bound of the bucket in microseconds.
+     */
+    private long getLatencyBound(double fraction, long requests) {
+        long target = (long) Math.ceil(fraction * requests);
+        long seen = 0;
+        for(int i = 0; i < latencyBuckets.length(); i++) {
+            seen += latencyBuckets.get(i);
+            if(seen >= target) return 1L << i;
+        }
+        return Long.MAX_VALUE;
+    }
+}
@@ -0,0 +1,474 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Test Tube
+ * Author: Peter Mitchell (2021)
+ *
+ * PuzzleServer class:
+ * Command line entry point that runs the game as an HTTP service using the server built
+ * into the JDK, so many clients can play without any user interface. Each client creates
+ * a session with /new and then passes its id as the session parameter to the other
+ * endpoints. Every session is a separate GameSession, and requests for the same session
+ * are handled one at a time. Requests are handled on a virtual thread each when the JDK
+ * has them, or on a cached thread pool otherwise. Every response is a JSON object.
+ *
+ * Endpoints:
+ *   /new?tubes=n&empty=n&emptyAtEnd=n&colours=n&capacity=n&seed=n  Starts a session. All optional.
+ *   /state?session=id            The current puzzle and whether it is won.
+ *   /pour?session=id&from=n&to=n  Pours from one test tube into another.
+ *   /undo?session=id             Undoes the last pour.
+ *   /reset?session=id            Returns to the start of the puzzle.
+ *   /solve?session=id            The shortest list of pours from the current state.
+ *   /close?session=id            Ends the session.
+ *   /metrics                     The Metrics in the Prometheus text format.
+ *
+ * Usage: java PuzzleServer [--port n] [--max-sessions n]
+ */
+public class PuzzleServer {
+    /**
+     * The port used when none is given.
+     */
+    public static final int DEFAULT_PORT = 8080;
+    /**
+     * The number of connections that can wait to be accepted.
+     */
+    private static final int BACKLOG = 1024;
+    /**
+     * The most test tubes a session may ask for, so one client can not tie up the server.
+     */
+    private static final int MAX_TUBES = DifficultyDialog.MAX_TUBES;
+    /**
+     * The system property that turns off Nagle's algorithm for the JDK HTTP server.
+     */
+    private static final String NO_DELAY_PROPERTY = "sun.net.httpserver.nodelay";
+
+    /**
+     * Every open session by its id.
+     */
+    private final Map<Long, GameSession> sessions = new ConcurrentHashMap<>();
+    /**
+     * The id for the next session.
+     */
+    private final AtomicLong nextSessionId = new AtomicLong(1);
+    /**
+     * The most sessions that can be open at once.
+     */
+    private final int maxSessions;
+    /**
+     * The server, or null until start() is called.
+     */
+    private HttpServer server;
+    /**
+     * The executor that handles requests, or null until start() is called.
+     */
+    private ExecutorService executor;
+
+    /**
+     * Starts a server and keeps running until the process is stopped.
+     *
+     * @param args Optional --port and --max-sessions settings.
+     * @throws IOException If the server could not be started.
+     */
+    public static void main(String[] args) throws IOException {
+        int port = DEFAULT_PORT;
+        int maxSessions = 100_000;
+        for(int i = 0; i + 1 < args.length; i += 2) {
+            switch(args[i]) {
+                case "--port": port = Integer.parseInt(args[i+1]); break;
+                case "--max-sessions": maxSessions = Integer.parseInt(args[i+1]); break;
+                default: throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        PuzzleServer puzzleServer = new PuzzleServer(maxSessions);
+        puzzleServer.start(port);
+        System.err.println("Listening on port " + puzzleServer.getPort());
+    }
+
+    /**
+     * @param maxSessions The most sessions that can be open at once.
+     */
+    public PuzzleServer(int maxSessions) {
+        this.maxSessions = maxSessions;
+    }
+
+    /**
+     * Creates an executor that runs each task on a new virtual thread. Virtual threads are
+     * found by reflection so this still runs on a JDK without them, in which case a cached
+     * thread pool of daemon threads is used instead.
+     *
+     * @return The executor to run requests on.
+     */
+    public static ExecutorService newRequestExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch(ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "PuzzleServer request");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * Starts listening for requests.
+     *
+     * @param port The port to listen on, or 0 to use any free port.
+     * @throws IOException If the server could not be started.
+     */
+    public void start(int port) throws IOException {
+        // Small responses would otherwise wait on delayed acknowledgements, adding about 40ms to each
+        if(System.getProperty(NO_DELAY_PROPERTY) == null) {
+            System.setProperty(NO_DELAY_PROPERTY, "true");
+        }
+        server = HttpServer.create(new InetSocketAddress(port), BACKLOG);
+        executor = newRequestExecutor();
+        server.setExecutor(executor);
+        server.createContext("/new", exchange -> handle(exchange, this::newSession));
+        server.createContext("/state", exchange -> handle(exchange, this::getState));
+        server.createContext("/pour", exchange -> handle(exchange, this::pour));
+        server.createContext("/undo", exchange -> handle(exchange, this::undo));
+        server.createContext("/reset", exchange -> handle(exchange, this::reset));
+        server.createContext("/solve", exchange -> handle(exchange, this::solve));
+        server.createContext("/close", exchange -> handle(exchange, this::close));
+        server.createContext("/metrics", Metrics::handleScrape);
+        server.start();
+    }
+
+    /**
+     * Stops listening, waiting up to a second for requests that have started.
+     */
+    public void stop() {
+        server.stop(1);
+        executor.shutdown();
+    }
+
+    /**
+     * Gets the port the server is listening on.
+     *
+     * @return The port number.
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Gets the number of sessions that are open.
+     *
+     * @return The number of sessions.
+     */
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    /**
+     * Thrown by an endpoint to send an error response.
+     */
+    private static class RequestException extends Exception {
+        /**
+         * Exceptions are only sent as JSON, but Throwable is Serializable.
+         */
+        private static final long serialVersionUID = 1L;
+        /**
+         * The HTTP status code to send.
+         */
+        private final int status;
+
+        /**
+         * @param status The HTTP status code to send.
+         * @param message The error to describe in the response.
+         */
+        private RequestException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    /**
+     * Handles the request for one endpoint.
+     */
+    private interface Endpoint {
+        /**
+         * Handles a request.
+         *
+         * @param parameters The query parameters of the request.
+         * @return The JSON response.
+         * @throws RequestException If the request could not be handled.
+         */
+        String handle(Map<String, String> parameters) throws RequestException;
+    }
+
+    /**
+     * Passes the query parameters to an endpoint and sends its response, or an error
+     * response if it fails.
+     *
+     * @param exchange The request and response.
+     * @param endpoint The endpoint to handle the request.
+     * @throws IOException If the response could not be sent.
+     */
+    private void handle(HttpExchange exchange, Endpoint endpoint) throws IOException {
+        int status = 200;
+        String response;
+        try {
+            response = endpoint.handle(parseQuery(exchange.getRequestURI().getRawQuery()));
+        } catch(RequestException e) {
+            status = e.status;
+            response = "{\"error\": " + quote(e.getMessage()) + "}";
+        } catch(RuntimeException e) {
+            status = 500;
+            response = "{\"error\": " + quote(e.getClass().getSimpleName()) + "}";
+        }
+        byte[] body = response.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, body.length);
+        try(OutputStream output = exchange.getResponseBody()) {
+            output.write(body);
+        }
+    }
+
+    /**
+     * Writes text as a JSON string, escaping quotes, backslashes, and control characters.
+     *
+     * @param text The text to write.
+     * @return The text in double quotes.
+     */
+    private static String quote(String text) {
+        StringBuilder result = new StringBuilder("\"");
+        for(int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if(c == '"' || c == '\\') {
+                result.append('\\').append(c);
+            } else if(c < ' ') {
+                result.append(String.format("\\u%04x", (int)c));
+            } else {
+                result.append(c);
+            }
+        }
+        return result.append('"').toString();
+    }
+
+    /**
+     * Splits a query string into its parameters.
+     *
+     * @param query The raw query string, or null if there is none.
+     * @return Each parameter name with its decoded value.
+     */
+    private static Map<String, String> parseQuery(String query) {
+        Map<String, String> parameters = new HashMap<>();
+        if(query == null) return parameters;
+        for(String pair : query.split("&")) {
+            int split = pair.indexOf('=');
+            if(split < 0) continue;
+            parameters.put(URLDecoder.decode(pair.substring(0, split), StandardCharsets.UTF_8),
+                           URLDecoder.decode(pair.substring(split + 1), StandardCharsets.UTF_8));
+        }
+        return parameters;
+    }
+
+    /**
+     * Reads a whole number parameter.
+     *
+     * @param parameters The query parameters.
+     * @param name The name of the parameter.
+     * @param defaultValue The value to use if the parameter is missing.
+     * @return The value of the parameter.
+     * @throws RequestException If the parameter is not a whole number.
+     */
+    private static long getNumber(Map<String, String> parameters, String name, long defaultValue)
+            throws RequestException {
+        String value = parameters.get(name);
+        if(value == null) return defaultValue;
+        try {
+            return Long.parseLong(value);
+        } catch(NumberFormatException e) {
+            throw new RequestException(400, name + " must be a whole number");
+        }
+    }
+
+    /**
+     * Finds the session named by the session parameter.
+     *
+     * @param parameters The query parameters.
+     * @return The session.
+     * @throws RequestException If the parameter is missing or there is no such session.
+     */
+    private GameSession getSession(Map<String, String> parameters) throws RequestException {
+        GameSession session = sessions.get(getNumber(parameters, "session", -1));
+        if(session == null) {
+            throw new RequestException(404, "Unknown session");
+        }
+        return session;
+    }
+
+    /**
+     * Describes a session as a JSON object.
+     *
+     * @param id The id of the session.
+     * @param session The session to describe. The caller must hold its lock.
+     * @param extra Any extra JSON members to add first, each ending with ", ", or an empty string.
+     * @return The JSON response.
+     */
+    private static String describe(long id, GameSession session, String extra) {
+        StringBuilder result = new StringBuilder("{").append(extra);
+        result.append("\"session\": ").append(id);
+        result.append(", \"capacity\": ").append(session.getCapacity());
+        result.append(", \"puzzle\": \"");
+        PuzzleFormat.appendTo(result, session.getState());
+        result.append("\", \"moves\": ").append(session.getMoveCount());
+        result.append(", \"won\": ").append(session.gameWon()).append('}');
+        return result.toString();
+    }
+
+    /**
+     * Starts a new session with a generated puzzle.
+     *
+     * @param parameters The settings for the puzzle, which default to those of the game.
+     * @return The new session.
+     * @throws RequestException If the settings are out of range or there are too many sessions.
+     */
+    private String newSession(Map<String, String> parameters) throws RequestException {
+        int tubeCount = (int) getNumber(parameters, "tubes", 10);
+        int emptyCount = (int) getNumber(parameters, "empty", 4);
+        int emptyAtEndCount = (int) getNumber(parameters, "emptyAtEnd", 2);
+        int colourCount = (int) getNumber(parameters, "colours", 4);
+        int capacity = (int) getNumber(parameters, "capacity", PuzzleState.DEFAULT_CAPACITY);
+        long seed = getNumber(parameters, "seed", ThreadLocalRandom.current().nextLong());
+        if(tubeCount < 1 || tubeCount > MAX_TUBES || emptyCount < 0 || emptyCount > tubeCount
+                || emptyAtEndCount < 0 || emptyAtEndCount > emptyCount
+                || colourCount < 1 || colourCount > PuzzleState.MAX_COLOUR
+                || capacity < PuzzleState.MIN_CAPACITY || capacity > PuzzleState.MAX_CAPACITY) {
+            throw new RequestException(400, "Settings out of range");
+        }
+        if(sessions.size() >= maxSessions) {
+            throw new RequestException(503, "Too many sessions");
+        }
+        GameSession session = new GameSession(tubeCount, emptyCount, emptyAtEndCount, colourCount, capacity);
+        session.newPuzzle(seed);
+        long id = nextSessionId.getAndIncrement();
+        synchronized(session) {
+            sessions.put(id, session);
+            return describe(id, session, "\"seed\": " + seed + ", ");
+        }
+    }
+
+    /**
+     * Describes the current puzzle of a session.
+     *
+     * @param parameters The query parameters naming the session.
+     * @return The session.
+     * @throws RequestException If there is no such session.
+     */
+    private String getState(Map<String, String> parameters) throws RequestException {
+        GameSession session = getSession(parameters);
+        synchronized(session) {
+            return describe(getNumber(parameters, "session", -1), session, "");
+        }
+    }
+
+    /**
+     * Pours from one test tube into another.
+     *
+     * @param parameters The query parameters naming the session and the from and to test tubes.
+     * @return The session, with whether the pour was allowed.
+     * @throws RequestException If there is no such session or a test tube is missing.
+     */
+    private String pour(Map<String, String> parameters) throws RequestException {
+        GameSession session = getSession(parameters);
+        int from = (int) getNumber(parameters, "from", -1);
+        int to = (int) getNumber(parameters, "to", -1);
+        synchronized(session) {
+            boolean poured = session.pour(from, to);
+            return describe(getNumber(parameters, "session", -1), session, "\"poured\": " + poured + ", ");
+        }
+    }
+
+    /**
+     * Undoes the last pour of a session.
+     *
+     * @param parameters The query parameters naming the session.
+     * @return The session, with whether there was a pour to undo.
+     * @throws RequestException If there is no such session.
+     */
+    private String undo(Map<String, String> parameters) throws RequestException {
+        GameSession session = getSession(parameters);
+        synchronized(session) {
+            boolean undone = session.undo();
+            return describe(getNumber(parameters, "session", -1), session, "\"undone\": " + undone + ", ");
+        }
+    }
+
+    /**
+     * Returns a session to the start of its puzzle.
+     *
+     * @param parameters The query parameters naming the session.
+     * @return The session.
+     * @throws RequestException If there is no such session.
+     */
+    private String reset(Map<String, String> parameters) throws RequestException {
+        GameSession session = getSession(parameters);
+        synchronized(session) {
+            session.reset();
+            return describe(getNumber(parameters, "session", -1), session, "");
+        }
+    }
+
+    /**
+     * Finds the shortest list of pours that solves a session from its current state.
+     * The session is not changed.
+     *
+     * @param parameters The query parameters naming the session.
+     * @return The solution as a list of [from, to] pairs, or null if none was found.
+     * @throws RequestException If there is no such session.
+     */
+    private String solve(Map<String, String> parameters) throws RequestException {
+        GameSession session = getSession(parameters);
+        PuzzleState state;
+        synchronized(session) {
+            state = new PuzzleState(session.getState());
+        }
+        // Solve a copy so other requests for the session are not held up by the search
+        List<Move> solution = new Solver(GameSession.SOLVE_NODE_LIMIT).solve(state);
+        StringBuilder result = new StringBuilder("{\"solution\": ");
+        if(solution == null) {
+            result.append("null");
+        } else {
+            result.append('[');
+            for(int i = 0; i < solution.size(); i++) {
+                if(i > 0) result.append(", ");
+                result.append('[').append(solution.get(i).getFrom()).append(", ")
+                      .append(solution.get(i).getTo()).append(']');
+            }
+            result.append(']');
+        }
+        return result.append('}').toString();
+    }
+
+    /**
+     * Ends a session.
+     *
+     * @param parameters The query parameters naming the session.
+     * @return An empty object.
+     * @throws RequestException If there is no such session.
+     */
+    private String close(Map<String, String> parameters) throws RequestException {
+        if(sessions.remove(getNumber(parameters, "session", -1)) == null) {
+            throw new RequestException(404, "Unknown session");
+        }
+        return "{}";
+    }
+}
@@ -0,0 +1,637 @@
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Test Tube
+ * Author: Peter Mitchell (2021)
+ *
+ * PuzzleState class:
+ * Stores the contents of every test tube packed into a single long per tube.
+ * Each tube is a stack of segments filled from the bottom, where the lowest
+ * bits of the long are the bottom segment. A segment holds a colour ID starting
+ * from 1, or EMPTY (0). Colour IDs are only turned into real colours when painting.
+ *
+ * Every segment takes a whole byte, so a test tube can hold up to MAX_CAPACITY segments
+ * and the number of filled segments is found with a shift instead of a division. The
+ * capacity is chosen when the state is created, and the masks that depend on it are
+ * worked out once in the constructor. The operations on a test tube work on the whole
+ * long at once without looping over its segments, so they cost the same for any capacity.
+ *
+ * The number of complete test tubes is kept up to date as tubes change, so checking if
+ * the state is solved does not need to look at every tube. Running with assertions
+ * enabled (-ea) checks the kept count against a full count of the tubes.
+ *
+ * A Zobrist style hash is also kept up to date in the same way. Each possible test tube
+ * has a random key, and the hash is the sum of the keys of every test tube, so a pour only
+ * has to swap the keys of the two test tubes it changes. Adding the keys instead of using
+ * exclusive or means matching test tubes do not cancel out, and the hash does not depend
+ * on the order of the test tubes. canonicalize() goes further and also removes which colour
+ * is which, so states that are the same puzzle with the colours swapped become equal.
+ */
+public class PuzzleState {
+    /**
+     * The number of segments that fit in a test tube unless another capacity is chosen.
+     */
+    public static final int DEFAULT_CAPACITY = 4;
+    /**
+     * The smallest number of segments a test tube can be created with.
+     */
+    public static final int MIN_CAPACITY = 3;
+    /**
+     * The largest number of segments a test tube can be created with.
+     */
+    public static final int MAX_CAPACITY = 8;
+    /**
+     * The number of bits used to store a single segment.
+     */
+    public static final int SEGMENT_BITS = 8;
+    /**
+     * The value used to represent an empty segment.
+     */
+    public static final int EMPTY = 0;
+    /**
+     * The largest colour ID that can be used. This matches the size of Puzzle.possibleColours.
+     */
+    public static final int MAX_COLOUR = 32;
+
+    /**
+     * Mask to extract a single segment.
+     */
+    private static final long SEGMENT_MASK = (1L << SEGMENT_BITS) - 1;
+    /**
+     * A one in the lowest bit of every possible segment. Multiplying by a colour gives a
+     * long with that colour in every segment.
+     */
+    private static final long REPEAT_ALL = Long.divideUnsigned(-1L, SEGMENT_MASK);
+    /**
+     * For each number of segments, the mask that keeps that many segments from the bottom.
+     */
+    private static final long[] LOW_MASKS = new long[MAX_CAPACITY + 1];
+    static {
+        for(int i = 1; i <= MAX_CAPACITY; i++) {
+            LOW_MASKS[i] = LOW_MASKS[i-1] << SEGMENT_BITS | SEGMENT_MASK;
+        }
+    }
+
+    /**
+     * The number of segments that fit in each test tube.
+     */
+    private final int capacity;
+    /**
+     * A one in the lowest bit of every segment up to the capacity. Multiplying by a colour gives
+     * a full tube of that colour.
+     */
+    private final long repeat;
+    /**
+     * The packed contents of every test tube.
+     */
+    private final long[] tubes;
+    /**
+     * The number of test tubes that are empty or full of a single colour.
+     */
+    private int completeCount;
+    /**
+     * The sum of tubeKey() for every test tube.
+     */
+    private long hash;
+    /**
+     * Told the index of every test tube that changes, or null. It is not copied with the state.
+     */
+    private IntConsumer tubeListener;
+
+    /**
+     * Creates a state with all test tubes empty that each hold DEFAULT_CAPACITY segments.
+     *
+     * @param tubeCount The number of test tubes.
+     */
+    public PuzzleState(int tubeCount) {
+        this(tubeCount, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a state with all test tubes empty.
+     *
+     * @param tubeCount The number of test tubes.
+     * @param capacity The number of segments that fit in each test tube, from MIN_CAPACITY to MAX_CAPACITY.
+     */
+    public PuzzleState(int tubeCount, int capacity) {
+        if(capacity < MIN_CAPACITY || capacity > MAX_CAPACITY) {
+            throw new IllegalArgumentException("Capacity must be from " + MIN_CAPACITY + " to "
+                                                + MAX_CAPACITY + ": " + capacity);
+        }
+        this.capacity = capacity;
+        repeat = REPEAT_ALL & LOW_MASKS[capacity];
+        tubes = new long[tubeCount];
+        completeCount = tubeCount;
+    }
+
+    /**
+     * Copy constructor to create a new independent state with the same contents.
+     *
+     * @param stateToCopy State to copy values from.
+     */
+    public PuzzleState(PuzzleState stateToCopy) {
+        capacity = stateToCopy.capacity;
+        repeat = stateToCopy.repeat;
+        tubes = stateToCopy.tubes.clone();
+        completeCount = stateToCopy.completeCount;
+        hash = stateToCopy.hash;
+    }
+
+    /**
+     * Gets the number of test tubes in the state.
+     *
+     * @return The number of test tubes.
+     */
+    public int getTubeCount() {
+        return tubes.length;
+    }
+
+    /**
+     * Gets the number of segments that fit in each test tube.
+     *
+     * @return A number between MIN_CAPACITY and MAX_CAPACITY.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Gets the number of filled segments in a test tube.
+     *
+     * @param tube Index of the test tube.
+     * @return A number between 0 and the capacity.
+     */
+    public int count(int tube) {
+        return segmentCount(tubes[tube]);
+    }
+
+    /**
+     * Gets how many positions are empty in the test tube.
+     *
+     * @param tube Index of the test tube.
+     * @return A number between 0 and the capacity.
+     */
+    public int countRoom(int tube) {
+        return capacity - count(tube);
+    }
+
+    /**
+     * Finds the top colour of the test tube if there is one.
+     *
+     * @param tube Index of the test tube.
+     * @return EMPTY, or the colour ID of the top segment.
+     */
+    public int topColour(int tube) {
+        long bits = tubes[tube];
+        // An empty test tube is shifted by a negative amount, but all of its bits are EMPTY anyway
+        return (int)((bits >>> ((segmentCount(bits) - 1) * SEGMENT_BITS)) & SEGMENT_MASK);
+    }
+
+    /**
+     * Gets the number of occurrences of the top colour without any other colour between them.
+     * Every filled segment is compared with the top colour at once by removing the top colour
+     * from all of them, which leaves the matching segments at the top as zero.
+     *
+     * @param tube Index of the test tube.
+     * @return A number between 0 and the capacity.
+     */
+    public int countTopColour(int tube) {
+        long bits = tubes[tube];
+        int count = segmentCount(bits);
+        long top = (bits >>> ((count - 1) * SEGMENT_BITS)) & SEGMENT_MASK;
+        long different = (bits ^ top * REPEAT_ALL) & LOW_MASKS[count];
+        return count - segmentCount(different);
+    }
+
+    /**
+     * Gets the colour of a single segment.
+     *
+     * @param tube Index of the test tube.
+     * @param segment Index of the segment, where 0 is the bottom of the test tube.
+     * @return EMPTY, or the colour ID at that segment.
+     */
+    public int getSegment(int tube, int segment) {
+        return (int)((tubes[tube] >>> (segment * SEGMENT_BITS)) & SEGMENT_MASK);
+    }
+
+    /**
+     * Removes count segments from the top of the test tube.
+     *
+     * @param tube Index of the test tube.
+     * @param count The number of segments to remove.
+     */
+    public void remove(int tube, int count) {
+        int keep = Math.max(count(tube) - count, 0);
+        replaceTube(tube, tubes[tube] & LOW_MASKS[keep]);
+    }
+
+    /**
+     * Adds count segments of the colour on top of the current contents of the test tube.
+     *
+     * @param tube Index of the test tube.
+     * @param count Number of segments to add.
+     * @param colour The colour ID of the segments to add.
+     */
+    public void add(int tube, int count, int colour) {
+        long added = (colour * REPEAT_ALL) & LOW_MASKS[count];
+        replaceTube(tube, tubes[tube] | (added << (count(tube) * SEGMENT_BITS)));
+    }
+
+    /**
+     * Test if the segments all match in the test tube. This is also true if it is empty.
+     *
+     * @param tube Index of the test tube.
+     * @return True if the test tube is empty or full of a single colour.
+     */
+    public boolean isComplete(int tube) {
+        return isCompleteTube(tubes[tube]);
+    }
+
+    /**
+     * Gets the number of test tubes that are either empty or full of a single colour.
+     *
+     * @return A number between 0 and the number of test tubes.
+     */
+    public int getCompleteCount() {
+        return completeCount;
+    }
+
+    /**
+     * Checks if pouring from one test tube into another is allowed. The "from" must not be empty,
+     * the "to" must not be full, the "to" can not have a different top colour to the "from"
+     * unless it is empty.
+     *
+     * @param from Index of the test tube to pour from.
+     * @param to Index of the test tube to pour into.
+     * @return True if the pour is valid.
+     */
+    public boolean canPour(int from, int to) {
+        if(from == to) return false;
+        int fromTop = topColour(from);
+        int toTop = topColour(to);
+        return fromTop != EMPTY && countRoom(to) != 0 && (toTop == EMPTY || fromTop == toTop);
+    }
+
+    /**
+     * Checks if there is any pour that canPour() allows without trying every pair of test tubes.
+     * There is one when a test tube with colour can go into an empty test tube, or when two test
+     * tubes have the same top colour and at least one of them has room.
+     *
+     * @return True if at least one pour is allowed.
+     */
+    public boolean hasLegalPour() {
+        // A bit for each top colour seen so far, and for those seen on a test tube with room
+        long seenTops = 0, topsWithRoom = 0;
+        boolean hasEmpty = false, hasColour = false;
+        boolean result = false;
+        for(int tube = 0; tube < tubes.length && !result; tube++) {
+            int top = topColour(tube);
+            if(top == EMPTY) {
+                hasEmpty = true;
+            } else {
+                hasColour = true;
+                long topBit = 1L << top;
+                if(countRoom(tube) != 0) topsWithRoom |= topBit;
+                result = (seenTops & topBit) != 0 && (topsWithRoom & topBit) != 0;
+                seenTops |= topBit;
+            }
+            result |= hasEmpty && hasColour;
+        }
+        assert result == hasLegalPourByPairs() : "Legal pour check does not match canPour() for " + this;
+        return result;
+    }
+
+    /**
+     * Gets the number of segments that would move when pouring from one test tube into
+     * another. Assumes canPour() has already been checked.
+     *
+     * @param from Index of the test tube to pour from.
+     * @param to Index of the test tube to pour into.
+     * @return The maximum number of segments that can be poured.
+     */
+    public int pourCount(int from, int to) {
+        return Math.min(countTopColour(from), countRoom(to));
+    }
+
+    /**
+     * Checks if every test tube is either empty or full of a single colour.
+     *
+     * @return True if the state is solved.
+     */
+    public boolean isSolved() {
+        assert completeCount == countCompleteTubes() : "Complete count " + completeCount
+                                                        + " does not match the test tubes " + this;
+        return completeCount == tubes.length;
+    }
+
+    /**
+     * Gets the packed value of a single test tube.
+     *
+     * @param tube Index of the test tube.
+     * @return The packed segments of the test tube.
+     */
+    public long getTube(int tube) {
+        return tubes[tube];
+    }
+
+    /**
+     * Overwrites the packed value of a single test tube.
+     *
+     * @param tube Index of the test tube.
+     * @param packed The packed segments to apply.
+     */
+    public void setTube(int tube, long packed) {
+        replaceTube(tube, packed);
+    }
+
+    /**
+     * Checks that a packed test tube could be stored in a state, so a test tube read from a file
+     * can be trusted. Every filled segment must be a colour, and there must be no more of them
+     * than the capacity.
+     *
+     * @param packed The packed segments of the test tube.
+     * @param capacity The number of segments that fit in the test tube.
+     * @return True if the test tube is valid.
+     */
+    public static boolean isValidTube(long packed, int capacity) {
+        int count = segmentCount(packed);
+        if(count > capacity) return false;
+        for(int i = 0; i < count; i++) {
+            long colour = (packed >>> (i * SEGMENT_BITS)) & SEGMENT_MASK;
+            if(colour == EMPTY || colour > MAX_COLOUR) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Overwrites all test tubes with the contents of another state with the same number of tubes.
+     *
+     * @param other The state to copy from.
+     */
+    public void copyFrom(PuzzleState other) {
+        if(other.capacity != capacity) {
+            throw new IllegalArgumentException("Can not copy test tubes with a capacity of " + other.capacity
+                                                + " into a capacity of " + capacity);
+        }
+        System.arraycopy(other.tubes, 0, tubes, 0, tubes.length);
+        completeCount = other.completeCount;
+        hash = other.hash;
+        notifyAllTubes();
+    }
+
+    /**
+     * Sorts the test tubes by their contents. Two states that only differ by the
+     * order of their test tubes are equal once they have both been sorted.
+     */
+    public void sortTubes() {
+        Arrays.sort(tubes);
+        notifyAllTubes();
+    }
+
+    /**
+     * Changes the state into a standard form shared by every state that is the same puzzle
+     * with the test tubes in a different order or the colours swapped around. The colours are
+     * renumbered from 1 in an order that depends only on where each colour is, and then the
+     * test tubes are sorted. Two states that are equal after this can be solved with the same
+     * pours. When colours can not be told apart by where they are, their old IDs decide the
+     * order, so a few matching states may still end up different, but different puzzles never
+     * end up equal.
+     */
+    public void canonicalize() {
+        relabelColours();
+        Arrays.sort(tubes);
+        notifyAllTubes();
+    }
+
+    /**
+     * Changes the state into the same standard form as canonicalize(), and records where
+     * each test tube came from so moves can be mapped back to the original state.
+     *
+     * @param order Filled with the original index of the test tube at each index. Must have
+     *              one element for each test tube.
+     */
+    public void canonicalize(int[] order) {
+        relabelColours();
+        Integer[] indices = new Integer[tubes.length];
+        for(int i = 0; i < indices.length; i++) {
+            indices[i] = i;
+        }
+        long[] relabelled = tubes.clone();
+        Arrays.sort(indices, (a, b) -> Long.compare(relabelled[a], relabelled[b]));
+        for(int i = 0; i < indices.length; i++) {
+            order[i] = indices[i];
+            tubes[i] = relabelled[indices[i]];
+        }
+        notifyAllTubes();
+    }
+
+    /**
+     * Sets the listener told about every change to a test tube, such as a MoveGenerator.
+     * Copies of the state do not have the listener.
+     *
+     * @param listener Given the index of each test tube that changes, or null for none.
+     */
+    public void setTubeListener(IntConsumer listener) {
+        tubeListener = listener;
+    }
+
+    /**
+     * Gets the Zobrist style hash of the contents. It does not depend on the order of the test tubes.
+     *
+     * @return The sum of the keys of every test tube.
+     */
+    public long getHash() {
+        return hash;
+    }
+
+    /**
+     * Changes the packed value of a test tube and updates the count of complete test tubes.
+     *
+     * @param tube Index of the test tube.
+     * @param packed The new packed segments of the test tube.
+     */
+    private void replaceTube(int tube, long packed) {
+        if(isCompleteTube(tubes[tube])) completeCount--;
+        if(isCompleteTube(packed)) completeCount++;
+        hash += tubeKey(packed) - tubeKey(tubes[tube]);
+        tubes[tube] = packed;
+        if(tubeListener != null) tubeListener.accept(tube);
+    }
+
+    /**
+     * Tells the listener, if there is one, that every test tube may have changed.
+     */
+    private void notifyAllTubes() {
+        if(tubeListener == null) return;
+        for(int tube = 0; tube < tubes.length; tube++) {
+            tubeListener.accept(tube);
+        }
+    }
+
+    /**
+     * Renumbers the colours in an order based on where each colour is. Every colour gets a
+     * signature from the height of each of its segments, how full those test tubes are, and
+     * whether the segments next to it are the same colour. Colours are then numbered from 1
+     * in order of signature, with the old ID deciding between equal signatures.
+     */
+    private void relabelColours() {
+        long[] signatures = new long[MAX_COLOUR + 1];
+        // A bit for each colour that is used, so only those colours are looked at below
+        long usedColours = 0;
+        for(int tube = 0; tube < tubes.length; tube++) {
+            int count = count(tube);
+            for(int i = 0; i < count; i++) {
+                int colour = getSegment(tube, i);
+                int below = i > 0 ? getSegment(tube, i-1) : EMPTY;
+                int above = i < count-1 ? getSegment(tube, i+1) : EMPTY;
+                long feature = i | count << 8 | (below == colour ? 1 : 0) << 16 | (above == colour ? 1 : 0) << 17;
+                signatures[colour] += mix(feature + 1);
+                usedColours |= 1L << colour;
+            }
+        }
+
+        // Sort the used colours by signature, there are only ever a few of them
+        int[] colours = new int[Long.bitCount(usedColours)];
+        int colourCount = 0;
+        for(long remaining = usedColours; remaining != 0; remaining &= remaining - 1) {
+            int colour = Long.numberOfTrailingZeros(remaining);
+            int insertAt = colourCount++;
+            while(insertAt > 0 && signatures[colours[insertAt-1]] > signatures[colour]) {
+                colours[insertAt] = colours[insertAt-1];
+                insertAt--;
+            }
+            colours[insertAt] = colour;
+        }
+        int[] newColour = new int[Long.SIZE - Long.numberOfLeadingZeros(usedColours)];
+        for(int i = 0; i < colourCount; i++) {
+            newColour[colours[i]] = i + 1;
+        }
+
+        hash = 0;
+        for(int tube = 0; tube < tubes.length; tube++) {
+            long relabelled = 0;
+            for(int i = count(tube) - 1; i >= 0; i--) {
+                relabelled = relabelled << SEGMENT_BITS | newColour[getSegment(tube, i)];
+            }
+            // Renumbering the colours never changes which test tubes are complete
+            tubes[tube] = relabelled;
+            hash += tubeKey(relabelled);
+        }
+    }
+
+    /**
+     * Gets the random key for a test tube used by the hash. Rather than looking the key up in
+     * a table of random numbers, the packed contents are scrambled so every test tube has
+     * its own key without needing a table. An empty test tube has a key of 0.
+     *
+     * @param bits The packed segments of the test tube.
+     * @return The key for the test tube.
+     */
+    private static long tubeKey(long bits) {
+        return bits == 0 ? 0 : mix(bits);
+    }
+
+    /**
+     * Scrambles the bits of a value so that similar values give very different results.
+     * This is the finaliser of the SplitMix64 random number generator.
+     *
+     * @param value The value to scramble.
+     * @return The scrambled value.
+     */
+    private static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xbf58476d1ce4e5b9L;
+        value = (value ^ (value >>> 27)) * 0x94d049bb133111ebL;
+        return value ^ (value >>> 31);
+    }
+
+    /**
+     * Checks if there is any pour by trying canPour() on every pair of test tubes.
+     *
+     * @return True if at least one pour is allowed.
+     */
+    private boolean hasLegalPourByPairs() {
+        for(int from = 0; from < tubes.length; from++) {
+            for(int to = 0; to < tubes.length; to++) {
+                if(canPour(from, to)) return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Counts the complete test tubes by checking every one of them.
+     *
+     * @return The number of test tubes that are either empty or full of a single colour.
+     */
+    private int countCompleteTubes() {
+        int count = 0;
+        for(long bits : tubes) {
+            if(isCompleteTube(bits)) count++;
+        }
+        return count;
+    }
+
+    /**
+     * Test if every segment of a packed test tube matches. This is also true if it is empty.
+     *
+     * @param bits The packed segments of the test tube.
+     * @return True if the test tube is empty or full of a single colour.
+     */
+    private boolean isCompleteTube(long bits) {
+        return bits == (bits & SEGMENT_MASK) * repeat;
+    }
+
+    /**
+     * Gets the number of filled segments in a packed test tube from the position of its highest bit.
+     *
+     * @param bits The packed segments of the test tube.
+     * @return A number between 0 and MAX_CAPACITY.
+     */
+    private static int segmentCount(long bits) {
+        return (Long.SIZE + SEGMENT_BITS - 1 - Long.numberOfLeadingZeros(bits)) / SEGMENT_BITS;
+    }
+
+    /**
+     * Compares the contents of the test tubes with another state.
+     *
+     * @param o Object to compare this PuzzleState against.
+     * @return True if the object o has identical test tube contents.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        PuzzleState other = (PuzzleState) o;
+        return hash == other.hash && capacity == other.capacity && Arrays.equals(tubes, other.tubes);
+    }
+
+    /**
+     * Gets a hash based on the contents of the test tubes from the kept Zobrist hash,
+     * so it does not need to look at every test tube.
+     *
+     * @return Hash code for the state.
+     */
+    @Override
+    public int hashCode() {
+        return Long.hashCode(hash);
+    }
+
+    /**
+     * Gets a string version of the state with each test tube written bottom to top, with a
+     * digit or letter for each colour in the same way as PuzzleFormat.
+     *
+     * @return A string in the form [1123, 4, ...]
+     */
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder("[");
+        for(int i = 0; i < tubes.length; i++) {
+            if(i > 0) result.append(", ");
+            for(int j = 0; j < count(i); j++) {
+                result.append(Character.forDigit(getSegment(i, j), PuzzleFormat.COLOUR_RADIX));
+            }
+        }
+        return result.append("]").toString();
+    }
+}
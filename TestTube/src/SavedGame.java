@@ -0,0 +1,276 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Test Tube
+ * Author: Peter Mitchell (2021)
+ *
+ * SavedGame class:
+ * Saves the whole of a game to a small binary file and resumes it again: the settings, the
+ * starting and current state of every test tube, and the moves that can be undone and redone.
+ * Colours are saved as their IDs in the packed PuzzleState longs, so nothing is serialised.
+ * The file is built in one buffer and written with a single call to a temporary file that
+ * then replaces the old one, so a save that is interrupted never leaves a broken file. When
+ * a game is resumed the moves are replayed from the starting state to check they give the
+ * saved current state.
+ *
+ * File layout: the MAGIC int and VERSION int; the tube count, empty count, empty at end count,
+ * colour count, capacity, and difficulty band ints; the seed long; the history limit, undo count
+ * and redo count ints; a long for each test tube of the starting state, then of the current state;
+ * and an int for each command that can be undone, oldest first, then each that can be redone.
+ */
+public class SavedGame {
+    /**
+     * The first four bytes of every saved game, "TTSG".
+     */
+    public static final int MAGIC = 0x54545347;
+    /**
+     * The version of the file layout.
+     */
+    public static final int VERSION = 2;
+    /**
+     * The size of everything before the test tubes.
+     */
+    private static final int HEADER_SIZE = 11 * Integer.BYTES + Long.BYTES;
+
+    /**
+     * Gets the file the game is saved in when no other is chosen, in the user's home folder.
+     *
+     * @return The default file.
+     */
+    public static Path getDefaultPath() {
+        return Paths.get(System.getProperty("user.home"), ".testtube", "session.bin");
+    }
+
+    /**
+     * Saves a game, replacing any game already saved in the file.
+     *
+     * @param puzzle The game to save.
+     * @param path The file to save to. Its folder is created if needed.
+     * @throws IOException If the file could not be written.
+     */
+    public static void save(Puzzle puzzle, Path path) throws IOException {
+        ByteBuffer buffer = encode(puzzle);
+        Path folder = path.toAbsolutePath().getParent();
+        if(folder != null) {
+            Files.createDirectories(folder);
+        }
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try(FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while(buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        try {
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch(AtomicMoveNotSupportedException e) {
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Resumes a saved game.
+     *
+     * @param path The file the game was saved to.
+     * @param layoutWidth The width of the area to lay out the test tubes in.
+     * @return The game as it was saved.
+     * @throws IOException If the file could not be read or does not hold a valid saved game.
+     */
+    public static Puzzle load(Path path, int layoutWidth) throws IOException {
+        ByteBuffer buffer;
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if(size > Integer.MAX_VALUE) {
+                throw new IOException("Saved game is too large: " + size);
+            }
+            buffer = ByteBuffer.allocate((int) size);
+            while(buffer.hasRemaining()) {
+                if(channel.read(buffer) < 0) break;
+            }
+            buffer.flip();
+        }
+        return decode(buffer, layoutWidth);
+    }
+
+    /**
+     * Writes a game into a buffer.
+     *
+     * @param puzzle The game to write.
+     * @return The buffer ready to be read from the start.
+     */
+    public static ByteBuffer encode(Puzzle puzzle) {
+        PuzzleState initialState = puzzle.getInitialState();
+        PuzzleState state = puzzle.getState();
+        MoveHistory history = puzzle.getHistory();
+        int tubeCount = state.getTubeCount();
+        int commandCount = history.size() + history.redoSize();
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + 2 * tubeCount * Long.BYTES
+                                                + commandCount * Integer.BYTES);
+        buffer.putInt(MAGIC).putInt(VERSION);
+        buffer.putInt(puzzle.getTubeCount()).putInt(puzzle.getEmptyCount())
+              .putInt(puzzle.getEmptyAtEndCount()).putInt(puzzle.getColourCount())
+              .putInt(puzzle.getCapacity()).putInt(puzzle.getDifficultyBand());
+        buffer.putLong(puzzle.getSeed());
+        buffer.putInt(history.getLimit()).putInt(history.size()).putInt(history.redoSize());
+        for(int tube = 0; tube < tubeCount; tube++) {
+            buffer.putLong(initialState.getTube(tube));
+        }
+        for(int tube = 0; tube < tubeCount; tube++) {
+            buffer.putLong(state.getTube(tube));
+        }
+        for(int i = 0; i < history.size(); i++) {
+            buffer.putInt(history.get(i));
+        }
+        for(int i = 0; i < history.redoSize(); i++) {
+            buffer.putInt(history.getRedo(i));
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Reads a game written by encode().
+     *
+     * @param buffer The buffer to read from its position.
+     * @param layoutWidth The width of the area to lay out the test tubes in.
+     * @return The game as it was written.
+     * @throws IOException If the buffer does not hold a valid saved game.
+     */
+    public static Puzzle decode(ByteBuffer buffer, int layoutWidth) throws IOException {
+        if(buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+            throw new IOException("Not a saved game");
+        }
+        int version = buffer.getInt();
+        if(version != VERSION) {
+            throw new IOException("Unsupported saved game version " + version);
+        }
+        int tubeCount = buffer.getInt();
+        int emptyCount = buffer.getInt();
+        int emptyAtEndCount = buffer.getInt();
+        int colourCount = buffer.getInt();
+        int capacity = buffer.getInt();
+        int difficultyBand = buffer.getInt();
+        long seed = buffer.getLong();
+        int historyLimit = buffer.getInt();
+        int undoCount = buffer.getInt();
+        int redoCount = buffer.getInt();
+        if(capacity < PuzzleState.MIN_CAPACITY || capacity > PuzzleState.MAX_CAPACITY) {
+            throw new IOException("Saved game has an invalid capacity " + capacity);
+        }
+        if(tubeCount < 1 || tubeCount > Command.MAX_TUBES || emptyCount < 0 || emptyCount > tubeCount
+                || emptyAtEndCount < 0 || emptyAtEndCount > emptyCount
+                || colourCount < 1 || colourCount > PuzzleState.MAX_COLOUR
+                || difficultyBand < DifficultyRating.ANY_BAND || difficultyBand >= DifficultyRating.BAND_NAMES.length) {
+            throw new IOException("Saved game has invalid settings");
+        }
+        if(historyLimit < 0 || undoCount < 0 || redoCount < 0 || (historyLimit > 0 && (long) undoCount + redoCount > historyLimit)
+                || buffer.remaining() != 2L * tubeCount * Long.BYTES + ((long) undoCount + redoCount) * Integer.BYTES) {
+            throw new IOException("Saved game is the wrong size");
+        }
+
+        PuzzleState initialState = readState(buffer, tubeCount, capacity);
+        PuzzleState state = readState(buffer, tubeCount, capacity);
+        int[] commands = new int[undoCount + redoCount];
+        for(int i = 0; i < commands.length; i++) {
+            commands[i] = buffer.getInt();
+        }
+        // The moves that can be undone are checked by undoing them from the saved state, as
+        // the oldest may have been forgotten if the history is limited. When it is not limited
+        // they must lead back to the starting state.
+        PuzzleState replayed = new PuzzleState(state);
+        for(int i = undoCount - 1; i >= 0; i--) {
+            if(!undoPour(replayed, commands[i])) {
+                throw new IOException("Saved move " + i + " could not have been made");
+            }
+        }
+        if(historyLimit == 0 && !replayed.equals(initialState)) {
+            throw new IOException("Saved moves do not lead to the saved state");
+        }
+        // The moves that can be redone must each be allowed after the one before
+        replayed.copyFrom(state);
+        for(int i = undoCount; i < commands.length; i++) {
+            if(!isAllowedPour(replayed, commands[i])) {
+                throw new IOException("Saved move " + i + " could not have been made");
+            }
+            Command.execute(replayed, commands[i]);
+        }
+
+        MoveHistory history = new MoveHistory(historyLimit);
+        for(int command : commands) {
+            history.push(command);
+        }
+        for(int i = 0; i < redoCount; i++) {
+            history.undo();
+        }
+
+        Puzzle puzzle = new Puzzle(tubeCount, emptyCount, emptyAtEndCount, colourCount, capacity, layoutWidth);
+        puzzle.setDifficultyBand(difficultyBand);
+        puzzle.resumePuzzle(seed, initialState, state, history);
+        return puzzle;
+    }
+
+    /**
+     * Checks that a command is the pour that clicking would make in a state.
+     *
+     * @param state The state before the pour.
+     * @param command The encoded command.
+     * @return True if the test tubes exist and are different, the pour is allowed, and the
+     *         command moves as many segments as the pour would.
+     */
+    private static boolean isAllowedPour(PuzzleState state, int command) {
+        int from = Command.getFrom(command);
+        int to = Command.getTo(command);
+        return from < state.getTubeCount() && to < state.getTubeCount() && state.canPour(from, to)
+                && state.pourCount(from, to) == Command.getCount(command);
+    }
+
+    /**
+     * Undoes a command if it is a pour that clicking could have made to reach the state.
+     *
+     * @param state The state after the pour, changed to the state before it if it is valid.
+     * @param command The encoded command.
+     * @return True if the command was undone.
+     */
+    private static boolean undoPour(PuzzleState state, int command) {
+        int from = Command.getFrom(command);
+        int to = Command.getTo(command);
+        int count = Command.getCount(command);
+        if(from >= state.getTubeCount() || to >= state.getTubeCount() || from == to || count < 1
+                || count > state.countTopColour(to) || count > state.countRoom(from)) {
+            return false;
+        }
+        Command.reverse(state, command);
+        if(isAllowedPour(state, command)) return true;
+        Command.execute(state, command);
+        return false;
+    }
+
+    /**
+     * Reads the packed test tubes of a state.
+     *
+     * @param buffer The buffer to read from its position.
+     * @param tubeCount The number of test tubes.
+     * @param capacity The number of segments that fit in each test tube.
+     * @return The state.
+     * @throws IOException If any test tube has more segments than fit or is not valid.
+     */
+    private static PuzzleState readState(ByteBuffer buffer, int tubeCount, int capacity) throws IOException {
+        PuzzleState state = new PuzzleState(tubeCount, capacity);
+        for(int tube = 0; tube < tubeCount; tube++) {
+            long packed = buffer.getLong();
+            if(!PuzzleState.isValidTube(packed, capacity)) {
+                throw new IOException("Saved test tube " + tube + " is not valid");
+            }
+            state.setTube(tube, packed);
+        }
+        return state;
+    }
+}
@@ -0,0 +1,403 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Test Tube
+ * Author: Peter Mitchell (2021)
+ *
+ * SolutionVerifier class:
+ * Command line tool that checks solutions submitted for puzzles without any user interface.
+ * Each input line is a puzzle in the PuzzleFormat, a "|", and the moves as "from>to" test tube
+ * indices separated by spaces, for example "11 1 - | 1>0". The moves are replayed with the same
+ * rules as a pour made by clicking. The main thread reads batches of lines into a bounded queue,
+ * worker threads replay them, and a writer thread writes the results from a second bounded
+ * queue, so only a few batches are held in memory however large the input is.
+ *
+ * Each output line is the input line number (from 1), then "valid" or "invalid" followed by the
+ * number of the first move that could not be made (from 0), or "malformed" if the line could not
+ * be read, and then "won" or "unsolved" for the state after the moves that could be made.
+ * Batches of results may be written in any order. A summary is written to the error stream.
+ *
+ * Usage: java SolutionVerifier [--input file] [--output file] [--threads n] [--capacity n]
+ */
+public class SolutionVerifier {
+    /**
+     * The number of lines passed to a worker at once.
+     */
+    private static final int BATCH_SIZE = 1024;
+    /**
+     * The maximum number of batches waiting in each queue.
+     */
+    private static final int QUEUE_CAPACITY = 64;
+    /**
+     * The longest time in milliseconds a thread waits on a queue before checking if another
+     * thread has failed.
+     */
+    private static final long FAILURE_CHECK_MILLIS = 100;
+    /**
+     * Separates the puzzle from the moves on each line.
+     */
+    public static final char MOVES_SEPARATOR = '|';
+    /**
+     * Separates the from and to test tubes of each move.
+     */
+    public static final char MOVE_SEPARATOR = '>';
+    /**
+     * Passed to each worker when there are no more lines. This is compared by
+     * reference so it can never be confused with a batch.
+     */
+    private static final Batch END_OF_INPUT = new Batch(0, new ArrayList<>());
+    /**
+     * Passed to the writer by each worker when it has finished. This is compared by
+     * reference so it can never be confused with a batch of results.
+     */
+    private static final String END_OF_WORK = new String("END_OF_WORK");
+
+    /**
+     * A group of lines read together.
+     */
+    private static class Batch {
+        /**
+         * The line number of the first line.
+         */
+        private final long firstLine;
+        /**
+         * The text of each line.
+         */
+        private final List<String> lines;
+
+        /**
+         * @param firstLine The line number of the first line.
+         * @param lines The text of each line.
+         */
+        private Batch(long firstLine, List<String> lines) {
+            this.firstLine = firstLine;
+            this.lines = lines;
+        }
+    }
+
+    /**
+     * The file to read, or null to read the standard input.
+     */
+    private String input = null;
+    /**
+     * The file to write to, or null to write to the standard output.
+     */
+    private String output = null;
+    /**
+     * The number of worker threads checking solutions.
+     */
+    private int threadCount = Runtime.getRuntime().availableProcessors();
+    /**
+     * The number of segments that fit in each test tube of every puzzle.
+     */
+    private int capacity = PuzzleState.DEFAULT_CAPACITY;
+
+    /**
+     * Batches of lines waiting to be checked.
+     */
+    private final BlockingQueue<Batch> lines = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    /**
+     * Batches of results waiting to be written.
+     */
+    private final BlockingQueue<String> results = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    /**
+     * The number of lines checked.
+     */
+    private final AtomicLong recordCount = new AtomicLong();
+    /**
+     * The number of lines where every move could be made.
+     */
+    private final AtomicLong validCount = new AtomicLong();
+    /**
+     * The number of lines that end with the puzzle solved.
+     */
+    private final AtomicLong wonCount = new AtomicLong();
+    /**
+     * The number of lines that could not be read.
+     */
+    private final AtomicLong malformedCount = new AtomicLong();
+    /**
+     * The first exception thrown by a worker or the writer, or null if none have failed.
+     * Every thread stops once this is set.
+     */
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    /**
+     * Entry point for checking a file of solutions.
+     *
+     * @param args The settings described in the class comment.
+     * @throws Exception If reading or writing fails or the threads are interrupted.
+     */
+    public static void main(String[] args) throws Exception {
+        SolutionVerifier verifier = new SolutionVerifier();
+        for(int i = 0; i < args.length; i++) {
+            switch(args[i]) {
+                case "--input": verifier.input = args[++i]; break;
+                case "--output": verifier.output = args[++i]; break;
+                case "--threads": verifier.threadCount = Integer.parseInt(args[++i]); break;
+                case "--capacity": verifier.capacity = Integer.parseInt(args[++i]); break;
+                default: throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        if(verifier.capacity < PuzzleState.MIN_CAPACITY || verifier.capacity > PuzzleState.MAX_CAPACITY) {
+            throw new IllegalArgumentException("Capacity must be between " + PuzzleState.MIN_CAPACITY
+                                                + " and " + PuzzleState.MAX_CAPACITY);
+        }
+        verifier.run();
+    }
+
+    /**
+     * Starts the workers and the writer, reads every line into batches for the workers,
+     * waits for everything to be written, and reports the totals on the error stream.
+     *
+     * @throws IOException If reading or writing fails.
+     * @throws InterruptedException If interrupted while waiting for the other threads.
+     * @throws IllegalStateException If a worker failed, with the worker's exception as the cause.
+     */
+    private void run() throws IOException, InterruptedException {
+        long startTime = System.nanoTime();
+        for(int i = 0; i < threadCount; i++) {
+            Thread worker = new Thread(this::verifyBatches, "SolutionVerifier-" + i);
+            worker.setDaemon(true);
+            worker.start();
+        }
+        Thread writer = new Thread(() -> {
+            try {
+                writeResults();
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch(IOException | RuntimeException | Error e) {
+                failure.compareAndSet(null, e);
+            }
+        }, "SolutionVerifier-writer");
+        writer.start();
+
+        try(BufferedReader reader = input == null
+                ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+                : Files.newBufferedReader(Paths.get(input), StandardCharsets.UTF_8)) {
+            long lineNumber = 1;
+            List<String> batch = new ArrayList<>(BATCH_SIZE);
+            String line;
+            while((line = reader.readLine()) != null) {
+                batch.add(line);
+                if(batch.size() == BATCH_SIZE) {
+                    if(!send(lines, new Batch(lineNumber, batch))) break;
+                    lineNumber += batch.size();
+                    batch = new ArrayList<>(BATCH_SIZE);
+                }
+            }
+            if(!batch.isEmpty()) {
+                send(lines, new Batch(lineNumber, batch));
+            }
+        } finally {
+            for(int i = 0; i < threadCount; i++) {
+                send(lines, END_OF_INPUT);
+            }
+        }
+        writer.join();
+        Throwable failed = failure.get();
+        if(failed instanceof IOException) {
+            throw (IOException)failed;
+        } else if(failed != null) {
+            throw new IllegalStateException("Checking solutions failed", failed);
+        }
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        System.err.printf("%d records, %d valid, %d won, %d malformed, %.1fs, %.0f records/s%n",
+                          recordCount.get(), validCount.get(), wonCount.get(), malformedCount.get(),
+                          seconds, recordCount.get() / seconds);
+    }
+
+    /**
+     * Run by each worker thread. Checks batches until there are none left or another
+     * thread has failed, then tells the writer it has finished.
+     */
+    private void verifyBatches() {
+        try {
+            verifyUntilDone();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch(RuntimeException | Error e) {
+            failure.compareAndSet(null, e);
+        } finally {
+            try {
+                send(results, END_OF_WORK);
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Checks batches of lines until there are no more, passing the results of each batch
+     * to the writer.
+     *
+     * @throws InterruptedException If interrupted while waiting on a queue.
+     */
+    private void verifyUntilDone() throws InterruptedException {
+        StringBuilder result = new StringBuilder();
+        Batch batch;
+        while((batch = receive(lines)) != null && batch != END_OF_INPUT) {
+            for(int i = 0; i < batch.lines.size(); i++) {
+                result.append(batch.firstLine + i).append(' ');
+                verify(batch.lines.get(i), result);
+                result.append('\n');
+            }
+            if(!send(results, result.toString())) return;
+            result.setLength(0);
+        }
+    }
+
+    /**
+     * Writes each batch of results as it arrives until every worker has finished, or until
+     * a worker has failed.
+     *
+     * @throws IOException If writing fails.
+     * @throws InterruptedException If interrupted while waiting for results.
+     */
+    private void writeResults() throws IOException, InterruptedException {
+        try(Writer writer = output == null
+                ? new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8))
+                : Files.newBufferedWriter(Paths.get(output), StandardCharsets.UTF_8)) {
+            int finishedWorkers = 0;
+            while(finishedWorkers < threadCount) {
+                String batch = receive(results);
+                if(batch == null) return;
+                if(batch == END_OF_WORK) {
+                    finishedWorkers++;
+                    continue;
+                }
+                writer.write(batch);
+            }
+        }
+    }
+
+    /**
+     * Adds an item to a queue, waiting for room unless another thread fails first.
+     *
+     * @param queue The queue to add to.
+     * @param item The item to add.
+     * @param <T> The type of the items in the queue.
+     * @return True if the item was added, or false if a thread has failed.
+     * @throws InterruptedException If interrupted while waiting for room.
+     */
+    private <T> boolean send(BlockingQueue<T> queue, T item) throws InterruptedException {
+        while(!queue.offer(item, FAILURE_CHECK_MILLIS, TimeUnit.MILLISECONDS)) {
+            if(failure.get() != null) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Takes the next item from a queue, waiting for one unless another thread fails first.
+     *
+     * @param queue The queue to take from.
+     * @param <T> The type of the items in the queue.
+     * @return The item, or null if a thread has failed.
+     * @throws InterruptedException If interrupted while waiting for an item.
+     */
+    private <T> T receive(BlockingQueue<T> queue) throws InterruptedException {
+        T item;
+        while((item = queue.poll(FAILURE_CHECK_MILLIS, TimeUnit.MILLISECONDS)) == null) {
+            if(failure.get() != null) return null;
+        }
+        return item;
+    }
+
+    /**
+     * Replays the moves on one line and adds the result.
+     *
+     * @param line The puzzle and moves.
+     * @param result The result is added to the end of this.
+     */
+    private void verify(String line, StringBuilder result) {
+        recordCount.incrementAndGet();
+        int separator = line.indexOf(MOVES_SEPARATOR);
+        PuzzleState state;
+        try {
+            if(separator < 0) throw new IllegalArgumentException("No moves");
+            state = PuzzleFormat.parse(line.substring(0, separator), capacity);
+        } catch(IllegalArgumentException e) {
+            malformedCount.incrementAndGet();
+            result.append("malformed");
+            return;
+        }
+
+        int moveNumber = 0;
+        int position = separator + 1;
+        while(true) {
+            // Skip the spaces before the next move
+            while(position < line.length() && line.charAt(position) == ' ') position++;
+            if(position == line.length()) break;
+            int end = line.indexOf(' ', position);
+            if(end < 0) end = line.length();
+            int split = line.indexOf(MOVE_SEPARATOR, position);
+            int from, to;
+            try {
+                if(split < 0 || split > end) throw new NumberFormatException();
+                from = Integer.parseInt(line, position, split, 10);
+                to = Integer.parseInt(line, split + 1, end, 10);
+            } catch(NumberFormatException e) {
+                malformedCount.incrementAndGet();
+                result.append("malformed");
+                return;
+            }
+            if(!pour(state, from, to)) {
+                result.append("invalid ").append(moveNumber).append(' ');
+                appendWon(state, result);
+                return;
+            }
+            moveNumber++;
+            position = end;
+        }
+        validCount.incrementAndGet();
+        result.append("valid ");
+        appendWon(state, result);
+    }
+
+    /**
+     * Pours from one test tube into another with the same rules as a pour made by clicking.
+     *
+     * @param state The state to pour in.
+     * @param from Index of the test tube to pour from.
+     * @param to Index of the test tube to pour into.
+     * @return True if the pour was allowed and made.
+     */
+    private static boolean pour(PuzzleState state, int from, int to) {
+        if(from < 0 || from >= state.getTubeCount() || to < 0 || to >= state.getTubeCount()
+                || !state.canPour(from, to)) {
+            return false;
+        }
+        Command.execute(state, Command.encode(from, to, state.pourCount(from, to)));
+        return true;
+    }
+
+    /**
+     * Adds whether the state is solved to the result.
+     *
+     * @param state The state after the moves.
+     * @param result The result is added to the end of this.
+     */
+    private void appendWon(PuzzleState state, StringBuilder result) {
+        if(state.isSolved()) {
+            wonCount.incrementAndGet();
+            result.append("won");
+        } else {
+            result.append("unsolved");
+        }
+    }
+}
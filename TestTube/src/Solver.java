@@ -0,0 +1,403 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Test Tube
+ * Author: Peter Mitchell (2021)
+ *
+ * Solver class:
+ * Finds the shortest sequence of pours that solves a PuzzleState using an A* search.
+ * The heuristic counts the runs of colour that still need to be poured out of their
+ * test tube, which can only go down by at most one with each pour, so the solutions
+ * found are optimal.
+ * The order of the test tubes does not change how a puzzle can be solved, so the search
+ * works on states with their test tubes sorted. Every state that has been reached is kept
+ * in a transposition table keyed on those sorted contents so it is never expanded twice.
+ */
+public class Solver {
+    /**
+     * The default maximum number of states to expand before giving up.
+     */
+    public static final int DEFAULT_NODE_LIMIT = 2_000_000;
+
+    /**
+     * A single state in the search with the path used to reach it.
+     */
+    private static class Node {
+        /**
+         * The contents of the test tubes at this node in sorted order.
+         */
+        private final PuzzleState state;
+        /**
+         * The node this was reached from, or null for the start.
+         */
+        private final Node parent;
+        /**
+         * The number of pours from the start.
+         */
+        private final int cost;
+        /**
+         * The cost plus the estimated number of pours remaining.
+         */
+        private final int estimate;
+
+        /**
+         * @param state The contents of the test tubes at this node in sorted order.
+         * @param parent The node this was reached from, or null for the start.
+         * @param cost The number of pours from the start.
+         * @param estimate The cost plus the estimated number of pours remaining.
+         */
+        private Node(PuzzleState state, Node parent, int cost, int estimate) {
+            this.state = state;
+            this.parent = parent;
+            this.cost = cost;
+            this.estimate = estimate;
+        }
+    }
+
+    /**
+     * The maximum number of states to expand before giving up.
+     */
+    private final int nodeLimit;
+    /**
+     * The number of states expanded by the most recent solve().
+     */
+    private int expandedCount;
+    /**
+     * True if the most recent solve() stopped because it reached the node limit.
+     */
+    private boolean limitReached;
+    /**
+     * The total number of distinct pours found from every state expanded by the most recent solve().
+     */
+    private long branchCount;
+    /**
+     * The number of states expanded by the most recent solve() that led to no new states.
+     */
+    private int deadEndCount;
+
+    /**
+     * Creates a solver that uses the default node limit.
+     */
+    public Solver() {
+        this(DEFAULT_NODE_LIMIT);
+    }
+
+    /**
+     * @param nodeLimit The maximum number of states to expand before giving up.
+     */
+    public Solver(int nodeLimit) {
+        this.nodeLimit = nodeLimit;
+    }
+
+    /**
+     * Searches for the shortest sequence of pours from the start state to a solved state.
+     * The start state is not modified.
+     *
+     * @param start The state to solve.
+     * @return The list of moves to apply in order, an empty list if already solved,
+     *         or null if there is no solution, the node limit was reached, or the
+     *         thread was interrupted.
+     */
+    public List<Move> solve(PuzzleState start) {
+        expandedCount = 0;
+        limitReached = false;
+        branchCount = 0;
+        deadEndCount = 0;
+        if(!hasCompleteColourCounts(start)) return null;
+
+        PriorityQueue<Node> open = new PriorityQueue<>((a, b) -> a.estimate != b.estimate
+                ? Integer.compare(a.estimate, b.estimate) : Integer.compare(b.cost, a.cost));
+        Map<PuzzleState, Integer> bestCost = new HashMap<>();
+        PuzzleState initial = new PuzzleState(start);
+        initial.sortTubes();
+        open.add(new Node(initial, null, 0, estimateRemaining(initial)));
+        bestCost.put(initial, 0);
+        MoveGenerator generator = new MoveGenerator(initial);
+        int[] moves = new int[0];
+
+        while(!open.isEmpty()) {
+            Node node = open.poll();
+            // Skip stale entries that were since reached with fewer pours
+            if(bestCost.get(node.state) < node.cost) continue;
+            if(node.state.isSolved()) return buildPath(start, node);
+            if(expandedCount >= nodeLimit || ((expandedCount & 1023) == 0 && Thread.currentThread().isInterrupted())) {
+                limitReached = true;
+                return null;
+            }
+            expandedCount++;
+
+            PuzzleState state = node.state;
+            generator.setState(state);
+            moves = ensureCapacity(moves, generator.countLegalPours());
+            int moveCount = generator.generateDistinct(moves);
+            // Keep the order of trying every pair of test tubes, which the search is tuned for
+            Arrays.sort(moves, 0, moveCount);
+            branchCount += moveCount;
+            boolean isDeadEnd = true;
+            for(int i = 0; i < moveCount; i++) {
+                PuzzleState next = new PuzzleState(state);
+                Command.execute(next, moves[i]);
+                next.sortTubes();
+                int cost = node.cost + 1;
+                Integer previousCost = bestCost.get(next);
+                if(previousCost != null && previousCost <= cost) continue;
+                bestCost.put(next, cost);
+                open.add(new Node(next, node, cost, cost + estimateRemaining(next)));
+                isDeadEnd = false;
+            }
+            if(isDeadEnd) deadEndCount++;
+        }
+        return null;
+    }
+
+    /**
+     * Checks if any solution exists from the start state. This uses a depth first search that
+     * tries the pours with the best estimate first, so it usually finds a solution quickly
+     * without needing to search for the shortest one. The start state is not modified.
+     *
+     * @param start The state to check.
+     * @return True if a solution was found. If this is false and isLimitReached() is false
+     *         the state has been proven to be unsolvable.
+     */
+    public boolean isSolvable(PuzzleState start) {
+        return isSolvable(start, Long.MAX_VALUE);
+    }
+
+    /**
+     * Checks if any solution exists from the start state, giving up once the time limit has
+     * passed or the thread is interrupted.
+     *
+     * @param start The state to check.
+     * @param timeLimitMillis The maximum time to search for in milliseconds.
+     * @return True if a solution was found. If this is false and isLimitReached() is false
+     *         the state has been proven to be unsolvable.
+     */
+    public boolean isSolvable(PuzzleState start, long timeLimitMillis) {
+        expandedCount = 0;
+        limitReached = false;
+        if(!hasCompleteColourCounts(start)) return false;
+        long deadline = timeLimitMillis == Long.MAX_VALUE ? Long.MAX_VALUE
+                                : System.nanoTime() + timeLimitMillis * 1_000_000L;
+
+        Set<PuzzleState> visited = new HashSet<>();
+        List<PuzzleState> stack = new ArrayList<>();
+        PuzzleState initial = new PuzzleState(start);
+        initial.sortTubes();
+        visited.add(initial);
+        stack.add(initial);
+        List<PuzzleState> children = new ArrayList<>();
+        List<Integer> estimates = new ArrayList<>();
+        MoveGenerator generator = new MoveGenerator(initial);
+        int[] moves = new int[0];
+        // Expanding a state checks every pair of test tubes, so check the time more often on larger boards
+        int tubeCount = start.getTubeCount();
+        int timeCheckMask = Integer.highestOneBit(Math.max(1, (1 << 14) / Math.max(1, tubeCount * tubeCount))) - 1;
+
+        while(!stack.isEmpty()) {
+            PuzzleState state = stack.remove(stack.size()-1);
+            if(state.isSolved()) return true;
+            // Only check the time every so often as it is slow compared to expanding a small state
+            if(expandedCount >= nodeLimit || ((expandedCount & timeCheckMask) == 0
+                    && (System.nanoTime() > deadline || Thread.currentThread().isInterrupted()))) {
+                limitReached = true;
+                return false;
+            }
+            expandedCount++;
+
+            children.clear();
+            estimates.clear();
+            generator.setState(state);
+            moves = ensureCapacity(moves, generator.countLegalPours());
+            int moveCount = generator.generateDistinct(moves);
+            // Keep the order of trying every pair of test tubes, which the search is tuned for
+            Arrays.sort(moves, 0, moveCount);
+            for(int i = 0; i < moveCount; i++) {
+                PuzzleState next = new PuzzleState(state);
+                Command.execute(next, moves[i]);
+                next.sortTubes();
+                if(!visited.add(next)) continue;
+                // Keep the children in order of estimate with the best last
+                int estimate = estimateRemaining(next);
+                int insertAt = estimates.size();
+                while(insertAt > 0 && estimates.get(insertAt-1) < estimate) insertAt--;
+                estimates.add(insertAt, estimate);
+                children.add(insertAt, next);
+            }
+            stack.addAll(children);
+        }
+        return false;
+    }
+
+    /**
+     * Gets the number of states expanded by the most recent solve() or isSolvable().
+     *
+     * @return The number of expanded states.
+     */
+    public int getExpandedCount() {
+        return expandedCount;
+    }
+
+    /**
+     * Gets the average number of distinct pours from each state expanded by the most recent solve().
+     *
+     * @return The average branching factor, or 0 if no states were expanded.
+     */
+    public double getAverageBranchingFactor() {
+        return expandedCount == 0 ? 0 : branchCount / (double)expandedCount;
+    }
+
+    /**
+     * Gets the number of states expanded by the most recent solve() where every pour only led
+     * back to states already reached in as few pours, including states with no pours at all.
+     *
+     * @return The number of dead ends found.
+     */
+    public int getDeadEndCount() {
+        return deadEndCount;
+    }
+
+    /**
+     * Checks if the most recent solve() or isSolvable() gave up because it reached the
+     * node or time limit, or was interrupted, rather than proving there was no solution.
+     *
+     * @return True if the node limit was reached.
+     */
+    public boolean isLimitReached() {
+        return limitReached;
+    }
+
+    /**
+     * Applies the largest possible pour from one test tube into another.
+     * Assumes canPour() has already been checked.
+     *
+     * @param state The state to change.
+     * @param from Index of the test tube to pour from.
+     * @param to Index of the test tube to pour into.
+     * @return The move that was applied.
+     */
+    static Move pour(PuzzleState state, int from, int to) {
+        int count = state.pourCount(from, to);
+        int colour = state.topColour(from);
+        state.remove(from, count);
+        state.add(to, count, colour);
+        return new Move(from, to, count, colour);
+    }
+
+    /**
+     * Makes sure an array of encoded moves has room for at least some number of moves.
+     *
+     * @param moves The current array.
+     * @param size The number of moves it needs room for.
+     * @return The same array if it is big enough, otherwise a new larger one.
+     */
+    static int[] ensureCapacity(int[] moves, int size) {
+        return moves.length >= size ? moves : new int[Math.max(size, moves.length * 2)];
+    }
+
+    /**
+     * Estimates the number of pours remaining. Every run of colour sitting on top of another
+     * colour has to be poured out in its own pour. A run at the bottom of a test tube can stay,
+     * but only as many of them for each colour as there will be full test tubes of that colour.
+     * A pour only ever moves one run out of one test tube, so this never overestimates.
+     *
+     * @param state The state to estimate.
+     * @return A lower bound on the number of pours needed to solve the state.
+     */
+    static int estimateRemaining(PuzzleState state) {
+        int runs = 0;
+        int[] colourCounts = new int[PuzzleState.MAX_COLOUR + 1];
+        int[] bottomCounts = new int[PuzzleState.MAX_COLOUR + 1];
+        for(int tube = 0; tube < state.getTubeCount(); tube++) {
+            int count = state.count(tube);
+            if(count == 0) continue;
+            bottomCounts[state.getSegment(tube, 0)]++;
+            int previous = PuzzleState.EMPTY;
+            for(int i = 0; i < count; i++) {
+                int colour = state.getSegment(tube, i);
+                if(colour != previous) runs++;
+                colourCounts[colour]++;
+                previous = colour;
+            }
+        }
+        for(int colour = 1; colour < colourCounts.length; colour++) {
+            runs -= Math.min(bottomCounts[colour], colourCounts[colour] / state.getCapacity());
+        }
+        return runs;
+    }
+
+    /**
+     * Checks that every colour fills a whole number of test tubes, which is required for
+     * any solution to exist.
+     *
+     * @param state The state to check.
+     * @return True if every colour count is a multiple of the test tube capacity.
+     */
+    static boolean hasCompleteColourCounts(PuzzleState state) {
+        int[] colourCounts = new int[PuzzleState.MAX_COLOUR + 1];
+        for(int tube = 0; tube < state.getTubeCount(); tube++) {
+            for(int i = 0; i < state.count(tube); i++) {
+                colourCounts[state.getSegment(tube, i)]++;
+            }
+        }
+        for(int colourCount : colourCounts) {
+            if(colourCount % state.getCapacity() != 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Follows the parent links back to the start, then replays the path on the unsorted
+     * start state to find the real test tube indices for each move.
+     *
+     * @param start The state the search started from, with the test tubes in their real order.
+     * @param node The solved node at the end of the path.
+     * @return The moves in the order they need to be applied.
+     */
+    private static List<Move> buildPath(PuzzleState start, Node node) {
+        List<PuzzleState> sortedStates = new ArrayList<>();
+        for(Node current = node; current.parent != null; current = current.parent) {
+            sortedStates.add(current.state);
+        }
+        Collections.reverse(sortedStates);
+
+        List<Move> path = new ArrayList<>();
+        PuzzleState current = new PuzzleState(start);
+        for(PuzzleState target : sortedStates) {
+            path.add(findMoveTo(current, target));
+        }
+        return path;
+    }
+
+    /**
+     * Finds the pour that changes the current state into one matching the sorted target,
+     * and applies it to the current state.
+     *
+     * @param current The state to pour in, this is updated by the found move.
+     * @param target The sorted state that needs to be reached with one pour.
+     * @return The move that was applied.
+     */
+    static Move findMoveTo(PuzzleState current, PuzzleState target) {
+        PuzzleState next = new PuzzleState(current);
+        for(int from = 0; from < current.getTubeCount(); from++) {
+            for(int to = 0; to < current.getTubeCount(); to++) {
+                if(!current.canPour(from, to)) continue;
+                next.copyFrom(current);
+                Move move = pour(next, from, to);
+                next.sortTubes();
+                if(next.equals(target)) {
+                    pour(current, from, to);
+                    return move;
+                }
+            }
+        }
+        throw new IllegalStateException("No single pour reaches " + target);
+    }
+}
@@ -5,14 +5,22 @@ import java.awt.*;
  * Author: Peter Mitchell (2021)
  *
  * TestTube class:
- * Represents a single test tube consisting of four colours.
+ * Represents a single test tube consisting of as many colours as the capacity of the
+ * state. The colours are stored in a shared PuzzleState, this class provides the
+ * position and drawing. The height is split into a section for each segment, with one
+ * more above for lifting the test tube when selected and one below for the rounded bottom.
  */
 public class TestTube extends Rectangle {
 
     /**
-     * The current four colours shown in the test tube.
+     * The puzzle state that stores the colours of this test tube.
      */
-    private Color[] colours;
+    private PuzzleState state;
+
+    /**
+     * Index of this test tube inside the puzzle state.
+     */
+    private int index;
 
     /**
      * If the test tube is currently selected the position is offset to move it up.
@@ -20,20 +28,18 @@ public class TestTube extends Rectangle {
     private boolean isSelected;
 
     /**
-     * Creates a test tube and fills it with block (empty).
+     * Creates a test tube that shows the contents of one tube in the state.
      *
      * @param position Position to place the test tube.
      * @param width Width of the test tube.
      * @param height Height of the test tube.
+     * @param state The puzzle state that stores the colours.
+     * @param index Index of this test tube inside the puzzle state.
      */
-    public TestTube(Position position, int width, int height) {
+    public TestTube(Position position, int width, int height, PuzzleState state, int index) {
         super(position, width, height);
-
-        colours = new Color[4];
-        for(int i = 0;i<4; i++) {
-            colours[i] = Color.BLACK;
-        }
-
+        this.state = state;
+        this.index = index;
         isSelected = false;
     }
 
@@ -47,114 +53,132 @@ public class TestTube extends Rectangle {
     }
 
     /**
-     * Draws the four colours with an outline.
+     * Checks if the test tube is currently selected.
+     *
+     * @return True if the test tube is drawn moved upward.
+     */
+    public boolean isSelected() {
+        return isSelected;
+    }
+
+    /**
+     * Gets the number of sections the height of a test tube is split into.
+     *
+     * @param capacity The number of segments that fit in the test tube.
+     * @return The number of sections.
+     */
+    public static int getSectionCount(int capacity) {
+        return capacity + 2;
+    }
+
+    /**
+     * Draws the colours with an outline.
      *
      * @param g Reference to the Graphics object for rendering.
      */
     public void paint(Graphics g) {
+        paint(g, isSelected ? 1 : 0);
+    }
+
+    /**
+     * Draws the colours with an outline, moved partway up to allow the
+     * selection to be animated.
+     *
+     * @param g Reference to the Graphics object for rendering.
+     * @param lift How far the test tube is moved up, from 0 for not selected to 1 for selected.
+     */
+    public void paint(Graphics g, double lift) {
+        int capacity = state.getCapacity();
         int sectionWidth = width/3;
-        int sectionHeight = height/6;
-        int offset = isSelected ? 0 : sectionHeight;
+        int sectionHeight = getSectionHeight();
+        int offset = getLiftOffset(lift);
+        Color bottomColour = getColour(0);
         // Draw the oval part at the bottom first so it can be drawn over to remove the lines.
-        g.setColor(colours[3]);
-        g.fillOval(position.x+sectionWidth, position.y+(3)*sectionHeight + offset+sectionHeight/2, sectionWidth, sectionHeight);
+        int bottomY = position.y+(capacity-1)*sectionHeight + offset;
+        g.setColor(bottomColour);
+        g.fillOval(position.x+sectionWidth, bottomY+sectionHeight/2, sectionWidth, sectionHeight);
         g.setColor(Color.WHITE);
-        g.drawOval(position.x+sectionWidth, position.y+(3)*sectionHeight + offset+sectionHeight/2, sectionWidth, sectionHeight);
-        // Draw the four colours as rectangles
-        for(int i = 0; i < colours.length; i++) {
-            g.setColor(colours[i]);
+        g.drawOval(position.x+sectionWidth, bottomY+sectionHeight/2, sectionWidth, sectionHeight);
+        // Draw the colours as rectangles, the top segment is drawn first
+        for(int i = 0; i < capacity; i++) {
+            g.setColor(getColour(capacity-1-i));
             g.fillRect(position.x+sectionWidth, position.y+(i)*sectionHeight + offset, sectionWidth, sectionHeight);
         }
         // Draw a border
         g.setColor(Color.WHITE);
-        g.drawRect(position.x+sectionWidth, position.y+offset, sectionWidth, sectionHeight*4);
+        g.drawRect(position.x+sectionWidth, position.y+offset, sectionWidth, sectionHeight*capacity);
         // Remove the bottom of the border
-        g.setColor(colours[3]);
-        g.fillRect(position.x+sectionWidth+1, position.y+(3)*sectionHeight + offset+1, sectionWidth-1, sectionHeight);
+        g.setColor(bottomColour);
+        g.fillRect(position.x+sectionWidth+1, bottomY+1, sectionWidth-1, sectionHeight);
     }
 
     /**
-     * Finds the top colour of the test tube if there is one.
+     * Gets the top left corner of where a segment is drawn.
      *
-     * @return Black, or the first top colour that is not Black.
+     * @param segment Index of the segment, where 0 is the bottom of the test tube.
+     * @param lift How far the test tube is moved up, from 0 for not selected to 1 for selected.
+     * @return The position of the segment.
      */
-    public Color topColour() {
-        for(int i = 0; i < 4; i++) {
-            if(colours[i] != Color.BLACK) return colours[i];
-        }
-        return Color.BLACK;
+    public Position getSegmentPosition(int segment, double lift) {
+        return new Position(position.x + width/3,
+                            position.y + (state.getCapacity()-1-segment)*getSectionHeight() + getLiftOffset(lift));
     }
 
     /**
-     * Gets how many positions are empty (Black) in the test tube.
+     * Gets the height of each section the test tube is split into.
      *
-     * @return A number between 0 and 4.
+     * @return The height of a section in pixels.
      */
-    public int countRoom() {
-        int freeCount = 0;
-        for(int i = 0; i < 4; i++) {
-            if(colours[i] == Color.BLACK) freeCount++;
-        }
-        return freeCount;
+    public int getSectionHeight() {
+        return height / getSectionCount(state.getCapacity());
     }
 
     /**
-     * Gets the number of occurrences of the top not black colour.
+     * Gets how far down the test tube is drawn from the top of its area.
      *
-     * @return A number between 0 and 4.
+     * @param lift How far the test tube is moved up, from 0 for not selected to 1 for selected.
+     * @return The offset in pixels.
      */
-    public int countTopColour() {
-        for(int i = 0; i < 4; i++) {
-            if(colours[i] != Color.BLACK) {
-                int count = 1;
-                for(int j = i+1; j < 4 && colours[i] == colours[j]; j++) {
-                    count++;
-                }
-                return count;
-            }
-        }
-        return 0;
+    private int getLiftOffset(double lift) {
+        return (int)Math.round(getSectionHeight() * (1 - lift));
     }
 
     /**
-     * Removes count number of non-black elements by turning the black.
+     * Looks up the colour to draw for a segment.
      *
-     * @param count The number of non-black elements to remove.
+     * @param segment Index of the segment, where 0 is the bottom of the test tube.
+     * @return Black for an empty segment, or the matching colour from Puzzle.possibleColours.
      */
-    public void remove(int count) {
-        int removed = 0;
-        for(int i = 0; i < 4 && removed != count; i++) {
-            if(colours[i] != Color.BLACK)  {
-                colours[i] = Color.BLACK;
-                removed++;
-            }
-        }
+    private Color getColour(int segment) {
+        int colour = state.getSegment(index, segment);
+        return colour == PuzzleState.EMPTY ? Color.BLACK : Puzzle.possibleColours[colour-1];
     }
 
     /**
-     * Finds the point to start inserting at. And then inserts
-     * upward to fill count number of places with the colour.
+     * Finds the top colour of the test tube if there is one.
      *
-     * @param count Number of elements to add of colour.
-     * @param colour The colour of the elements to add.
+     * @return EMPTY, or the colour ID of the top segment.
      */
-    public void add(int count, Color colour) {
-        int addFrom=0;
-        for(int i = 0; i < 4; i++) {
-            if(colours[i] != Color.BLACK) {
-                addFrom = i-1;
-                break;
-            } else if(i == 3 && colours[i] == Color.BLACK) {
-                // case when the test tube is empty start from the bottom.
-                addFrom = i;
-                break;
-            }
-        }
-        int addCount = 1;
-        for(int j = addFrom; j >= 0 && addCount <= count; j--) {
-            addCount++;
-            colours[j] = colour;
-        }
+    public int topColour() {
+        return state.topColour(index);
+    }
+
+    /**
+     * Gets how many positions are empty in the test tube.
+     *
+     * @return A number between 0 and the capacity.
+     */
+    public int countRoom() {
+        return state.countRoom(index);
+    }
+
+    /**
+     * Gets the number of occurrences of the top colour.
+     *
+     * @return A number between 0 and the capacity.
+     */
+    public int countTopColour() {
+        return state.countTopColour(index);
     }
 
     /**
@@ -163,29 +187,24 @@ public class TestTube extends Rectangle {
      * @return True if the elements in the test tube are all the same.
      */
     public boolean fourOfSameColour() {
-        for(int i = 1; i < 4; i++) {
-            if(colours[i] != colours[0])  {
-                return false;
-            }
-        }
-        return true;
+        return state.isComplete(index);
     }
 
     /**
-     * Gets all the colours represented in this test tube.
+     * Gets the packed contents of the test tube from the puzzle state.
      *
-     * @return The array of colours for this object.
+     * @return The packed segments of the test tube.
      */
-    public Color[] getColours() {
-        return colours;
+    public long getContents() {
+        return state.getTube(index);
     }
 
     /**
-     * Overwrites the current colours with the new colours array.
+     * Gets the index of this test tube inside the puzzle state.
      *
-     * @param colours The colours to apply.
+     * @return The index of the test tube.
      */
-    public void setColours(Color[] colours) {
-        this.colours = colours;
+    public int getIndex() {
+        return index;
     }
 }
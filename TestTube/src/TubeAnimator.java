@@ -0,0 +1,263 @@
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Test Tube
+ * Author: Peter Mitchell (2021)
+ *
+ * TubeAnimator class:
+ * Animates the test tubes of a puzzle moving up and down as they are selected, and the
+ * colours moving between test tubes when a pour is made. The puzzle itself is never
+ * changed or slowed down by the animation. Instead the animator keeps its own copy of
+ * what is being shown, and each update compares it to the puzzle. A pour shows up as
+ * one test tube losing segments that another gains, which starts an animation of those
+ * segments moving across. Any other change, such as a reset, is shown straight away.
+ */
+public class TubeAnimator {
+    /**
+     * The time in seconds for colours to move from one test tube to another.
+     */
+    public static final double POUR_SECONDS = 0.3;
+    /**
+     * The time in seconds for a test tube to move all the way up or down.
+     */
+    public static final double LIFT_SECONDS = 0.1;
+
+    /**
+     * Colours moving from one test tube to another.
+     */
+    private static class PourAnimation {
+        /**
+         * Index of the test tube the colours are going to.
+         */
+        private final int to;
+        /**
+         * The number of segments moving.
+         */
+        private final int count;
+        /**
+         * The colour ID of the segments.
+         */
+        private final int colour;
+        /**
+         * Where the lowest moving segment started.
+         */
+        private final Position start;
+        /**
+         * The time in seconds since the pour started.
+         */
+        private double elapsed;
+
+        /**
+         * @param to Index of the test tube the colours are going to.
+         * @param count The number of segments moving.
+         * @param colour The colour ID of the segments.
+         * @param start Where the lowest moving segment started.
+         */
+        private PourAnimation(int to, int count, int colour, Position start) {
+            this.to = to;
+            this.count = count;
+            this.colour = colour;
+            this.start = start;
+        }
+    }
+
+    /**
+     * The puzzle being animated.
+     */
+    private final Puzzle puzzle;
+    /**
+     * The state of the puzzle when the animator last caught up with it. A new state
+     * means a new puzzle was started.
+     */
+    private PuzzleState puzzleState;
+    /**
+     * The contents of each test tube as they are currently shown.
+     */
+    private PuzzleState shown;
+    /**
+     * Test tubes in the same places as the puzzle's, showing the contents of shown.
+     */
+    private List<TestTube> shownTubes;
+    /**
+     * How far each test tube is moved up, from 0 for not selected to 1 for selected.
+     */
+    private double[] lift;
+    /**
+     * Indices of test tubes found to have changed during an update.
+     */
+    private int[] changed;
+    /**
+     * Pours that are currently moving.
+     */
+    private final List<PourAnimation> pours = new ArrayList<>();
+    /**
+     * Images of the shown test tubes when they are not moving.
+     */
+    private final TubeImageCache tubeImages = new TubeImageCache();
+
+    /**
+     * Starts animating a puzzle from its current state.
+     *
+     * @param puzzle The puzzle to animate.
+     */
+    public TubeAnimator(Puzzle puzzle) {
+        this.puzzle = puzzle;
+        restart();
+    }
+
+    /**
+     * Moves the animation forward, starting new animations for any changes made to the puzzle.
+     *
+     * @param seconds The time in seconds to move forward by.
+     */
+    public void update(double seconds) {
+        if(puzzle.getState() != puzzleState) {
+            restart();
+        }
+
+        // Move each test tube toward its selected or unselected position
+        double liftStep = seconds / LIFT_SECONDS;
+        for(int i = 0; i < lift.length; i++) {
+            boolean isSelected = puzzle.getTestTube(i).isSelected();
+            shownTubes.get(i).setSelected(isSelected);
+            lift[i] = isSelected ? Math.min(1, lift[i] + liftStep) : Math.max(0, lift[i] - liftStep);
+        }
+
+        // Finished pours show their colours in the test tube they went to
+        Iterator<PourAnimation> iterator = pours.iterator();
+        while(iterator.hasNext()) {
+            PourAnimation pour = iterator.next();
+            pour.elapsed += seconds;
+            if(pour.elapsed >= POUR_SECONDS) {
+                shown.setTube(pour.to, puzzleState.getTube(pour.to));
+                iterator.remove();
+            }
+        }
+
+        int changedCount = 0;
+        for(int i = 0; i < changed.length; i++) {
+            if(shown.getTube(i) != puzzleState.getTube(i) && !isPourTarget(i)) {
+                changed[changedCount++] = i;
+            }
+        }
+        if(changedCount == 2 && (startPour(changed[0], changed[1]) || startPour(changed[1], changed[0]))) {
+            return;
+        }
+        for(int i = 0; i < changedCount; i++) {
+            shown.setTube(changed[i], puzzleState.getTube(changed[i]));
+        }
+    }
+
+    /**
+     * Draws the test tubes that overlap an area of the layout, and then any colours moving
+     * between test tubes on top.
+     *
+     * @param g Reference to the Graphics object for rendering.
+     * @param visibleArea The area of the layout that is visible.
+     */
+    public void paint(Graphics2D g, Rectangle visibleArea) {
+        puzzle.forEachTestTubeIn(visibleArea, testTube -> {
+            int index = testTube.getIndex();
+            TestTube shownTube = shownTubes.get(index);
+            if(lift[index] == (shownTube.isSelected() ? 1 : 0)) {
+                tubeImages.paint(g, shownTube);
+            } else {
+                shownTube.paint(g, lift[index]);
+            }
+        });
+        for(PourAnimation pour : pours) {
+            paintPour(g, pour);
+        }
+    }
+
+    /**
+     * Draws the segments of a pour partway along an arc between the two test tubes.
+     *
+     * @param g Reference to the Graphics object for rendering.
+     * @param pour The pour to draw.
+     */
+    private void paintPour(Graphics2D g, PourAnimation pour) {
+        TestTube to = shownTubes.get(pour.to);
+        Position end = to.getSegmentPosition(shown.count(pour.to), lift[pour.to]);
+        // Ease in and out, rising up in an arc between the test tubes
+        double t = Math.min(1, pour.elapsed / POUR_SECONDS);
+        double progress = t * t * (3 - 2 * t);
+        int sectionWidth = to.getWidth() / 3;
+        int sectionHeight = to.getSectionHeight();
+        int x = (int)Math.round(pour.start.x + (end.x - pour.start.x) * progress);
+        int y = (int)Math.round(pour.start.y + (end.y - pour.start.y) * progress
+                                 - 4 * progress * (1 - progress) * 3 * sectionHeight);
+        g.setColor(Puzzle.possibleColours[pour.colour - 1]);
+        for(int i = 0; i < pour.count; i++) {
+            g.fillRect(x, y - i * sectionHeight, sectionWidth, sectionHeight);
+        }
+        g.setColor(Color.WHITE);
+        g.drawRect(x, y - (pour.count - 1) * sectionHeight, sectionWidth, pour.count * sectionHeight);
+    }
+
+    /**
+     * Checks if the changes to two test tubes are a pour from one to the other, and starts
+     * animating it if they are. The test tube poured from is shown without the colours
+     * straight away, and the one poured into keeps its old contents until they arrive.
+     *
+     * @param from Index of the test tube that may have been poured from.
+     * @param to Index of the test tube that may have been poured into.
+     * @return True if it was a pour and the animation started.
+     */
+    private boolean startPour(int from, int to) {
+        int count = shown.count(from) - puzzleState.count(from);
+        if(count <= 0 || count > shown.countRoom(to)) return false;
+        int colour = shown.topColour(from);
+        long oldFrom = shown.getTube(from), oldTo = shown.getTube(to);
+        shown.remove(from, count);
+        shown.add(to, count, colour);
+        boolean isPour = shown.getTube(from) == puzzleState.getTube(from)
+                            && shown.getTube(to) == puzzleState.getTube(to);
+        shown.setTube(to, oldTo);
+        if(!isPour) {
+            shown.setTube(from, oldFrom);
+            return false;
+        }
+        Position start = shownTubes.get(from).getSegmentPosition(shown.count(from), lift[from]);
+        pours.add(new PourAnimation(to, count, colour, start));
+        return true;
+    }
+
+    /**
+     * Checks if a test tube is waiting for colours from a pour that is still moving.
+     *
+     * @param tube Index of the test tube.
+     * @return True if it is the test tube being poured into by a pour that has not finished.
+     */
+    private boolean isPourTarget(int tube) {
+        for(PourAnimation pour : pours) {
+            if(pour.to == tube) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Stops every animation and shows the puzzle as it currently is.
+     */
+    private void restart() {
+        puzzleState = puzzle.getState();
+        shown = new PuzzleState(puzzleState);
+        int tubeCount = puzzleState.getTubeCount();
+        shownTubes = new ArrayList<>(tubeCount);
+        lift = new double[tubeCount];
+        changed = new int[tubeCount];
+        for(int i = 0; i < tubeCount; i++) {
+            TestTube testTube = puzzle.getTestTube(i);
+            TestTube shownTube = new TestTube(new Position(testTube.getPosition()), testTube.getWidth(),
+                                              testTube.getHeight(), shown, i);
+            shownTube.setSelected(testTube.isSelected());
+            shownTubes.add(shownTube);
+            lift[i] = testTube.isSelected() ? 1 : 0;
+        }
+        pours.clear();
+        tubeImages.clear();
+    }
+}
@@ -0,0 +1,184 @@
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Test Tube
+ * Author: Peter Mitchell (2021)
+ *
+ * TubeGrid class:
+ * A spatial index over the test tubes of a puzzle. The area covered by the test tubes
+ * is split into a grid of cells the size of the largest test tube, and each cell lists
+ * the test tubes that overlap it. Finding the test tube at a position only checks the
+ * few test tubes in one cell, and finding the test tubes in an area only visits the
+ * cells it covers, so both stay fast however many test tubes there are.
+ */
+public class TubeGrid {
+    /**
+     * The top left corner of the area covered by the grid.
+     */
+    private final int originX, originY;
+    /**
+     * The size of each cell.
+     */
+    private final int cellWidth, cellHeight;
+    /**
+     * The number of cells across and down.
+     */
+    private final int columns, rows;
+    /**
+     * For each cell the position in cellTubes of its first test tube. The test tubes of
+     * cell i are from cellStart[i] up to cellStart[i+1].
+     */
+    private final int[] cellStart;
+    /**
+     * The test tubes of every cell, one cell after another.
+     */
+    private final TestTube[] cellTubes;
+
+    /**
+     * Builds the grid for a set of test tubes that will not move.
+     *
+     * @param testTubes The test tubes to index.
+     */
+    public TubeGrid(List<TestTube> testTubes) {
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = 0, maxY = 0;
+        int maxWidth = 1, maxHeight = 1;
+        for(TestTube testTube : testTubes) {
+            minX = Math.min(minX, testTube.position.x);
+            minY = Math.min(minY, testTube.position.y);
+            maxX = Math.max(maxX, testTube.position.x + testTube.width);
+            maxY = Math.max(maxY, testTube.position.y + testTube.height);
+            maxWidth = Math.max(maxWidth, testTube.width);
+            maxHeight = Math.max(maxHeight, testTube.height);
+        }
+        if(testTubes.isEmpty()) {
+            minX = minY = maxX = maxY = 0;
+        }
+        originX = minX;
+        originY = minY;
+        cellWidth = maxWidth;
+        cellHeight = maxHeight;
+        columns = Math.max(1, (maxX - minX + cellWidth - 1) / cellWidth);
+        rows = Math.max(1, (maxY - minY + cellHeight - 1) / cellHeight);
+
+        // Count the test tubes in each cell, then place them using the running totals
+        cellStart = new int[columns * rows + 1];
+        for(TestTube testTube : testTubes) {
+            for(int row = firstRow(testTube); row <= lastRow(testTube); row++) {
+                for(int column = firstColumn(testTube); column <= lastColumn(testTube); column++) {
+                    cellStart[row * columns + column + 1]++;
+                }
+            }
+        }
+        for(int i = 1; i < cellStart.length; i++) {
+            cellStart[i] += cellStart[i-1];
+        }
+        cellTubes = new TestTube[cellStart[cellStart.length-1]];
+        int[] nextInCell = cellStart.clone();
+        for(TestTube testTube : testTubes) {
+            for(int row = firstRow(testTube); row <= lastRow(testTube); row++) {
+                for(int column = firstColumn(testTube); column <= lastColumn(testTube); column++) {
+                    cellTubes[nextInCell[row * columns + column]++] = testTube;
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds the test tube at a position.
+     *
+     * @param position The position to check.
+     * @return A test tube if there is one at that position, or null.
+     */
+    public TestTube getTestTubeAt(Position position) {
+        int column = Math.floorDiv(position.x - originX, cellWidth);
+        int row = Math.floorDiv(position.y - originY, cellHeight);
+        if(column < 0 || row < 0 || column >= columns || row >= rows) return null;
+        int cell = row * columns + column;
+        for(int i = cellStart[cell]; i < cellStart[cell+1]; i++) {
+            if(cellTubes[i].isPositionInside(position)) {
+                return cellTubes[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Calls the action once for every test tube that overlaps an area. Test tubes that
+     * only touch the edge of the area are not included.
+     *
+     * @param area The area to find test tubes in.
+     * @param action The action to apply to each test tube found.
+     */
+    public void forEachOverlapping(Rectangle area, Consumer<TestTube> action) {
+        int fromColumn = Math.max(0, Math.floorDiv(area.position.x - originX, cellWidth));
+        int fromRow = Math.max(0, Math.floorDiv(area.position.y - originY, cellHeight));
+        int toColumn = Math.min(columns - 1, Math.floorDiv(area.position.x + area.width - 1 - originX, cellWidth));
+        int toRow = Math.min(rows - 1, Math.floorDiv(area.position.y + area.height - 1 - originY, cellHeight));
+        for(int row = fromRow; row <= toRow; row++) {
+            for(int column = fromColumn; column <= toColumn; column++) {
+                int cell = row * columns + column;
+                for(int i = cellStart[cell]; i < cellStart[cell+1]; i++) {
+                    TestTube testTube = cellTubes[i];
+                    // A test tube in more than one cell is only visited from the first of its cells in the area
+                    if(row == Math.max(fromRow, firstRow(testTube)) && column == Math.max(fromColumn, firstColumn(testTube))
+                            && overlaps(testTube, area)) {
+                        action.accept(testTube);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Tests if a test tube and an area share at least one pixel.
+     *
+     * @param testTube The test tube to check.
+     * @param area The area to check.
+     * @return True if they overlap.
+     */
+    private static boolean overlaps(TestTube testTube, Rectangle area) {
+        return testTube.position.x < area.position.x + area.width && area.position.x < testTube.position.x + testTube.width
+                && testTube.position.y < area.position.y + area.height && area.position.y < testTube.position.y + testTube.height;
+    }
+
+    /**
+     * Gets the first column of cells the test tube overlaps.
+     *
+     * @param testTube The test tube to check.
+     * @return The index of the column.
+     */
+    private int firstColumn(TestTube testTube) {
+        return (testTube.position.x - originX) / cellWidth;
+    }
+
+    /**
+     * Gets the last column of cells the test tube overlaps.
+     *
+     * @param testTube The test tube to check.
+     * @return The index of the column.
+     */
+    private int lastColumn(TestTube testTube) {
+        return (testTube.position.x + testTube.width - 1 - originX) / cellWidth;
+    }
+
+    /**
+     * Gets the first row of cells the test tube overlaps.
+     *
+     * @param testTube The test tube to check.
+     * @return The index of the row.
+     */
+    private int firstRow(TestTube testTube) {
+        return (testTube.position.y - originY) / cellHeight;
+    }
+
+    /**
+     * Gets the last row of cells the test tube overlaps.
+     *
+     * @param testTube The test tube to check.
+     * @return The index of the row.
+     */
+    private int lastRow(TestTube testTube) {
+        return (testTube.position.y + testTube.height - 1 - originY) / cellHeight;
+    }
+}
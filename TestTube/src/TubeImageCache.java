@@ -0,0 +1,128 @@
+import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Test Tube
+ * Author: Peter Mitchell (2021)
+ *
+ * TubeImageCache class:
+ * Keeps drawn images of test tubes so a test tube only has to be drawn shape by shape
+ * the first time its contents and selection are seen. Test tubes with the same contents
+ * share an image, and images are drawn at the size they appear on screen so zooming out
+ * also makes them smaller. Images are opaque with the black background of the GamePanel
+ * so drawing them is a plain copy. The least recently used images are removed once the
+ * images use more than MAX_PIXELS.
+ */
+public class TubeImageCache {
+    /**
+     * The most pixels that can be used by all cached images together.
+     */
+    public static final int MAX_PIXELS = 1 << 22;
+
+    /**
+     * The images for each key from imageKey(), with the least recently used first.
+     */
+    private final LinkedHashMap<Long, BufferedImage> images = new LinkedHashMap<>(64, 0.75f, true);
+    /**
+     * The size of the test tubes the cached images were drawn for.
+     */
+    private int tubeWidth, tubeHeight;
+    /**
+     * The size in pixels of every cached image.
+     */
+    private int imageWidth, imageHeight;
+
+    /**
+     * Draws a test tube using its cached image, creating the image first if needed.
+     *
+     * @param g Reference to the Graphics object for rendering.
+     * @param testTube The test tube to draw.
+     */
+    public void paint(Graphics2D g, TestTube testTube) {
+        // Match the image to the number of pixels the test tube covers on screen
+        AffineTransform transform = g.getTransform();
+        int width = Math.max(1, (int)Math.ceil(testTube.getWidth() * Math.abs(transform.getScaleX())));
+        int height = Math.max(1, (int)Math.ceil(testTube.getHeight() * Math.abs(transform.getScaleY())));
+        if(width != imageWidth || height != imageHeight
+                || testTube.getWidth() != tubeWidth || testTube.getHeight() != tubeHeight) {
+            clear();
+            tubeWidth = testTube.getWidth();
+            tubeHeight = testTube.getHeight();
+            imageWidth = width;
+            imageHeight = height;
+        }
+
+        Long key = imageKey(testTube);
+        BufferedImage image = images.get(key);
+        if(image == null) {
+            image = createImage(g.getDeviceConfiguration(), testTube);
+            images.put(key, image);
+            removeOldest();
+        }
+        Position position = testTube.getPosition();
+        g.drawImage(image, position.x, position.y, tubeWidth, tubeHeight, null);
+    }
+
+    /**
+     * Removes every cached image.
+     */
+    public void clear() {
+        images.clear();
+    }
+
+    /**
+     * Gets the number of images that are cached.
+     *
+     * @return The number of cached images.
+     */
+    public int size() {
+        return images.size();
+    }
+
+    /**
+     * Draws a test tube into a new image at the current image size.
+     *
+     * @param configuration The configuration of the screen the image will be drawn to.
+     * @param testTube The test tube to draw.
+     * @return The image of the test tube.
+     */
+    private BufferedImage createImage(GraphicsConfiguration configuration, TestTube testTube) {
+        BufferedImage image = configuration != null
+                ? configuration.createCompatibleImage(imageWidth, imageHeight, Transparency.OPAQUE)
+                : new BufferedImage(imageWidth, imageHeight, BufferedImage.TYPE_INT_RGB);
+        Graphics2D imageGraphics = image.createGraphics();
+        imageGraphics.setColor(Color.BLACK);
+        imageGraphics.fillRect(0, 0, imageWidth, imageHeight);
+        imageGraphics.scale(imageWidth / (double)tubeWidth, imageHeight / (double)tubeHeight);
+        imageGraphics.translate(-testTube.getPosition().x, -testTube.getPosition().y);
+        testTube.paint(imageGraphics);
+        imageGraphics.dispose();
+        return image;
+    }
+
+    /**
+     * Removes the least recently used images until the images fit in MAX_PIXELS.
+     */
+    private void removeOldest() {
+        int maxImages = Math.max(1, MAX_PIXELS / (imageWidth * imageHeight));
+        Iterator<Map.Entry<Long, BufferedImage>> oldest = images.entrySet().iterator();
+        while(images.size() > maxImages) {
+            oldest.next();
+            oldest.remove();
+        }
+    }
+
+    /**
+     * Creates the key for a test tube that is the same for any test tube that looks the same.
+     *
+     * @param testTube The test tube to create a key for.
+     * @return The packed contents of the test tube with the lowest bit set when it is selected.
+     */
+    private static Long imageKey(TestTube testTube) {
+        return testTube.getContents() << 1 | (testTube.isSelected() ? 1 : 0);
+    }
+}